@@ -0,0 +1,333 @@
+package hudson.plugins.nunit;
+
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.SuiteResult;
+import hudson.tasks.junit.TestResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Test results in a compact binary form, to send them from the agent to the controller.
+ *
+ * <p>Serializing a {@link TestResult} sends the whole object graph, including the class name of every test case. The
+ * test suites are therefore written as a deflated stream of length prefixed fields instead. Suite, package and class
+ * names are written once and then referred to by their index, and durations are written as a variable length number
+ * of microseconds. The controller inflates the stream into a {@link TestResult} again, merging the test suites of the
+ * same name like the JUnit plugin does when it parses JUnit report files.
+ *
+ * <p>The compact form only has room for what a NUnit report is converted to. The test suites of JUnit reports that
+ * are recorded as they are, see {@link TestReportFormat}, would lose their id, file and properties, and the
+ * properties of their test cases, so they are sent as they are instead, in their place among the other test suites.
+ *
+ * <p>The stream is not sent while it is written. It is deflated into a byte array on the agent, which is returned to
+ * the controller by the callable as a whole, and only inflated once it arrived. At its peak the agent therefore holds
+ * the whole compressed result, up to twice over while the array grows, next to the test suites of the reports still
+ * being read. The test suites already written are not kept, except for those sent as they are.
+ */
+public final class CompactTestResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int NULL = 0;
+    private static final int NEW_NAME = 1;
+    private static final int NAME_INDEX_OFFSET = 2;
+
+    private static final int COMPACT_SUITE = 0;
+    private static final int SUITE_AS_IS = 1;
+
+    private final byte[] data;
+    private final int suiteCount;
+    /** The test suites sent as they are, in the order they were written. */
+    private final List<SuiteResult> suitesAsIs;
+
+    private CompactTestResult(byte[] data, int suiteCount, List<SuiteResult> suitesAsIs) {
+        this.data = data;
+        this.suiteCount = suiteCount;
+        this.suitesAsIs = suitesAsIs;
+    }
+
+    /**
+     * @return the size of the compact form, in bytes, without the test suites sent as they are
+     */
+    int getSize() {
+        return data.length;
+    }
+
+    int getSuiteCount() {
+        return suiteCount;
+    }
+
+    /**
+     * Inflates the test suites into a test result.
+     *
+     * @return the tallied test result, with the test suites of the same name merged
+     * @throws IOException if the compact form is corrupt
+     */
+    TestResult toTestResult() throws IOException {
+        TestResult read = new TestResult();
+        read.getSuites().addAll(readSuites());
+        TestResult result = new TestResult();
+        result.merge(read);
+        return result;
+    }
+
+    /**
+     * Inflates the test suites.
+     *
+     * @return the test suites, in the order they were written
+     * @throws IOException if the compact form is corrupt
+     */
+    List<SuiteResult> readSuites() throws IOException {
+        List<SuiteResult> suites = new ArrayList<>(suiteCount);
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+            Reader reader = new Reader(in, suitesAsIs.iterator());
+            for (int i = 0; i < suiteCount; i++) {
+                suites.add(reader.readSuite());
+            }
+        }
+        return suites;
+    }
+
+    /**
+     * Writes test suites in the compact form.
+     */
+    static class Writer {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater, 8192));
+        private final Map<String, Integer> names = new HashMap<>();
+        private final List<SuiteResult> suitesAsIs = new ArrayList<>();
+        private int suiteCount;
+
+        void write(SuiteResult suite) throws IOException {
+            writeNumber(COMPACT_SUITE);
+            writeName(suite.getName());
+            writeString(suite.getStdout());
+            writeString(suite.getStderr());
+            writeDuration(suite.getDuration());
+            writeString(suite.getTimestamp());
+            List<CaseResult> cases = suite.getCases();
+            writeNumber(cases.size());
+            for (CaseResult testCase : cases) {
+                String className = testCase.getClassName();
+                int packageEnd = className == null ? -1 : className.lastIndexOf('.');
+                writeName(packageEnd < 0 ? null : className.substring(0, packageEnd));
+                writeName(packageEnd < 0 ? className : className.substring(packageEnd + 1));
+                writeString(testCase.getName());
+                writeString(testCase.getErrorDetails());
+                writeString(testCase.getSkippedMessage());
+                writeDuration(testCase.getDuration());
+                // a test case without output of its own returns the output of its test suite
+                writeString(getOwnOutput(testCase.getStdout(), suite.getStdout()));
+                writeString(getOwnOutput(testCase.getStderr(), suite.getStderr()));
+                writeString(testCase.getErrorStackTrace());
+            }
+            suiteCount++;
+        }
+
+        /**
+         * Writes a test suite that is sent as it is, with everything the JUnit plugin parsed from its report.
+         */
+        void writeAsIs(SuiteResult suite) throws IOException {
+            writeNumber(SUITE_AS_IS);
+            suitesAsIs.add(suite);
+            suiteCount++;
+        }
+
+        /**
+         * @return the test suites written so far, no more suites can be written afterwards
+         */
+        CompactTestResult finish() throws IOException {
+            try {
+                out.close();
+            } finally {
+                deflater.end();
+            }
+            return new CompactTestResult(bytes.toByteArray(), suiteCount, suitesAsIs);
+        }
+
+        private static String getOwnOutput(String caseOutput, String suiteOutput) {
+            return suiteOutput == null || !Objects.equals(caseOutput, suiteOutput) ? caseOutput : null;
+        }
+
+        private void writeName(String name) throws IOException {
+            if (name == null) {
+                writeNumber(NULL);
+                return;
+            }
+            Integer index = names.get(name);
+            if (index != null) {
+                writeNumber(index + NAME_INDEX_OFFSET);
+            } else {
+                names.put(name, names.size());
+                writeNumber(NEW_NAME);
+                writeBytes(name);
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                writeNumber(NULL);
+            } else {
+                writeBytes(value);
+            }
+        }
+
+        /**
+         * Writes the UTF-8 bytes of a string, preceded by their length plus one.
+         */
+        private void writeBytes(String value) throws IOException {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeNumber(utf8.length + 1L);
+            out.write(utf8);
+        }
+
+        private void writeDuration(float seconds) throws IOException {
+            writeNumber(zigZag(Math.round(seconds * 1_000_000.0)));
+        }
+
+        /**
+         * Writes a non negative number in as few bytes as needed, seven bits at a time.
+         */
+        private void writeNumber(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+
+        private static long zigZag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    private static class Reader {
+
+        private final DataInputStream in;
+        private final Iterator<SuiteResult> suitesAsIs;
+        private final List<String> names = new ArrayList<>();
+        // test cases of the same class share the class name
+        private final Map<String, String> classNames = new HashMap<>();
+
+        Reader(DataInputStream in, Iterator<SuiteResult> suitesAsIs) {
+            this.in = in;
+            this.suitesAsIs = suitesAsIs;
+        }
+
+        SuiteResult readSuite() throws IOException {
+            long kind = readNumber();
+            if (kind == SUITE_AS_IS) {
+                if (!suitesAsIs.hasNext()) {
+                    throw new IOException("Missing test suite sent as it is");
+                }
+                return suitesAsIs.next();
+            }
+            if (kind != COMPACT_SUITE) {
+                throw new IOException("Invalid test suite kind " + kind);
+            }
+            String suiteName = readName();
+            String suiteStdout = readString();
+            String suiteStderr = readString();
+            float suiteDuration = readDuration();
+            String timestamp = readString();
+            SuiteResult suite = new SuiteResult(suiteName, suiteStdout, suiteStderr, null);
+            long caseCount = readNumber();
+            for (long i = 0; i < caseCount; i++) {
+                String packageName = readName();
+                String simpleClassName = readName();
+                String className = packageName == null ? simpleClassName : packageName + "." + simpleClassName;
+                if (className != null) {
+                    className = classNames.computeIfAbsent(className, name -> name);
+                }
+                String testName = readString();
+                String errorDetails = readString();
+                String skippedMessage = readString();
+                float duration = readDuration();
+                String stdout = readString();
+                String stderr = readString();
+                String errorStackTrace = readString();
+                suite.addCase(new CaseResult(
+                        suite,
+                        className,
+                        testName,
+                        errorDetails,
+                        skippedMessage,
+                        duration,
+                        stdout,
+                        stderr,
+                        errorStackTrace));
+            }
+            // adding the cases may have summed up their durations, the suite keeps the one it was written with
+            suite.setDuration(suiteDuration);
+            suite.setTimestamp(timestamp);
+            return suite;
+        }
+
+        private String readName() throws IOException {
+            long reference = readNumber();
+            if (reference == NULL) {
+                return null;
+            }
+            if (reference == NEW_NAME) {
+                String name = readBytes(readNumber());
+                names.add(name);
+                return name;
+            }
+            long index = reference - NAME_INDEX_OFFSET;
+            if (index >= names.size()) {
+                throw new IOException("Invalid name reference " + reference);
+            }
+            return names.get((int) index);
+        }
+
+        private String readString() throws IOException {
+            long length = readNumber();
+            return length == NULL ? null : readBytes(length);
+        }
+
+        private String readBytes(long lengthPlusOne) throws IOException {
+            if (lengthPlusOne <= 0 || lengthPlusOne > Integer.MAX_VALUE) {
+                throw new IOException("Invalid string length " + lengthPlusOne);
+            }
+            byte[] utf8 = new byte[(int) lengthPlusOne - 1];
+            in.readFully(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        private float readDuration() throws IOException {
+            return (float) (unZigZag(readNumber()) / 1_000_000.0);
+        }
+
+        private long readNumber() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Invalid number");
+        }
+
+        private static long unZigZag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -1,11 +1,19 @@
 package hudson.plugins.nunit;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FilterReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
@@ -16,27 +24,301 @@ import org.apache.commons.io.input.BOMInputStream;
  */
 public class InvalidXmlStreamReader extends FilterReader {
     private static class Source {
+        /** The bytes of a mapped file the xml declaration is read from, the buffer size of the stream otherwise. */
+        private static final int PROLOG_SIZE = 8192;
+
+        /** The bytes the xml declaration is looked for in without a parser, much longer than any declaration. */
+        private static final int SNIFFED_SIZE = 256;
+
+        private static final byte[] UTF8_BYTE_ORDER_MARK = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+        /** Looking up and creating a factory for every report costs more than reading a small report. */
+        private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newFactory();
+
         public final String version;
         public final Reader reader;
 
         public Source(InputStream in) throws IOException {
+            if (in instanceof MappedFileInputStream) {
+                // the byte order mark and the encoding are read from the mapped file, nothing is buffered
+                MappedFileInputStream mapped = (MappedFileInputStream) in;
+                byte[] head = mapped.peek(PROLOG_SIZE);
+                int start = hasByteOrderMark(head) ? UTF8_BYTE_ORDER_MARK.length : 0;
+                mapped.skipStart(start);
+                String[] prolog = new PrologSniffer(head, start, head.length).sniff();
+                if (prolog == null) {
+                    prolog = readProlog(new ByteArrayInputStream(head, start, head.length - start));
+                }
+                version = prolog[1];
+                reader = isUtf8(prolog[0]) ? new Utf8Reader(mapped) : new InputStreamReader(mapped, prolog[0]);
+                return;
+            }
             InputStream is = new BufferedInputStream(
                     BOMInputStream.builder().setInputStream(in).get());
             is.mark(1024);
-            String encoding;
+            byte[] head = is.readNBytes(SNIFFED_SIZE);
+            is.reset();
+            String[] prolog = new PrologSniffer(head, 0, head.length).sniff();
+            if (prolog == null) {
+                is.mark(1024);
+                prolog = readProlog(is);
+                is.reset();
+            }
+            version = prolog[1];
+            reader = isUtf8(prolog[0]) ? new Utf8Reader(is) : new InputStreamReader(is, prolog[0]);
+        }
+
+        /**
+         * @return the encoding and the version declared by the xml declaration, which are null if not declared
+         */
+        private static String[] readProlog(InputStream is) throws IOException {
             try {
-                XMLStreamReader xsr = XMLInputFactory.newFactory().createXMLStreamReader(is);
+                XMLStreamReader xsr = XML_INPUT_FACTORY.createXMLStreamReader(is);
                 try {
-                    encoding = xsr.getCharacterEncodingScheme();
-                    version = xsr.getVersion();
+                    return new String[] {xsr.getCharacterEncodingScheme(), xsr.getVersion()};
                 } finally {
                     xsr.close();
                 }
             } catch (XMLStreamException e) {
                 throw new IOException(e);
             }
-            is.reset();
-            reader = new InputStreamReader(is, encoding == null ? "UTF-8" : encoding);
+        }
+
+        private static boolean isUtf8(String encoding) {
+            return encoding == null || "UTF-8".equalsIgnoreCase(encoding) || "UTF8".equalsIgnoreCase(encoding);
+        }
+
+        private static boolean hasByteOrderMark(byte[] head) {
+            if (head.length < UTF8_BYTE_ORDER_MARK.length) {
+                return false;
+            }
+            for (int i = 0; i < UTF8_BYTE_ORDER_MARK.length; i++) {
+                if (head[i] != UTF8_BYTE_ORDER_MARK[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reads the xml declaration of the common reports without an xml parser: reports starting with an ASCII xml
+     * declaration of XML 1.0 that declares UTF-8 or no encoding, and reports starting with an element or a comment. Any
+     * other start, including a declaration the parser would reject, is left to the parser, so that the encoding, the
+     * version and the errors stay the same as those of the parser.
+     */
+    static final class PrologSniffer {
+        /** The bytes the parser decodes to find out whether a document starts with an xml declaration. */
+        private static final int DECLARATION_CHECK_SIZE = 6;
+
+        private final byte[] bytes;
+        private final int end;
+        private int position;
+
+        PrologSniffer(byte[] bytes, int offset, int end) {
+            this.bytes = bytes;
+            this.position = offset;
+            this.end = end;
+        }
+
+        /**
+         * @return the encoding and the version declared by the xml declaration, which are null if not declared, or
+         *     null if the parser is needed to read them
+         */
+        String[] sniff() {
+            if (!literal("<?xml")) {
+                return startsWithMarkup() ? new String[2] : null;
+            }
+            if (!space() || !literal("version")) {
+                return null;
+            }
+            // the parser reads further into XML 1.1 documents, they are left to it
+            String version = value();
+            if (!"1.0".equals(version)) {
+                return null;
+            }
+            String encoding = null;
+            boolean spaced = space();
+            if (spaced && literal("encoding")) {
+                encoding = value();
+                if (!"UTF-8".equalsIgnoreCase(encoding)) {
+                    return null;
+                }
+                spaced = space();
+            }
+            if (spaced && literal("standalone")) {
+                String standalone = value();
+                if (!"yes".equals(standalone) && !"no".equals(standalone)) {
+                    return null;
+                }
+                space();
+            }
+            return literal("?>") ? new String[] {encoding, version} : null;
+        }
+
+        /**
+         * @return whether the bytes start with an element or a comment in ASCII, anything but a processing instruction
+         */
+        private boolean startsWithMarkup() {
+            if (end - position < 2 || bytes[position] != '<' || bytes[position + 1] == '?') {
+                return false;
+            }
+            for (int i = position; i < Math.min(end, position + DECLARATION_CHECK_SIZE); i++) {
+                if (bytes[i] <= 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the quoted value following an equals sign, or null if there is none
+         */
+        private String value() {
+            space();
+            if (!literal("=")) {
+                return null;
+            }
+            space();
+            if (position == end || (bytes[position] != '"' && bytes[position] != '\'')) {
+                return null;
+            }
+            byte quote = bytes[position];
+            for (int i = position + 1; i < end && bytes[i] > 0; i++) {
+                if (bytes[i] == quote) {
+                    String value = new String(bytes, position + 1, i - position - 1, StandardCharsets.US_ASCII);
+                    position = i + 1;
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return whether there is white space, which is skipped
+         */
+        private boolean space() {
+            int start = position;
+            while (position < end
+                    && (bytes[position] == ' '
+                            || bytes[position] == '\t'
+                            || bytes[position] == '\r'
+                            || bytes[position] == '\n')) {
+                position++;
+            }
+            return position > start;
+        }
+
+        /**
+         * @return whether the given ASCII text follows, which is skipped
+         */
+        private boolean literal(String text) {
+            if (end - position < text.length()) {
+                return false;
+            }
+            for (int i = 0; i < text.length(); i++) {
+                if (bytes[position + i] != text.charAt(i)) {
+                    return false;
+                }
+            }
+            position += text.length();
+            return true;
+        }
+    }
+
+    /**
+     * Decodes UTF-8 straight into the buffers of the caller, instead of through the char buffer of an
+     * {@link InputStreamReader}. Malformed input is replaced the same way {@link InputStreamReader} does.
+     */
+    private static class Utf8Reader extends Reader {
+        private static final int BUFFER_SIZE = 16 * 1024;
+
+        /**
+         * The bytes copied from a mapped file at once. The decoder is much faster on a heap buffer than on the mapped
+         * memory itself, so large chunks are copied instead of decoding the mapped memory in place.
+         */
+        private static final int MAPPED_BUFFER_SIZE = 256 * 1024;
+
+        private final InputStream in;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8
+                .newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer bytes;
+        private boolean endOfInput;
+        private boolean flushed;
+        /** The low surrogate of a character of which only the high surrogate fitted in the buffer, or -1. */
+        private int pendingChar = -1;
+
+        Utf8Reader(InputStream in) {
+            this.in = in;
+            int bufferSize = in instanceof MappedFileInputStream ? MAPPED_BUFFER_SIZE : BUFFER_SIZE;
+            this.bytes = ByteBuffer.allocate(bufferSize).flip();
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, cbuf.length);
+            if (len == 0) {
+                return 0;
+            }
+            if (pendingChar >= 0) {
+                cbuf[off] = (char) pendingChar;
+                pendingChar = -1;
+                return 1;
+            }
+            if (len == 1) {
+                // a supplementary character is decoded into two chars at once
+                char[] chars = new char[2];
+                int read = decode(chars, 0, 2);
+                if (read > 0) {
+                    cbuf[off] = chars[0];
+                    if (read == 2) {
+                        pendingChar = chars[1];
+                    }
+                    return 1;
+                }
+                return read;
+            }
+            return decode(cbuf, off, len);
+        }
+
+        private int decode(char[] cbuf, int off, int len) throws IOException {
+            CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+            while (!flushed) {
+                CoderResult result = decoder.decode(bytes, out, endOfInput);
+                if (result.isOverflow()) {
+                    break;
+                }
+                if (result.isError()) {
+                    result.throwException();
+                }
+                if (endOfInput) {
+                    if (decoder.flush(out).isUnderflow()) {
+                        flushed = true;
+                    }
+                    break;
+                }
+                if (out.position() > off) {
+                    // return what is decoded instead of blocking for more input
+                    break;
+                }
+                bytes.compact();
+                int read = in.read(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+                if (read < 0) {
+                    endOfInput = true;
+                } else {
+                    bytes.position(bytes.position() + read);
+                }
+                bytes.flip();
+            }
+            int decoded = out.position() - off;
+            return decoded == 0 && flushed ? -1 : decoded;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
         }
     }
 
@@ -108,11 +390,29 @@ public class InvalidXmlStreamReader extends FilterReader {
             return -1;
         }
 
-        for (int readPos = off; readPos < off + read; readPos++) {
+        int end = off + read;
+        for (int readPos = firstInvalid(cbuf, off, end); readPos < end; readPos++) {
             if (!isValid(cbuf[readPos])) {
                 cbuf[readPos] = replacement;
             }
         }
         return read;
     }
+
+    /**
+     * Finds the first character that is not valid in any xml version, or could be invalid in this one. Nearly all
+     * characters of a report are printable characters of the basic multilingual plane, which are checked with a
+     * single comparison each, so that a block without invalid characters is not touched again.
+     *
+     * @return the index of the first character that needs to be checked, or <code>end</code> if there is none
+     */
+    private static int firstInvalid(char[] cbuf, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = cbuf[i];
+            if (c < 0x20 || c >= 0xD800) {
+                return i;
+            }
+        }
+        return end;
+    }
 }
@@ -0,0 +1,402 @@
+package hudson.plugins.nunit;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the JUnit files written for one NUnit report.
+ *
+ * <p>The files are numbered in the order the test suites appear in the report, but a test suite is only known to be
+ * written once its first test case is seen, and it can only be written once it is closed. Every test suite therefore
+ * reserves a {@link Slot} when it starts. A suite written before the suites preceding it are decided goes to a
+ * temporary file which is renamed once its index is known.
+ *
+ * <p>The content of a large test suite can be kept in a {@link Buffer}, which moves to a temporary file once it grows
+ * too large, so that the memory used does not grow with the size of the test suites.
+ *
+ * <p>Alternatively all test suites of the report are written to a single JUnit file with a <code>testsuites</code>
+ * root, in the order they are completed. The slots are then only used to decide which test suites are written.
+ *
+ * <p>The test suites of a region of the report read on another thread, see {@link NUnitReportRegions}, are written to
+ * temporary files of the region, and {@link #add(JUnitReportFiles) added} to the files of the report at the place of
+ * the region once it is read.
+ */
+class JUnitReportFiles {
+
+    /** The number of characters a {@link Buffer} keeps in memory. */
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    class Slot {
+        private boolean decided;
+        private boolean written;
+        private int index = -1;
+        private String suiteName;
+        private File pendingFile;
+    }
+
+    private final File junitOutputPath;
+    private final int transformCount;
+    private final boolean singleFile;
+    /** The number of the region of the report, or -1 for the whole report. */
+    private final int region;
+    /** The slots of the test suites written in a region, in the order of the report, or null for the whole report. */
+    private final List<Slot> regionSlots;
+    private final Deque<Slot> undecided = new ArrayDeque<>();
+    private final Set<File> files = new LinkedHashSet<>();
+    private final Set<Buffer> spilledBuffers = new LinkedHashSet<>();
+
+    /** The writer of the single JUnit file, once the first test suite is written to it. */
+    private Writer singleFileWriter;
+    /** The single JUnit file, or the temporary file of the test suites of a region. */
+    private File singleJUnitFile;
+    private int nextIndex;
+    private int pendingCount;
+
+    /**
+     * Content of a JUnit report that is kept in memory until it grows larger than {@link #BUFFER_SIZE} characters,
+     * and is then written to a temporary file.
+     */
+    class Buffer implements Appendable {
+        private final StringBuilder text = new StringBuilder();
+        private File file;
+        private Writer writer;
+
+        @Override
+        public Buffer append(CharSequence csq) throws IOException {
+            return append(csq, 0, csq.length());
+        }
+
+        @Override
+        public Buffer append(CharSequence csq, int start, int end) throws IOException {
+            if (writer != null) {
+                writer.append(csq, start, end);
+            } else {
+                text.append(csq, start, end);
+                spillIfFull();
+            }
+            return this;
+        }
+
+        @Override
+        public Buffer append(char c) throws IOException {
+            if (writer != null) {
+                writer.append(c);
+            } else {
+                text.append(c);
+                spillIfFull();
+            }
+            return this;
+        }
+
+        private void spillIfFull() throws IOException {
+            if (text.length() <= BUFFER_SIZE) {
+                return;
+            }
+            file = newTemporaryFile("buffer");
+            files.add(file);
+            spilledBuffers.add(this);
+            writer = new BufferedWriter(
+                    new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8));
+            writer.append(text);
+            text.setLength(0);
+            text.trimToSize();
+        }
+
+        /**
+         * Writes the content and releases the temporary file, if any. Nothing can be appended afterwards.
+         */
+        void writeTo(Writer out) throws IOException {
+            if (writer == null) {
+                out.append(text);
+                return;
+            }
+            close();
+            try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                reader.transferTo(out);
+            }
+            Files.delete(file.toPath());
+            files.remove(file);
+        }
+
+        /**
+         * Drops the content and releases the temporary file, if any. Nothing can be appended afterwards.
+         */
+        void discard() throws IOException {
+            if (writer == null) {
+                text.setLength(0);
+                return;
+            }
+            close();
+            Files.delete(file.toPath());
+            files.remove(file);
+        }
+
+        private void close() throws IOException {
+            spilledBuffers.remove(this);
+            writer.close();
+        }
+    }
+
+    JUnitReportFiles(File junitOutputPath, int transformCount) {
+        this(junitOutputPath, transformCount, false);
+    }
+
+    /**
+     * @param singleFile whether to write all test suites to a single JUnit file instead of a file per test suite
+     */
+    JUnitReportFiles(File junitOutputPath, int transformCount, boolean singleFile) {
+        this.junitOutputPath = junitOutputPath;
+        this.transformCount = transformCount;
+        this.singleFile = singleFile;
+        this.region = -1;
+        this.regionSlots = null;
+    }
+
+    private JUnitReportFiles(JUnitReportFiles report, int region) {
+        this.junitOutputPath = report.junitOutputPath;
+        this.transformCount = report.transformCount;
+        this.singleFile = report.singleFile;
+        this.region = region;
+        this.regionSlots = new ArrayList<>();
+    }
+
+    /**
+     * Keeps track of the files of a region of the report, which are added to these files once the region is read.
+     *
+     * @param region the number of the region, which keeps its temporary files apart from the ones of other regions
+     */
+    JUnitReportFiles newRegion(int region) {
+        return new JUnitReportFiles(this, region);
+    }
+
+    /**
+     * Reserves the slot of a test suite that may or may not be written.
+     */
+    Slot reserve() {
+        Slot slot = new Slot();
+        undecided.add(slot);
+        return slot;
+    }
+
+    /**
+     * Reserves the slot of a test suite that will be written.
+     */
+    Slot reserveWritten() throws IOException {
+        Slot slot = reserve();
+        decide(slot, true);
+        return slot;
+    }
+
+    boolean isDecided(Slot slot) {
+        return slot.decided;
+    }
+
+    /**
+     * Records whether the test suite of the slot is written.
+     */
+    void decide(Slot slot, boolean written) throws IOException {
+        slot.decided = true;
+        slot.written = written;
+        while (!undecided.isEmpty() && undecided.peek().decided) {
+            Slot head = undecided.remove();
+            if (head.written) {
+                head.index = nextIndex++;
+                if (regionSlots != null) {
+                    regionSlots.add(head);
+                } else if (head.pendingFile != null) {
+                    File target = getFile(head);
+                    Files.move(head.pendingFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    files.remove(head.pendingFile);
+                    files.add(target);
+                    head.pendingFile = null;
+                }
+            }
+        }
+    }
+
+    Buffer newBuffer() {
+        return new Buffer();
+    }
+
+    /**
+     * Writes a test suite that has been decided to be written.
+     *
+     * @param slot the slot of the test suite
+     * @param suiteName the name of the test suite, used for the file name
+     * @param attributes the attributes of the <code>testsuite</code> element
+     * @param content the children of the <code>testsuite</code> element, as written by {@link JUnitXmlWriter}
+     */
+    void write(Slot slot, String suiteName, Map<String, String> attributes, CharSequence content)
+            throws IOException {
+        write(slot, suiteName, attributes, content, null);
+    }
+
+    /**
+     * Writes a test suite that has been decided to be written.
+     *
+     * @param slot the slot of the test suite
+     * @param suiteName the name of the test suite, used for the file name
+     * @param attributes the attributes of the <code>testsuite</code> element
+     * @param content the first children of the <code>testsuite</code> element, as written by {@link JUnitXmlWriter}
+     * @param moreContent the remaining children of the <code>testsuite</code> element, or null
+     */
+    void write(
+            Slot slot, String suiteName, Map<String, String> attributes, CharSequence content, Buffer moreContent)
+            throws IOException {
+        if (singleFile) {
+            openSingleFile();
+            singleFileWriter.write(System.lineSeparator());
+            writeTestSuite(singleFileWriter, attributes, content, moreContent);
+            return;
+        }
+        slot.suiteName = suiteName;
+        File file;
+        if (slot.index >= 0 && regionSlots == null) {
+            file = getFile(slot);
+        } else {
+            file = newTemporaryFile("pending");
+            slot.pendingFile = file;
+        }
+        files.add(file);
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8))) {
+            writer.write(JUnitXmlWriter.XML_DECLARATION);
+            writeTestSuite(writer, attributes, content, moreContent);
+        }
+    }
+
+    private void openSingleFile() throws IOException {
+        if (singleFileWriter != null) {
+            return;
+        }
+        singleJUnitFile = regionSlots != null
+                ? newTemporaryFile("region")
+                : NUnitReportTransformer.getJUnitReportFile(junitOutputPath, transformCount);
+        files.add(singleJUnitFile);
+        singleFileWriter = new BufferedWriter(
+                new OutputStreamWriter(Files.newOutputStream(singleJUnitFile.toPath()), StandardCharsets.UTF_8));
+        if (regionSlots == null) {
+            singleFileWriter.write(JUnitXmlWriter.XML_DECLARATION);
+            singleFileWriter.write("<testsuites>");
+        }
+    }
+
+    private static void writeTestSuite(
+            Writer writer, Map<String, String> attributes, CharSequence content, Buffer moreContent)
+            throws IOException {
+        writer.write("<testsuite");
+        JUnitXmlWriter.writeAttributes(writer, attributes);
+        writer.write('>');
+        writer.append(content);
+        if (moreContent != null) {
+            moreContent.writeTo(writer);
+        }
+        writer.write(System.lineSeparator());
+        writer.write("    </testsuite>");
+    }
+
+    /**
+     * Completes the single JUnit file, if any test suite was written to it.
+     */
+    void finish() throws IOException {
+        if (singleFileWriter != null) {
+            if (regionSlots == null) {
+                singleFileWriter.write(System.lineSeparator());
+                singleFileWriter.write("</testsuites>");
+            }
+            singleFileWriter.close();
+            singleFileWriter = null;
+        }
+    }
+
+    /**
+     * Adds the test suites of a finished region of the report, as if they were written at the current place in the
+     * report. The temporary files of the region are moved or copied into the files of the report.
+     *
+     * @param regionFiles the files of the region
+     */
+    void add(JUnitReportFiles regionFiles) throws IOException {
+        if (singleFile) {
+            if (regionFiles.singleJUnitFile != null) {
+                openSingleFile();
+                try (Reader reader =
+                        Files.newBufferedReader(regionFiles.singleJUnitFile.toPath(), StandardCharsets.UTF_8)) {
+                    reader.transferTo(singleFileWriter);
+                }
+            }
+        } else {
+            for (Slot regionSlot : regionFiles.regionSlots) {
+                Slot slot = reserveWritten();
+                slot.suiteName = regionSlot.suiteName;
+                if (regionSlot.pendingFile == null) {
+                    // test suites read directly into results have no file
+                    continue;
+                }
+                File file;
+                if (slot.index >= 0) {
+                    file = getFile(slot);
+                } else {
+                    file = newTemporaryFile("pending");
+                    slot.pendingFile = file;
+                }
+                Files.move(regionSlot.pendingFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                regionFiles.files.remove(regionSlot.pendingFile);
+                files.add(file);
+            }
+        }
+        regionFiles.deleteAll();
+    }
+
+    /**
+     * Deletes all files written so far.
+     */
+    void deleteAll() {
+        if (singleFileWriter != null) {
+            try {
+                singleFileWriter.close();
+            } catch (IOException e) {
+                // the file is deleted anyway
+            }
+            singleFileWriter = null;
+        }
+        for (Buffer buffer : new ArrayList<>(spilledBuffers)) {
+            try {
+                buffer.close();
+            } catch (IOException e) {
+                // the file is deleted anyway
+            }
+        }
+        for (File file : files) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                // best effort, the directory is removed after publishing anyway
+            }
+        }
+        files.clear();
+    }
+
+    private File newTemporaryFile(String prefix) {
+        String regionPart = region >= 0 ? "_r" + region : "";
+        return new File(
+                junitOutputPath, "." + prefix + "-" + transformCount + regionPart + "_" + pendingCount++ + ".tmp");
+    }
+
+    private File getFile(Slot slot) {
+        return NUnitReportTransformer.getJUnitOutputFile(junitOutputPath, slot.suiteName, transformCount, slot.index);
+    }
+}
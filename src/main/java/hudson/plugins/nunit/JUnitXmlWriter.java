@@ -0,0 +1,264 @@
+package hudson.plugins.nunit;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes the content of a JUnit <code>testsuite</code> element exactly as the XSL based pipeline of
+ * {@link NUnitReportTransformer} does. That pipeline serializes the XSL result with indentation, parses it into a DOM
+ * and writes every <code>testsuite</code> element out again, so this writer reproduces the indentation rules of the
+ * JDK serializer, the attribute ordering of the DOM and the CDATA handling of <code>system-out</code> and
+ * <code>system-err</code>.
+ */
+class JUnitXmlWriter {
+
+    static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private static final int INDENT_AMOUNT = 4;
+
+    private static class Element {
+        final String name;
+        final int depth;
+        final boolean cdataSection;
+        int childNodeNum;
+        boolean startTagOpen = true;
+
+        Element(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+            this.cdataSection = "system-out".equals(name) || "system-err".equals(name);
+        }
+    }
+
+    private final Appendable out;
+    private final int parentDepth;
+    private final Deque<Element> elements = new ArrayDeque<>();
+    private final List<String> characters = new ArrayList<>();
+    private boolean prevText;
+    private boolean cdataTagOpen;
+
+    /**
+     * @param out where to write the elements to
+     * @param parentDepth the nesting depth of the element the written elements are children of, the
+     *     <code>testsuites</code> element having a depth of 1
+     */
+    JUnitXmlWriter(Appendable out, int parentDepth) {
+        this.out = out;
+        this.parentDepth = parentDepth;
+    }
+
+    void startElement(String name, Map<String, String> attributes) throws IOException {
+        Element parent = elements.peek();
+        if (parent != null) {
+            parent.childNodeNum++;
+            flushCharacters();
+            closeStartTag(parent);
+            if (cdataTagOpen) {
+                closeCDATA();
+            }
+        }
+        indent(parent == null ? parentDepth : parent.depth);
+        out.append('<').append(name);
+        writeAttributes(out, attributes);
+        elements.push(new Element(name, parent == null ? parentDepth + 1 : parent.depth + 1));
+        prevText = false;
+    }
+
+    void characters(String text) throws IOException {
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        Element current = elements.element();
+        closeStartTag(current);
+        if (current.cdataSection) {
+            cdata(current, text);
+            return;
+        }
+        if (cdataTagOpen) {
+            closeCDATA();
+        }
+        characters.add(text);
+    }
+
+    void endElement() throws IOException {
+        flushCharacters();
+        Element current = elements.pop();
+        if (current.startTagOpen) {
+            out.append("/>");
+        } else {
+            if (cdataTagOpen) {
+                closeCDATA();
+            }
+            if (current.childNodeNum > 1 || !prevText) {
+                indent(current.depth - 1);
+            }
+            out.append("</").append(current.name).append('>');
+        }
+        prevText = false;
+    }
+
+    private void closeStartTag(Element element) throws IOException {
+        if (element.startTagOpen) {
+            out.append('>');
+            element.startTagOpen = false;
+        }
+    }
+
+    private void flushCharacters() throws IOException {
+        if (characters.isEmpty()) {
+            return;
+        }
+        Element current = elements.element();
+        current.childNodeNum++;
+        boolean skipBeginningNewlines = false;
+        if (current.childNodeNum > 1) {
+            indent(current.depth);
+            skipBeginningNewlines = true;
+        }
+        for (String text : characters) {
+            int start = 0;
+            while (skipBeginningNewlines && start < text.length() && text.charAt(start) == '\n') {
+                start++;
+            }
+            if (start < text.length()) {
+                skipBeginningNewlines = false;
+                writeText(out, text, start);
+                prevText = true;
+            }
+        }
+        characters.clear();
+    }
+
+    private void cdata(Element current, String text) throws IOException {
+        if (!cdataTagOpen && current.childNodeNum > 1) {
+            indent(current.depth);
+        }
+        char first = text.charAt(0);
+        boolean writeCDataBrackets = !Character.isSurrogate(first) && !isEscapedControl(first);
+        if (!writeCDataBrackets) {
+            writeText(out, text, 0);
+            prevText = true;
+            return;
+        }
+        if (!cdataTagOpen) {
+            out.append("<![CDATA[");
+            cdataTagOpen = true;
+        }
+        int start = 0;
+        int end;
+        while ((end = text.indexOf("]]>", start)) >= 0) {
+            writeCDataText(text, start, end + 2);
+            out.append("]]><![CDATA[>");
+            start = end + 3;
+        }
+        writeCDataText(text, start, text.length());
+        if (text.charAt(text.length() - 1) == ']') {
+            closeCDATA();
+        }
+        prevText = true;
+    }
+
+    private void writeCDataText(String text, int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                out.append(LINE_SEPARATOR);
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private void closeCDATA() throws IOException {
+        out.append("]]>");
+        cdataTagOpen = false;
+    }
+
+    private void indent(int depth) throws IOException {
+        out.append(LINE_SEPARATOR);
+        for (int i = 0; i < depth * INDENT_AMOUNT; i++) {
+            out.append(' ');
+        }
+    }
+
+    /**
+     * Writes the attributes sorted by name, as the DOM of the XSL based pipeline does.
+     */
+    static void writeAttributes(Appendable out, Map<String, String> attributes) throws IOException {
+        for (Map.Entry<String, String> attribute : new TreeMap<>(attributes).entrySet()) {
+            out.append(' ').append(attribute.getKey()).append("=\"");
+            writeAttributeValue(out, attribute.getValue());
+            out.append('"');
+        }
+    }
+
+    private static void writeAttributeValue(Appendable out, String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                case '\n':
+                case '\r':
+                case '\t':
+                    out.append("&#").append(Integer.toString(c)).append(';');
+                    break;
+                default:
+                    if (isEscapedControl(c)) {
+                        out.append("&#").append(Integer.toString(c)).append(';');
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+    }
+
+    private static void writeText(Appendable out, String text, int start) throws IOException {
+        for (int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '\n':
+                    out.append(LINE_SEPARATOR);
+                    break;
+                case '\r':
+                    out.append("&#13;");
+                    break;
+                default:
+                    if (isEscapedControl(c)) {
+                        out.append("&#").append(Integer.toString(c)).append(';');
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+    }
+
+    private static boolean isEscapedControl(char c) {
+        return (c < 0x20 && c != '\t' && c != '\n' && c != '\r') || (c >= 0x7F && c <= 0x9F);
+    }
+}
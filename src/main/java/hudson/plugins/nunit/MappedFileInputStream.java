@@ -0,0 +1,115 @@
+package hudson.plugins.nunit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * Reads a file through memory mapped segments of it, instead of through read system calls that copy it from the
+ * kernel into a buffer of the process. A read copies straight from the mapped memory into the array of the caller.
+ * This saves that copy and the system calls, not the buffer of the reader on top: the UTF-8 reader of
+ * {@link InvalidXmlStreamReader} still copies the mapped memory into a heap buffer of its own, as it decodes that
+ * faster. A single mapping is limited to 2 GB, so a larger file is mapped one segment after the other.
+ *
+ * <p>Reports are only read this way if {@link NUnitArchiver#MIN_MAPPED_REPORT_SIZE} is set, as a mapped file stays
+ * mapped until the mapping is garbage collected.
+ */
+class MappedFileInputStream extends InputStream {
+
+    /** The size of the segments the file is mapped in. */
+    static final int SEGMENT_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private final int segmentSize;
+    /** The position in the file of the end of the current segment. */
+    private long position;
+    private ByteBuffer segment;
+
+    MappedFileInputStream(Path file) throws IOException {
+        this(file, SEGMENT_SIZE);
+    }
+
+    MappedFileInputStream(Path file, int segmentSize) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Returns the first bytes of the file, without reading them.
+     *
+     * @param length the maximum number of bytes to return
+     * @return the first bytes of the file, fewer than the given length if the file is shorter
+     */
+    byte[] peek(int length) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(length, size));
+        while (head.hasRemaining() && channel.read(head, head.position()) >= 0) {
+            // read until the buffer is full
+        }
+        return head.array();
+    }
+
+    /**
+     * Skips bytes at the start of the file, such as a byte order mark, before anything is read.
+     */
+    void skipStart(int length) {
+        if (position == 0 && segment == null) {
+            position = Math.min(length, size);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!hasRemaining()) {
+            return -1;
+        }
+        return segment.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+            return 0;
+        }
+        if (!hasRemaining()) {
+            return -1;
+        }
+        int read = Math.min(len, segment.remaining());
+        segment.get(b, off, read);
+        return read;
+    }
+
+    /**
+     * @return whether there are bytes left to read, after mapping the next segment if the current one is read
+     */
+    private boolean hasRemaining() throws IOException {
+        if (segment != null && segment.hasRemaining()) {
+            return true;
+        }
+        if (position >= size) {
+            return false;
+        }
+        long end = Math.min(size, position + segmentSize);
+        segment = channel.map(FileChannel.MapMode.READ_ONLY, position, end - position);
+        position = end;
+        return true;
+    }
+
+    @Override
+    public int available() {
+        return segment == null ? 0 : segment.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mapped segments are only released once they are garbage collected, the file stays mapped until then
+        segment = null;
+        channel.close();
+    }
+}
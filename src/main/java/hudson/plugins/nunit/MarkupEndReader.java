@@ -0,0 +1,101 @@
+package hudson.plugins.nunit;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import javax.xml.stream.Location;
+
+/**
+ * Keeps track of where the last markup read from an XML document ends, so that a document that was cut off, e.g. by a
+ * test run that crashed while it wrote its report, can be told apart from a malformed one. The lines and columns are
+ * counted like the XML parser of the JDK counts them, a line ending with <code>\n</code>, <code>\r\n</code> or
+ * <code>\r</code>.
+ */
+class MarkupEndReader extends FilterReader {
+
+    private int line = 1;
+    /** The column of the next character. */
+    private int column = 1;
+
+    private boolean afterCarriageReturn;
+    /** The position of the last <code>&gt;</code>, or line 0 if none was read yet. */
+    private int markupEndLine;
+
+    private int markupEndColumn;
+    private boolean ended;
+
+    MarkupEndReader(Reader in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int c = super.read();
+        if (c < 0) {
+            ended = true;
+        } else {
+            track((char) c);
+        }
+        return c;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        int read = super.read(cbuf, off, len);
+        if (read < 0) {
+            ended = true;
+        }
+        for (int i = off; i < off + read; i++) {
+            track(cbuf[i]);
+        }
+        return read;
+    }
+
+    /** Reading the same characters again would count them twice. */
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void track(char c) {
+        switch (c) {
+            case '\n':
+                if (afterCarriageReturn) {
+                    afterCarriageReturn = false;
+                } else {
+                    nextLine();
+                }
+                return;
+            case '\r':
+                nextLine();
+                afterCarriageReturn = true;
+                return;
+            case '>':
+                markupEndLine = line;
+                markupEndColumn = column;
+                break;
+            default:
+                break;
+        }
+        afterCarriageReturn = false;
+        column++;
+    }
+
+    private void nextLine() {
+        line++;
+        column = 1;
+    }
+
+    /**
+     * @param location the location of an error the XML parser reported
+     * @return whether the error is caused by the document being cut off: the whole document was read, and the error
+     *     is after its last markup
+     */
+    boolean isCutOffAt(Location location) {
+        if (!ended || location == null || location.getLineNumber() < 0) {
+            return false;
+        }
+        return location.getLineNumber() > markupEndLine
+                || (location.getLineNumber() == markupEndLine && location.getColumnNumber() > markupEndColumn);
+    }
+}
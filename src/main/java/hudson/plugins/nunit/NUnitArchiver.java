@@ -1,38 +1,68 @@
 package hudson.plugins.nunit;
 
-import hudson.Util;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.model.TaskListener;
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 import jenkins.security.MasterToSlaveCallable;
-import org.apache.tools.ant.DirectoryScanner;
-import org.apache.tools.ant.types.FileSet;
+import jenkins.util.SystemProperties;
+import org.apache.commons.lang3.SerializationUtils;
 import org.xml.sax.SAXException;
 
 /**
  * Class responsible for transforming NUnit to JUnit files and then run them all through the JUnit result archiver.
+ * Matched files that are JUnit reports already are copied as they are, see {@link TestReportFormat}.
  *
  * @author Erik Ramfelt
  */
-public class NUnitArchiver extends MasterToSlaveCallable<Boolean, IOException> {
+public class NUnitArchiver extends MasterToSlaveCallable<Boolean, IOException>
+        implements NUnitPublishStatistics.Source {
 
     private static final long serialVersionUID = 1L;
 
     private static final Logger LOGGER = Logger.getLogger(NUnitArchiver.class.getName());
 
+    /**
+     * The size from which uncompressed NUnit reports are memory mapped instead of read through a buffered stream, in
+     * bytes, or <code>-1</code> to never map a report. A mapped report stays mapped until the mapping is garbage
+     * collected, and on Windows the report cannot be deleted or overwritten until then.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Modifiable from the script console")
+    public static long MIN_MAPPED_REPORT_SIZE =
+            SystemProperties.getLong(NUnitArchiver.class.getName() + ".minMappedReportSize", -1L);
+
     private final String root;
     private final String junitDirectoryName;
     private final TaskListener listener;
     private final String testResultsPattern;
     private final TestReportTransformer unitReportTransformer;
     private final boolean failIfNoResults;
+    private final int parallelism;
+    private String[] nunitReports;
 
     private int fileCount;
+    private final NUnitPublishStatistics statistics = new NUnitPublishStatistics();
+    private final AtomicBoolean waitReported = new AtomicBoolean();
+    private final AtomicInteger cacheHits = new AtomicInteger();
+    private final AtomicInteger cacheMisses = new AtomicInteger();
 
     public NUnitArchiver(
             String root,
@@ -41,69 +71,385 @@ public class NUnitArchiver extends MasterToSlaveCallable<Boolean, IOException> {
             String testResultsPattern,
             TestReportTransformer unitReportTransformer,
             boolean failIfNoResults) {
+        this(root, junitDirectoryName, listener, testResultsPattern, unitReportTransformer, failIfNoResults, 1);
+    }
+
+    /**
+     * @param parallelism the maximum number of NUnit reports transformed, or directories scanned for them, at the same
+     *     time, and of the threads a large report is read on by {@link NUnitStreamingReportTransformer}. Every thread
+     *     uses its own copy of the transformer, so the transformer must be {@link Serializable} if this is more than
+     *     one.
+     */
+    public NUnitArchiver(
+            String root,
+            String junitDirectoryName,
+            TaskListener listener,
+            String testResultsPattern,
+            TestReportTransformer unitReportTransformer,
+            boolean failIfNoResults,
+            int parallelism) {
         this.root = root;
         this.junitDirectoryName = junitDirectoryName;
         this.listener = listener;
         this.testResultsPattern = testResultsPattern;
         this.unitReportTransformer = unitReportTransformer;
         this.failIfNoResults = failIfNoResults;
+        this.parallelism = parallelism;
     }
 
     /** {@inheritDoc} */
     public Boolean call() throws IOException {
         boolean retValue = true;
-        String[] nunitFiles = findNUnitReports(new File(root));
+        String[] nunitFiles = nunitReports;
+        if (nunitFiles == null) {
+            long start = System.nanoTime();
+            nunitFiles = findNUnitReports(new File(root), testResultsPattern, parallelism);
+            statistics.addTimeSince(NUnitPublishStatistics.SCAN, start);
+        }
         if (nunitFiles.length > 0) {
             File junitOutputPath = new File(root, junitDirectoryName);
             if (junitOutputPath.mkdirs()) {
                 LOGGER.log(Level.FINEST, "Created junit directories");
             }
 
-            for (String nunitFileName : nunitFiles) {
-                try (FileInputStream fileStream = new FileInputStream(new File(root, nunitFileName))) {
-                    unitReportTransformer.transform(fileStream, junitOutputPath);
-                    fileCount++;
-                } catch (TransformerException te) {
-                    throw new IOException(
-                            "Could not transform the NUnit report. Please report this issue to the plugin author", te);
-                } catch (SAXException se) {
-                    throw new IOException(
-                            "Could not transform the NUnit report. Please report this issue to the plugin author", se);
-                } catch (ParserConfigurationException pce) {
-                    throw new IOException(
-                            "Could not initialize the XML parser. Please report this issue to the plugin author", pce);
+            // the transformers are not thread safe, and the report number keeps the junit file names independent of
+            // the order in which the reports are transformed
+            List<TestReportTransformer> usedTransformers = Collections.synchronizedList(new ArrayList<>());
+            ThreadLocal<TestReportTransformer> transformers = ThreadLocal.withInitial(() -> {
+                TestReportTransformer transformer = parallelism > 1
+                        ? (TestReportTransformer) SerializationUtils.clone((Serializable) unitReportTransformer)
+                        : unitReportTransformer;
+                usedTransformers.add(transformer);
+                return transformer;
+            });
+            long xslNanosBefore = getXslNanos(unitReportTransformer);
+            long splitNanosBefore = getSplitNanos(unitReportTransformer);
+            NUnitReportExecutor.run(nunitFiles, parallelism, (index, nunitFileName) -> {
+                // the transformer of a thread is only created once it converts a NUnit report
+                File nunitFile = new File(root, nunitFileName);
+                switch (TestReportFormat.of(nunitFile)) {
+                    case JUNIT:
+                        listener.getLogger().println("Recording " + nunitFileName + " as it is, a JUnit report");
+                        copyJUnitReport(nunitFile, getJUnitReportCopy(junitOutputPath, index + 1));
+                        break;
+                    case OTHER:
+                        reportSkipped(listener, nunitFileName);
+                        break;
+                    default:
+                        if (!transform(transformers, nunitFile, junitOutputPath, index + 1)) {
+                            reportCutOff(listener, nunitFileName, statistics);
+                        }
                 }
+                return null;
+            });
+            fileCount += nunitFiles.length;
+            NUnitConversionCache.getAgentCache().report(listener, cacheHits.get(), cacheMisses.get());
+
+            if (unitReportTransformer instanceof NUnitReportTransformer) {
+                long xslNanos = 0;
+                long splitNanos = 0;
+                for (TestReportTransformer transformer : usedTransformers) {
+                    xslNanos += getXslNanos(transformer);
+                    splitNanos += getSplitNanos(transformer);
+                }
+                // the copies of the transformer start from nothing, the transformer itself may have been used before
+                if (usedTransformers.contains(unitReportTransformer)) {
+                    xslNanos -= xslNanosBefore;
+                    splitNanos -= splitNanosBefore;
+                }
+                statistics.addTime(NUnitPublishStatistics.XSLT, xslNanos);
+                statistics.addTime(NUnitPublishStatistics.SPLIT, splitNanos);
+            }
+            statistics.addFilesRead(nunitFiles.length, getSize(new File(root), nunitFiles));
+            statistics.addBytesWritten(getSize(junitOutputPath, junitOutputPath.list()));
+
+            if (unitReportTransformer instanceof NUnitReportTransformer) {
+                listener.getLogger()
+                        .println("Compiled NUnit XSL cache: " + NUnitReportTransformer.getTemplatesCacheHits()
+                                + " hits, " + NUnitReportTransformer.getTemplatesCacheMisses() + " misses");
             }
         } else {
+            reportNoNUnitReports(listener, failIfNoResults);
             retValue = false;
         }
 
         return retValue;
     }
 
+    /**
+     * Converts a NUnit report, unless its conversion is found in the {@link NUnitConversionCache cache}. The
+     * conversion of a report that was cut off is not cached, so that it is reported again.
+     *
+     * @return whether the whole report was converted
+     */
+    private boolean transform(
+            ThreadLocal<TestReportTransformer> transformers, File nunitFile, File junitOutputPath, int reportNumber)
+            throws IOException {
+        NUnitConversionCache cache = NUnitConversionCache.getAgentCache();
+        String conversion = cache.isEnabled() ? NUnitConversionCache.getFilesConversion(unitReportTransformer) : null;
+        String key = conversion == null ? null : NUnitConversionCache.getKey(nunitFile, conversion);
+        if (key != null && cache.restoreJUnitFiles(key, junitOutputPath, reportNumber)) {
+            cacheHits.incrementAndGet();
+            return true;
+        }
+        boolean complete = transform(transformers.get(), nunitFile, junitOutputPath, reportNumber);
+        if (key != null) {
+            cacheMisses.incrementAndGet();
+            if (complete) {
+                cache.storeJUnitFiles(key, junitOutputPath, reportNumber);
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * @return whether the whole report was converted, see {@link NUnitStreamingReportTransformer}
+     */
+    private boolean transform(TestReportTransformer transformer, File nunitFile, File junitOutputPath, int reportNumber)
+            throws IOException {
+        try (NUnitConversionLimiter.Conversion conversion =
+                startConversion(transformer, nunitFile, listener, waitReported, statistics)) {
+            if (transformer instanceof NUnitStreamingReportTransformer) {
+                // a large report is read on several threads of its own
+                return ((NUnitStreamingReportTransformer) transformer)
+                        .transform(nunitFile, junitOutputPath, reportNumber, parallelism);
+            }
+            try (InputStream fileStream = openNUnitReport(nunitFile)) {
+                transformer.transform(fileStream, junitOutputPath, reportNumber);
+            }
+            return true;
+        } catch (TransformerException te) {
+            throw new IOException(
+                    "Could not transform the NUnit report. Please report this issue to the plugin author", te);
+        } catch (SAXException se) {
+            throw new IOException(
+                    "Could not transform the NUnit report. Please report this issue to the plugin author", se);
+        } catch (ParserConfigurationException pce) {
+            throw new IOException(
+                    "Could not initialize the XML parser. Please report this issue to the plugin author", pce);
+        }
+    }
+
+    /**
+     * @return the file a JUnit report matched by the test results pattern is copied to
+     */
+    static File getJUnitReportCopy(File junitOutputPath, int reportNumber) {
+        return new File(
+                junitOutputPath,
+                NUnitReportTransformer.JUNIT_FILE_PREFIX + "junit-report_" + reportNumber
+                        + NUnitReportTransformer.JUNIT_FILE_POSTFIX);
+    }
+
+    /**
+     * Copies a JUnit report matched by the test results pattern. An uncompressed report is linked instead, if the file
+     * system allows it, a compressed one is decompressed.
+     *
+     * @param junitReport the JUnit report, which may be compressed
+     * @param target the file to copy the report to, which must not exist
+     * @throws IOException if the report could not be copied
+     */
+    static void copyJUnitReport(File junitReport, File target) throws IOException {
+        Path source = junitReport.toPath();
+        if (Files.isRegularFile(source) && !isCompressed(source)) {
+            try {
+                Files.createLink(target.toPath(), source);
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                LOGGER.log(Level.FINE, "Could not link " + junitReport + ", copying it", e);
+            }
+        }
+        try (InputStream in = openNUnitReport(junitReport, -1)) {
+            Files.copy(in, target.toPath());
+        }
+    }
+
+    /**
+     * Reports that a file matched by the test results pattern is skipped, as it is neither a NUnit nor a JUnit report.
+     */
+    static void reportSkipped(TaskListener listener, String fileName) {
+        listener.getLogger().println("Skipping " + fileName + ", which is neither a NUnit nor a JUnit report");
+    }
+
+    /**
+     * Reports that a NUnit report ends early, e.g. because the test run crashed while it wrote the report, of which
+     * only the test suites completed before the end are recorded.
+     */
+    static void reportCutOff(TaskListener listener, String fileName, NUnitPublishStatistics statistics) {
+        listener.getLogger()
+                .println("NUnit report " + fileName + " ends early, recording the suites completed before its end");
+        statistics.addPartialFile();
+    }
+
+    /**
+     * Sets the NUnit report files to transform, instead of the files matching the test results pattern.
+     *
+     * @param nunitReports the names of the NUnit report files, relative to the root
+     */
+    public void setNUnitReports(String[] nunitReports) {
+        this.nunitReports = nunitReports.clone();
+    }
+
     int getFileCount() {
         return fileCount;
     }
 
+    @Override
+    public NUnitPublishStatistics getStatistics() {
+        return statistics;
+    }
+
+    private static long getXslNanos(TestReportTransformer transformer) {
+        return transformer instanceof NUnitReportTransformer ? ((NUnitReportTransformer) transformer).getXslNanos() : 0;
+    }
+
+    private static long getSplitNanos(TestReportTransformer transformer) {
+        return transformer instanceof NUnitReportTransformer
+                ? ((NUnitReportTransformer) transformer).getSplitNanos()
+                : 0;
+    }
+
+    /**
+     * @return the total size of the files in the directory
+     */
+    static long getSize(File directory, String[] fileNames) {
+        long size = 0;
+        if (fileNames != null) {
+            for (String fileName : fileNames) {
+                size += new File(directory, fileName).length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Starts converting a NUnit report once the {@link NUnitConversionLimiter limits of the agent} allow it. The first
+     * conversion of a publishing that has to wait is reported in the build log, and the time waited is recorded.
+     *
+     * @param transformer the transformer converting the report
+     * @param nunitFile the NUnit report file
+     * @param listener the listener of the build
+     * @param waitReported whether waiting has already been reported for the publishing
+     * @param statistics the statistics of the publishing
+     * @return the conversion, to close once it is done
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    static NUnitConversionLimiter.Conversion startConversion(
+            TestReportTransformer transformer,
+            File nunitFile,
+            TaskListener listener,
+            AtomicBoolean waitReported,
+            NUnitPublishStatistics statistics)
+            throws InterruptedIOException {
+        NUnitConversionLimiter limiter = NUnitConversionLimiter.getAgentLimiter();
+        NUnitConversionLimiter.Conversion conversion =
+                limiter.start(NUnitConversionLimiter.estimateMemory(transformer, nunitFile.length()), () -> {
+                    if (waitReported.compareAndSet(false, true)) {
+                        listener.getLogger()
+                                .println("Waiting for other NUnit report conversions on this agent to finish, "
+                                        + limiter.getDescription());
+                    }
+                });
+        if (conversion.getWaitNanos() > 0) {
+            statistics.addTime(NUnitPublishStatistics.QUEUE, conversion.getWaitNanos());
+        }
+        return conversion;
+    }
+
+    /**
+     * Opens a NUnit report file. Reports compressed with gzip or zip are recognized by their first bytes, whatever
+     * the name of the file, and are decompressed while they are read. Of a zip file, only the first file in it is
+     * read. Large uncompressed reports can be memory mapped, see {@link #MIN_MAPPED_REPORT_SIZE}, other files such
+     * as pipes are read through a buffered stream.
+     *
+     * @param nunitFile the NUnit report file
+     * @return the uncompressed content of the NUnit report
+     * @throws IOException if the file could not be opened
+     */
+    static InputStream openNUnitReport(File nunitFile) throws IOException {
+        return openNUnitReport(nunitFile, MIN_MAPPED_REPORT_SIZE);
+    }
+
+    static InputStream openNUnitReport(File nunitFile, long minMappedReportSize) throws IOException {
+        Path path = nunitFile.toPath();
+        if (minMappedReportSize >= 0 && Files.isRegularFile(path) && Files.size(path) >= minMappedReportSize) {
+            MappedFileInputStream mapped = new MappedFileInputStream(path);
+            byte[] magic = mapped.peek(4);
+            if (!isGzip(magic, magic.length) && !isZip(magic, magic.length)) {
+                return mapped;
+            }
+            mapped.close();
+        }
+        InputStream stream = new BufferedInputStream(Files.newInputStream(path));
+        try {
+            stream.mark(4);
+            byte[] magic = new byte[4];
+            int length = stream.readNBytes(magic, 0, magic.length);
+            stream.reset();
+            if (isGzip(magic, length)) {
+                return new GZIPInputStream(stream, 64 * 1024);
+            }
+            if (isZip(magic, length)) {
+                ZipInputStream zip = new ZipInputStream(stream);
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null && entry.isDirectory()) {
+                    // the report is the first file
+                }
+                return zip;
+            }
+            return stream;
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return whether the file is compressed with gzip or zip
+     */
+    static boolean isCompressed(Path path) throws IOException {
+        byte[] magic = new byte[4];
+        int length;
+        try (InputStream in = Files.newInputStream(path)) {
+            length = in.readNBytes(magic, 0, magic.length);
+        }
+        return isGzip(magic, length) || isZip(magic, length);
+    }
+
+    private static boolean isGzip(byte[] magic, int length) {
+        return length >= 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B;
+    }
+
+    private static boolean isZip(byte[] magic, int length) {
+        return length == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4;
+    }
+
     /**
      * Return all NUnit report files
      *
      * @param parentPath parent
+     * @param testResultsPattern the pattern of the NUnit report files
+     * @param parallelism the maximum number of directories scanned at the same time
      * @return an array of strings
      */
-    private String[] findNUnitReports(File parentPath) {
-        FileSet fs = Util.createFileSet(parentPath, testResultsPattern);
-        DirectoryScanner ds = fs.getDirectoryScanner();
-
-        String[] nunitFiles = ds.getIncludedFiles();
-        if (nunitFiles.length == 0) {
-            if (this.failIfNoResults) {
-                // no test result. Most likely a configuration error or fatal problem
-                listener.fatalError("No NUnit test report files were found. Configuration error?");
-            } else {
-                listener.getLogger().println("No NUnit test report files were found.");
-            }
+    static String[] findNUnitReports(File parentPath, String testResultsPattern, int parallelism) throws IOException {
+        return new NUnitReportScanner(testResultsPattern, null)
+                .scan(parentPath, parallelism)
+                .keySet()
+                .toArray(new String[0]);
+    }
+
+    /**
+     * Reports that no NUnit report files were found.
+     *
+     * @param listener listener to report missing files to
+     * @param failIfNoResults whether missing files are a fatal error
+     */
+    static void reportNoNUnitReports(TaskListener listener, boolean failIfNoResults) {
+        if (failIfNoResults) {
+            // no test result. Most likely a configuration error or fatal problem
+            listener.fatalError("No NUnit test report files were found. Configuration error?");
+        } else {
+            listener.getLogger().println("No NUnit test report files were found.");
         }
-        return nunitFiles;
     }
 }
@@ -0,0 +1,337 @@
+package hudson.plugins.nunit;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.model.TaskListener;
+import hudson.tasks.junit.SuiteResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import jenkins.util.SystemProperties;
+
+/**
+ * Caches the conversions of NUnit reports in the JVM of an agent, over all the builds publishing NUnit reports on it,
+ * so that a report published again, by a retried or cached stage or by several cells of a matrix, is not read again.
+ * A conversion is looked up by the SHA-256 digest of the report file together with the transformer and its settings,
+ * including the digest of <code>nunit-to-junit.xsl</code>. The JUnit files written for a report are kept deflated, the
+ * test suites read directly in their {@link CompactTestResult compact form}.
+ *
+ * <p>The cache is disabled unless it is given a size, see {@link #MAX_SIZE}. Once the conversions kept are larger than
+ * the size, the least recently used ones are dropped.
+ *
+ * <p>A cache that is enabled is not free: the digest has to be computed before the report is converted, so every report
+ * is read in full once more and hashed, whether it is found or not. A miss therefore costs more than converting without
+ * the cache, and it only pays off if the same reports are published again on the agent.
+ */
+final class NUnitConversionCache {
+
+    private static final String PROPERTY_PREFIX = NUnitConversionCache.class.getName();
+
+    /**
+     * The maximum size of the conversions kept on an agent, in bytes, or 0 to not keep any. A change applies from the
+     * next publishing on the agent.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Modifiable from the script console")
+    public static long MAX_SIZE = SystemProperties.getLong(PROPERTY_PREFIX + ".maxSize", 0L);
+
+    private static final NUnitConversionCache AGENT_CACHE = new NUnitConversionCache(MAX_SIZE);
+
+    private static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+
+    private static String xslDigest;
+
+    private long maxSize;
+    /** The conversions by key, the least recently used first. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size;
+
+    NUnitConversionCache(long maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * @return the cache of the conversions in this JVM, with the current {@link #MAX_SIZE}
+     */
+    static NUnitConversionCache getAgentCache() {
+        AGENT_CACHE.setMaxSize(MAX_SIZE);
+        return AGENT_CACHE;
+    }
+
+    /**
+     * Changes the maximum size of the conversions kept, dropping the least recently used ones that no longer fit.
+     */
+    synchronized void setMaxSize(long maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+        evict();
+    }
+
+    synchronized boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * @return the conversion of NUnit reports into JUnit files by the transformer, or null if its conversions are not
+     *     cached
+     */
+    static String getFilesConversion(TestReportTransformer transformer) throws IOException {
+        if (transformer instanceof NUnitReportTransformer) {
+            return "xsl:" + getXslDigest() + ":" + ((NUnitReportTransformer) transformer).isSingleJUnitFile();
+        }
+        if (transformer instanceof NUnitStreamingReportTransformer) {
+            NUnitStreamingReportTransformer streaming = (NUnitStreamingReportTransformer) transformer;
+            return "streaming:" + streaming.isSingleJUnitFile() + ":" + getOutputLimits(streaming);
+        }
+        return null;
+    }
+
+    /**
+     * @return the conversion of NUnit reports into test suites by the transformer
+     */
+    static String getSuitesConversion(NUnitStreamingReportTransformer transformer) {
+        return "suites:" + getOutputLimits(transformer);
+    }
+
+    private static String getOutputLimits(NUnitStreamingReportTransformer transformer) {
+        return transformer.getMaxTestCaseOutputLength() + ":" + transformer.getMaxTestSuiteOutputLength();
+    }
+
+    private static synchronized String getXslDigest() throws IOException {
+        if (xslDigest == null) {
+            try (InputStream xsl = NUnitReportTransformer.class.getResourceAsStream(
+                    NUnitReportTransformer.NUNIT_TO_JUNIT_XSLFILE_STR)) {
+                if (xsl == null) {
+                    throw new IOException("Could not find " + NUnitReportTransformer.NUNIT_TO_JUNIT_XSLFILE_STR);
+                }
+                xslDigest = digest(xsl);
+            }
+        }
+        return xslDigest;
+    }
+
+    /**
+     * @param report the NUnit report file, which is read as it is stored, compressed or not
+     * @param conversion the conversion of the report, see {@link #getFilesConversion(TestReportTransformer)} and
+     *     {@link #getSuitesConversion(NUnitStreamingReportTransformer)}
+     * @return the key of the conversion of the report
+     * @throws IOException if the report could not be read
+     */
+    static String getKey(File report, String conversion) throws IOException {
+        try (InputStream in = Files.newInputStream(report.toPath())) {
+            return digest(in) + ":" + conversion;
+        }
+    }
+
+    private static String digest(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            digest.update(buffer, 0, read);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @return the test suites of the conversion, or null if it is not cached
+     */
+    List<SuiteResult> getSuites(String key) throws IOException {
+        Object value = get(key);
+        return value instanceof CompactTestResult ? ((CompactTestResult) value).readSuites() : null;
+    }
+
+    /**
+     * Keeps the test suites of a conversion.
+     */
+    void putSuites(String key, Collection<SuiteResult> suites) throws IOException {
+        CompactTestResult.Writer writer = new CompactTestResult.Writer();
+        for (SuiteResult suite : suites) {
+            writer.write(suite);
+        }
+        CompactTestResult compact = writer.finish();
+        put(key, compact, compact.getSize());
+    }
+
+    /**
+     * Writes the JUnit files of a conversion for a NUnit report.
+     *
+     * @param junitOutputPath the directory to write the JUnit files to
+     * @param reportNumber the number of the NUnit report, which the names of the files are made of
+     * @return whether the conversion is cached, otherwise nothing is written
+     */
+    boolean restoreJUnitFiles(String key, File junitOutputPath, int reportNumber) throws IOException {
+        Object value = get(key);
+        if (!(value instanceof JUnitFiles)) {
+            return false;
+        }
+        ((JUnitFiles) value).write(junitOutputPath, reportNumber);
+        return true;
+    }
+
+    /**
+     * Keeps the JUnit files written for a NUnit report.
+     *
+     * @param junitOutputPath the directory the JUnit files were written to
+     * @param reportNumber the number of the NUnit report
+     */
+    void storeJUnitFiles(String key, File junitOutputPath, int reportNumber) throws IOException {
+        JUnitFiles files = JUnitFiles.read(junitOutputPath, reportNumber);
+        if (files != null) {
+            put(key, files, files.size);
+        }
+    }
+
+    private synchronized Object get(String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    private synchronized void put(String key, Object value, long valueSize) {
+        if (valueSize > maxSize) {
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(value, valueSize));
+        if (previous != null) {
+            size -= previous.size;
+        }
+        size += valueSize;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+        while (size > maxSize) {
+            size -= leastRecentlyUsed.next().size;
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Reports how many NUnit reports of a publishing were found in the cache, if it is enabled.
+     */
+    void report(TaskListener listener, int hits, int misses) {
+        if (isEnabled()) {
+            listener.getLogger()
+                    .println("NUnit conversion cache: " + hits + " hits, " + misses + " misses, " + getEntryCount()
+                            + " conversions in " + getSize() + " of " + getMaxSize() + " bytes");
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long size;
+
+        Entry(Object value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * The JUnit files written for a NUnit report, without the number of the report and the directory they were written
+     * to. The names are made again with those of the report they are written for, see
+     * {@link NUnitReportTransformer#getJUnitOutputFile(File, String, int, int)}.
+     */
+    private static final class JUnitFiles {
+        /** The names of the test suites of the files, or null for a single file with all test suites. */
+        private final List<String> suiteNames = new ArrayList<>();
+
+        private final List<Integer> indexes = new ArrayList<>();
+        private final List<byte[]> contents = new ArrayList<>();
+        private long size;
+
+        /**
+         * @return the files written for the report, or null if they cannot be kept
+         */
+        static JUnitFiles read(File junitOutputPath, int reportNumber) throws IOException {
+            String singleFileName =
+                    NUnitReportTransformer.getJUnitReportFile(junitOutputPath, reportNumber).getName();
+            Pattern suiteFileName = Pattern.compile(Pattern.quote(NUnitReportTransformer.JUNIT_FILE_PREFIX) + "(.*)_"
+                    + reportNumber + "_(\\d+)" + Pattern.quote(NUnitReportTransformer.JUNIT_FILE_POSTFIX));
+            String[] fileNames = junitOutputPath.list();
+            if (fileNames == null) {
+                return null;
+            }
+            JUnitFiles files = new JUnitFiles();
+            for (String fileName : fileNames) {
+                File file = new File(junitOutputPath, fileName);
+                if (fileName.equals(singleFileName)) {
+                    files.add(null, 0, file);
+                    continue;
+                }
+                Matcher matcher = suiteFileName.matcher(fileName);
+                if (matcher.matches()) {
+                    String suiteName = matcher.group(1);
+                    int index = Integer.parseInt(matcher.group(2));
+                    // a name that was truncated to the maximum path cannot be made again for a shorter output path
+                    if (file.toString().length() >= NUnitReportTransformer.MAX_PATH) {
+                        return null;
+                    }
+                    files.add(suiteName, index, file);
+                }
+            }
+            return files;
+        }
+
+        private void add(String suiteName, int index, File file) throws IOException {
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (OutputStream out = new DeflaterOutputStream(deflated, deflater)) {
+                Files.copy(file.toPath(), out);
+            } finally {
+                deflater.end();
+            }
+            byte[] content = deflated.toByteArray();
+            suiteNames.add(suiteName);
+            indexes.add(index);
+            contents.add(content);
+            size += content.length + (suiteName == null ? 0 : 2L * suiteName.length());
+        }
+
+        void write(File junitOutputPath, int reportNumber) throws IOException {
+            for (int i = 0; i < contents.size(); i++) {
+                String suiteName = suiteNames.get(i);
+                File file = suiteName == null
+                        ? NUnitReportTransformer.getJUnitReportFile(junitOutputPath, reportNumber)
+                        : NUnitReportTransformer.getJUnitOutputFile(
+                                junitOutputPath, suiteName, reportNumber, indexes.get(i));
+                try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(contents.get(i)))) {
+                    Files.copy(in, file.toPath());
+                }
+            }
+        }
+    }
+}
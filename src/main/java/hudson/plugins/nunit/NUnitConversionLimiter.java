@@ -0,0 +1,202 @@
+package hudson.plugins.nunit;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import jenkins.util.SystemProperties;
+
+/**
+ * Limits the NUnit reports converted at the same time in the JVM of an agent, over all the builds publishing NUnit
+ * reports on it, so that a burst of large reports cannot run the agent out of memory or thrash its disks. A conversion
+ * takes one of a maximum number of conversions and the memory it is estimated to use out of a memory budget, and
+ * waits until both are available. Conversions start in the order they asked to, so that a large report is not kept
+ * waiting by smaller ones, and a report estimated to need more than the whole budget runs on its own.
+ */
+final class NUnitConversionLimiter {
+
+    private static final String PROPERTY_PREFIX = NUnitConversionLimiter.class.getName();
+
+    /** The maximum number of NUnit reports converted at the same time on an agent. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Modifiable from the script console")
+    public static int MAX_CONVERSIONS = SystemProperties.getInteger(
+            PROPERTY_PREFIX + ".maxConversions", Runtime.getRuntime().availableProcessors());
+
+    /** The memory the NUnit reports converted at the same time on an agent may use, in bytes. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Modifiable from the script console")
+    public static long MEMORY_BUDGET =
+            SystemProperties.getLong(PROPERTY_PREFIX + ".memoryBudget", Runtime.getRuntime().maxMemory() / 2);
+
+    /**
+     * The memory the XSL transformer uses per byte of a report, for the document of the report and the JUnit document
+     * built from it.
+     */
+    static final int XSL_MEMORY_PER_REPORT_BYTE = 8;
+
+    /**
+     * The memory the streaming transformer uses for a report apart from the output of the tests it keeps, for its
+     * buffers and the test suite it reads, in bytes. It does not hold the whole report.
+     */
+    static final long STREAMING_MEMORY = 4L * 1024 * 1024;
+
+    private static final NUnitConversionLimiter AGENT_LIMITER =
+            new NUnitConversionLimiter(MAX_CONVERSIONS, MEMORY_BUDGET);
+
+    private int maxConversions;
+    private long memoryBudget;
+    /** The conversions waiting to start, in the order they asked to. */
+    private final Queue<Object> waiting = new ArrayDeque<>();
+
+    private int conversions;
+    private long memory;
+
+    NUnitConversionLimiter(int maxConversions, long memoryBudget) {
+        setLimits(maxConversions, memoryBudget);
+    }
+
+    /**
+     * @return the limiter of the conversions in this JVM, with the limits currently set
+     */
+    static NUnitConversionLimiter getAgentLimiter() {
+        AGENT_LIMITER.setLimits(MAX_CONVERSIONS, MEMORY_BUDGET);
+        return AGENT_LIMITER;
+    }
+
+    /**
+     * Changes the limits. Conversions that are running keep running, and waiting ones start once they fit the new
+     * limits.
+     */
+    synchronized void setLimits(int maxConversions, long memoryBudget) {
+        this.maxConversions = Math.max(1, maxConversions);
+        this.memoryBudget = Math.max(1, memoryBudget);
+        notifyAll();
+    }
+
+    /**
+     * Estimates the memory used converting a NUnit report. The XSL transformer holds documents of the whole report,
+     * the streaming transformer only the output of the tests of a test suite, up to its limits. The size of a
+     * compressed report is the size of the file, so that its estimate is too low.
+     *
+     * @param transformer the transformer converting the report
+     * @param reportSize the size of the report file, in bytes
+     * @return the estimated memory, in bytes
+     */
+    static long estimateMemory(TestReportTransformer transformer, long reportSize) {
+        if (transformer instanceof NUnitStreamingReportTransformer) {
+            NUnitStreamingReportTransformer streaming = (NUnitStreamingReportTransformer) transformer;
+            long outputLength = reportSize;
+            if (streaming.getMaxTestCaseOutputLength() > 0 && streaming.getMaxTestSuiteOutputLength() > 0) {
+                outputLength = Math.min(
+                        outputLength,
+                        (long) streaming.getMaxTestCaseOutputLength() + streaming.getMaxTestSuiteOutputLength());
+            }
+            // two bytes a char
+            return STREAMING_MEMORY + 2 * outputLength;
+        }
+        return transformer instanceof NUnitReportTransformer ? reportSize * XSL_MEMORY_PER_REPORT_BYTE : reportSize;
+    }
+
+    /**
+     * Starts a conversion, after waiting for earlier conversions to finish if there are too many of them or they use
+     * too much memory.
+     *
+     * @param estimatedMemory the memory the conversion is estimated to use, in bytes
+     * @param onWait called before waiting, if the conversion has to wait
+     * @return the conversion, to close once it is done
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    Conversion start(long estimatedMemory, Runnable onWait) throws InterruptedIOException {
+        long needed = Math.max(0, estimatedMemory);
+        Object waiter = new Object();
+        synchronized (this) {
+            if (waiting.isEmpty() && fits(needed)) {
+                return startConversion(needed, 0);
+            }
+            waiting.add(waiter);
+        }
+        try {
+            onWait.run();
+            long waitStart = System.nanoTime();
+            synchronized (this) {
+                while (waiting.peek() != waiter || !fits(needed)) {
+                    wait();
+                }
+                return startConversion(needed, System.nanoTime() - waitStart);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted =
+                    new InterruptedIOException("Interrupted while waiting to convert a NUnit report");
+            interrupted.initCause(e);
+            throw interrupted;
+        } finally {
+            synchronized (this) {
+                waiting.remove(waiter);
+                // the next conversion waiting may fit as well, or may no longer wait for this one
+                notifyAll();
+            }
+        }
+    }
+
+    private boolean fits(long needed) {
+        return conversions < maxConversions && memory + getShare(needed) <= memoryBudget;
+    }
+
+    /**
+     * A conversion estimated to need more than the whole budget takes all of it, so that it runs on its own. The
+     * budget may have changed while it waited.
+     */
+    private long getShare(long needed) {
+        return Math.min(needed, memoryBudget);
+    }
+
+    private Conversion startConversion(long needed, long waitNanos) {
+        long share = getShare(needed);
+        conversions++;
+        memory += share;
+        return new Conversion(share, waitNanos);
+    }
+
+    private synchronized void finish(long needed) {
+        conversions--;
+        memory -= needed;
+        notifyAll();
+    }
+
+    /**
+     * @return a description of the limits, for the build log
+     */
+    synchronized String getDescription() {
+        return "at most " + maxConversions + " at the same time, using at most " + memoryBudget / (1024 * 1024)
+                + " MB";
+    }
+
+    /**
+     * A running conversion, which stops holding its share of the limits once closed.
+     */
+    final class Conversion implements AutoCloseable {
+        private final long memory;
+        private final long waitNanos;
+        private boolean closed;
+
+        private Conversion(long memory, long waitNanos) {
+            this.memory = memory;
+            this.waitNanos = waitNanos;
+        }
+
+        /**
+         * @return how long the conversion waited to start, in nanoseconds
+         */
+        long getWaitNanos() {
+            return waitNanos;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                finish(memory);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package hudson.plugins.nunit;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * The statistics of publishing the NUnit reports of a run, added up over all the times NUnit reports were published
+ * in the run. They are part of the REST API of the run, so they can be followed over the builds of a job with e.g.
+ * <code>job/NAME/api/json?tree=builds[number,actions[statistics[*]]]</code>.
+ */
+@ExportedBean
+public class NUnitPublishAction extends InvisibleAction {
+
+    private final NUnitPublishStatistics statistics = new NUnitPublishStatistics();
+
+    /**
+     * @return the action of the run, which is added to the run if it has none yet
+     */
+    static NUnitPublishAction get(Run<?, ?> run) {
+        synchronized (run) {
+            NUnitPublishAction action = run.getAction(NUnitPublishAction.class);
+            if (action == null) {
+                action = new NUnitPublishAction();
+                run.addAction(action);
+            }
+            return action;
+        }
+    }
+
+    @Exported(inline = true)
+    public NUnitPublishStatistics getStatistics() {
+        return statistics;
+    }
+}
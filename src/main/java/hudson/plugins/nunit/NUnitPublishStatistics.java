@@ -0,0 +1,256 @@
+package hudson.plugins.nunit;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jenkins.security.MasterToSlaveCallable;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * What publishing NUnit reports took: the wall time of every phase, and how much was read, written and recorded.
+ *
+ * <p>The phases are
+ * <ul>
+ *     <li><code>scan</code>: finding the NUnit reports in the workspace</li>
+ *     <li><code>convert</code>: converting the NUnit reports on the agent, of which the XSL transformer spends
+ *     <code>xslt</code> transforming and <code>split</code> splitting the JUnit reports, and the conversions spend
+ *     <code>queue</code> waiting for other conversions on the agent to finish, summed over all threads</li>
+ *     <li><code>remoting</code>: sending the conversion to the agent and its result back</li>
+ *     <li><code>parse</code>: parsing the JUnit reports written by the conversion, or inflating the compact test
+ *     results read directly from the NUnit reports</li>
+ *     <li><code>record</code>: adding the test results to the run</li>
+ * </ul>
+ */
+@ExportedBean(defaultVisibility = 2)
+public class NUnitPublishStatistics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final String SCAN = "scan";
+    static final String CONVERT = "convert";
+    static final String XSLT = "xslt";
+    static final String SPLIT = "split";
+    static final String QUEUE = "queue";
+    static final String REMOTING = "remoting";
+    static final String PARSE = "parse";
+    static final String RECORD = "record";
+
+    /**
+     * An archiver that records statistics while it runs.
+     */
+    interface Source {
+        NUnitPublishStatistics getStatistics();
+    }
+
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+    private int files;
+    private int partialFiles;
+    private long bytesRead;
+    private long bytesWritten;
+    private int suites;
+    private int cases;
+
+    /**
+     * Adds time spent on a phase.
+     *
+     * @param phase the name of the phase
+     * @param nanos the time spent, in nanoseconds
+     */
+    synchronized void addTime(String phase, long nanos) {
+        phaseNanos.merge(phase, nanos, Long::sum);
+    }
+
+    /**
+     * Adds the time spent on a phase since the given start.
+     *
+     * @param phase the name of the phase
+     * @param startNanos the start of the phase, as returned by {@link System#nanoTime()}
+     * @return the end of the phase, so that it can be used as the start of the next one
+     */
+    long addTimeSince(String phase, long startNanos) {
+        long now = System.nanoTime();
+        addTime(phase, now - startNanos);
+        return now;
+    }
+
+    synchronized void addFilesRead(int count, long bytes) {
+        files += count;
+        bytesRead += bytes;
+    }
+
+    /**
+     * Counts a NUnit report that was cut off before its end, of which only the test suites completed before the end
+     * were recorded.
+     */
+    synchronized void addPartialFile() {
+        partialFiles++;
+    }
+
+    synchronized void addBytesWritten(long bytes) {
+        bytesWritten += bytes;
+    }
+
+    synchronized void addResults(int suiteCount, int caseCount) {
+        suites += suiteCount;
+        cases += caseCount;
+    }
+
+    /**
+     * Adds all the statistics of another publishing to these.
+     */
+    synchronized void add(NUnitPublishStatistics other) {
+        Map<String, Long> otherPhaseNanos;
+        synchronized (other) {
+            otherPhaseNanos = new LinkedHashMap<>(other.phaseNanos);
+            files += other.files;
+            partialFiles += other.partialFiles;
+            bytesRead += other.bytesRead;
+            bytesWritten += other.bytesWritten;
+            suites += other.suites;
+            cases += other.cases;
+        }
+        otherPhaseNanos.forEach(this::addTime);
+    }
+
+    /**
+     * @return the wall time of the phases in milliseconds, in the order the phases were first run
+     */
+    @Exported
+    public synchronized Map<String, Long> getPhaseMillis() {
+        Map<String, Long> millis = new LinkedHashMap<>();
+        phaseNanos.forEach((phase, nanos) -> millis.put(phase, TimeUnit.NANOSECONDS.toMillis(nanos)));
+        return millis;
+    }
+
+    synchronized long getPhaseNanos(String phase) {
+        return phaseNanos.getOrDefault(phase, 0L);
+    }
+
+    /**
+     * @return the number of NUnit reports converted
+     */
+    @Exported
+    public synchronized int getFiles() {
+        return files;
+    }
+
+    /**
+     * @return the number of NUnit reports that were cut off before their end, of which only the test suites completed
+     *     before the end were recorded
+     */
+    @Exported
+    public synchronized int getPartialFiles() {
+        return partialFiles;
+    }
+
+    /**
+     * @return the size of the NUnit reports converted, as stored in the workspace
+     */
+    @Exported
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return the size of the JUnit reports written, or of the compact test results sent to the controller
+     */
+    @Exported
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the number of test suites recorded
+     */
+    @Exported
+    public synchronized int getSuites() {
+        return suites;
+    }
+
+    /**
+     * @return the number of test cases recorded
+     */
+    @Exported
+    public synchronized int getCases() {
+        return cases;
+    }
+
+    /**
+     * @return the statistics on a single line, for the build log
+     */
+    public synchronized String getSummary() {
+        StringBuilder summary = new StringBuilder("NUnit publishing took");
+        String separator = " ";
+        for (Map.Entry<String, Long> phase : getPhaseMillis().entrySet()) {
+            summary.append(separator).append(phase.getKey()).append(' ').append(phase.getValue()).append(" ms");
+            separator = ", ";
+        }
+        return summary.append("; ")
+                .append(files)
+                .append(" files, ")
+                .append(partialFiles)
+                .append(" partial, ")
+                .append(bytesRead)
+                .append(" bytes read, ")
+                .append(bytesWritten)
+                .append(" bytes written, ")
+                .append(suites)
+                .append(" suites, ")
+                .append(cases)
+                .append(" cases")
+                .toString();
+    }
+
+    /**
+     * Runs an archiver on the agent, and returns its result together with the statistics it recorded there. The time
+     * the archiver took on the agent is recorded as the <code>convert</code> phase, so that the time spent on
+     * remoting can be told apart.
+     */
+    static final class Collect<V, A extends MasterToSlaveCallable<V, IOException> & Source>
+            extends MasterToSlaveCallable<Collected<V>, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final A archiver;
+
+        Collect(A archiver) {
+            this.archiver = archiver;
+        }
+
+        @Override
+        public Collected<V> call() throws IOException {
+            long start = System.nanoTime();
+            V result = archiver.call();
+            NUnitPublishStatistics statistics = archiver.getStatistics();
+            long nanos = System.nanoTime() - start - statistics.getPhaseNanos(SCAN);
+            statistics.addTime(CONVERT, nanos);
+            return new Collected<>(result, statistics);
+        }
+    }
+
+    /**
+     * The result of an archiver together with the statistics it recorded.
+     */
+    static final class Collected<V> implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final V result;
+        final NUnitPublishStatistics statistics;
+
+        Collected(V result, NUnitPublishStatistics statistics) {
+            this.result = result;
+            this.statistics = statistics;
+        }
+
+        /**
+         * @return the nanoseconds the archiver spent on the agent
+         */
+        long getAgentNanos() {
+            return statistics.getPhaseNanos(SCAN) + statistics.getPhaseNanos(CONVERT);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package hudson.plugins.nunit;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
@@ -23,12 +24,13 @@ import hudson.tasks.test.TestResultProjectAction;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Map;
 import java.util.UUID;
 import jenkins.security.MasterToSlaveCallable;
 import jenkins.tasks.SimpleBuildStep;
+import jenkins.util.SystemProperties;
 import org.apache.commons.lang3.BooleanUtils;
 import org.apache.tools.ant.DirectoryScanner;
-import org.apache.tools.ant.types.FileSet;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
@@ -44,7 +46,32 @@ public class NUnitPublisher extends Recorder implements Serializable, SimpleBuil
 
     private static final transient String PLUGIN_NUNIT = "/plugin/nunit/";
 
+    /**
+     * Escape hatch to convert the NUnit reports with <code>nunit-to-junit.xsl</code> ({@link NUnitReportTransformer})
+     * instead of the single pass {@link NUnitStreamingReportTransformer}.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Modifiable from the script console")
+    public static boolean USE_XSL_TRANSFORMER =
+            SystemProperties.getBoolean(NUnitPublisher.class.getName() + ".useXslTransformer");
+
+    /**
+     * Read the NUnit reports directly into the test results instead of writing the converted NUnit reports to
+     * temporary JUnit report files and parsing those.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Modifiable from the script console")
+    public static boolean USE_DIRECT_TEST_RESULTS =
+            SystemProperties.getBoolean(NUnitPublisher.class.getName() + ".useDirectTestResults");
+
+    /**
+     * Write all test suites of a NUnit report to a single JUnit report file instead of a file per test suite, when
+     * JUnit report files are written. Fewer, larger files are faster to write, scan and parse than many small ones.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Modifiable from the script console")
+    public static boolean USE_SINGLE_JUNIT_REPORT_FILES =
+            SystemProperties.getBoolean(NUnitPublisher.class.getName() + ".useSingleJUnitReportFiles");
+
     private String testResultsPattern;
+    private String testResultsExcludePattern;
     private boolean debug = false;
     private boolean keepJUnitReports = false;
     private boolean skipJUnitArchiver = false;
@@ -66,14 +93,39 @@ public class NUnitPublisher extends Recorder implements Serializable, SimpleBuil
      */
     private boolean failedTestsFailBuild;
 
+    /**
+     * <p>The maximum number of NUnit reports that are converted at the same time.</p>
+     *
+     * <p>Defaults to <code>1</code>.</p>
+     */
+    private int parallelism;
+
+    /**
+     * <p>The maximum number of characters kept of the output, messages and stack traces of a test case, or
+     * <code>0</code> to keep all of it.</p>
+     *
+     * <p>Defaults to {@link NUnitStreamingReportTransformer#DEFAULT_MAX_TEST_CASE_OUTPUT_LENGTH}.</p>
+     */
+    private Integer maxTestCaseOutputLength;
+
+    /**
+     * <p>The maximum number of characters kept of the output of all test cases of a test suite together, or
+     * <code>0</code> to keep all of it.</p>
+     *
+     * <p>Defaults to {@link NUnitStreamingReportTransformer#DEFAULT_MAX_TEST_SUITE_OUTPUT_LENGTH}.</p>
+     */
+    private Integer maxTestSuiteOutputLength;
+
     @DataBoundConstructor
     public NUnitPublisher(String testResultsPattern) {
         this.testResultsPattern = testResultsPattern;
         this.failIfNoResults = true;
+        this.parallelism = 1;
     }
 
     public Object readResolve() {
         NUnitPublisher nunitPublisher = new NUnitPublisher(testResultsPattern);
+        nunitPublisher.testResultsExcludePattern = this.testResultsExcludePattern;
         nunitPublisher.debug = this.debug;
         if (nunitPublisher.debug) {
             nunitPublisher.keepJUnitReports = this.keepJUnitReports;
@@ -82,6 +134,9 @@ public class NUnitPublisher extends Recorder implements Serializable, SimpleBuil
         nunitPublisher.failIfNoResults = BooleanUtils.toBooleanDefaultIfNull(this.failIfNoResults, Boolean.TRUE);
         nunitPublisher.failedTestsFailBuild =
                 BooleanUtils.toBooleanDefaultIfNull(this.failedTestsFailBuild, Boolean.FALSE);
+        nunitPublisher.parallelism = Math.max(1, this.parallelism);
+        nunitPublisher.maxTestCaseOutputLength = this.maxTestCaseOutputLength;
+        nunitPublisher.maxTestSuiteOutputLength = this.maxTestSuiteOutputLength;
         return nunitPublisher;
     }
 
@@ -94,6 +149,15 @@ public class NUnitPublisher extends Recorder implements Serializable, SimpleBuil
         this.testResultsPattern = testResultsPattern;
     }
 
+    public String getTestResultsExcludePattern() {
+        return testResultsExcludePattern;
+    }
+
+    @DataBoundSetter
+    public void setTestResultsExcludePattern(String testResultsExcludePattern) {
+        this.testResultsExcludePattern = Util.fixEmptyAndTrim(testResultsExcludePattern);
+    }
+
     public boolean getDebug() {
         return debug;
     }
@@ -152,6 +216,37 @@ public class NUnitPublisher extends Recorder implements Serializable, SimpleBuil
         this.failedTestsFailBuild = failedTestsFailBuild;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @DataBoundSetter
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public int getMaxTestCaseOutputLength() {
+        return maxTestCaseOutputLength == null
+                ? NUnitStreamingReportTransformer.DEFAULT_MAX_TEST_CASE_OUTPUT_LENGTH
+                : maxTestCaseOutputLength;
+    }
+
+    @DataBoundSetter
+    public void setMaxTestCaseOutputLength(int maxTestCaseOutputLength) {
+        this.maxTestCaseOutputLength = Math.max(0, maxTestCaseOutputLength);
+    }
+
+    public int getMaxTestSuiteOutputLength() {
+        return maxTestSuiteOutputLength == null
+                ? NUnitStreamingReportTransformer.DEFAULT_MAX_TEST_SUITE_OUTPUT_LENGTH
+                : maxTestSuiteOutputLength;
+    }
+
+    @DataBoundSetter
+    public void setMaxTestSuiteOutputLength(int maxTestSuiteOutputLength) {
+        this.maxTestSuiteOutputLength = Math.max(0, maxTestSuiteOutputLength);
+    }
+
     @Override
     @SuppressWarnings("rawtypes")
     public Action getProjectAction(AbstractProject<?, ?> project) {
@@ -169,87 +264,117 @@ public class NUnitPublisher extends Recorder implements Serializable, SimpleBuil
 
     /**
      * Record the test results into the current build.
-     * @param junitFilePattern JUnit file pattern
+     * @param junitDirectoryName the directory of the JUnit files, relative to the workspace
      * @param build The current build
      * @param listener Task listner
      * @return True or false
      * @throws InterruptedException InterruptedException
      * @throws IOException IOException
      */
-    private boolean recordTestResult(String junitFilePattern, Run<?, ?> build, TaskListener listener, FilePath filePath)
+    private boolean recordTestResult(
+            String junitDirectoryName,
+            Run<?, ?> build,
+            TaskListener listener,
+            FilePath filePath,
+            NUnitPublishStatistics statistics)
             throws InterruptedException, IOException {
-        synchronized (build) {
-            TestResultAction existingAction = build.getAction(TestResultAction.class);
-            TestResultAction action;
+        // the new results are parsed on their own, so that the build is only locked to merge them
+        long start = System.nanoTime();
+        TestResult result = getTestResult(junitDirectoryName, build.getTimestamp().getTimeInMillis(), filePath);
+        start = statistics.addTimeSince(NUnitPublishStatistics.PARSE, start);
+        boolean recorded = mergeTestResult(result, build, listener);
+        statistics.addTimeSince(NUnitPublishStatistics.RECORD, start);
+        statistics.addResults(result.getSuites().size(), result.getTotalCount());
+        return recorded;
+    }
 
-            final long buildTime = build.getTimestamp().getTimeInMillis();
+    /**
+     * Record the test results read directly from the NUnit reports into the current build.
+     * @param result The test results
+     * @param build The current build
+     * @param listener Task listner
+     * @return True or false
+     * @throws AbortException if there are no test results
+     */
+    private boolean recordTestResult(TestResult result, Run<?, ?> build, TaskListener listener)
+            throws AbortException {
+        if (failIfNoResults && result.getSuites().isEmpty()) {
+            // no test result. Most likely a configuration error or fatal problem
+            throw new AbortException("No test report files were found or the NUnit input XML file contained no tests.");
+        }
+        return mergeTestResult(result, build, listener);
+    }
 
-            TestResult existingTestResults = null;
-            if (existingAction != null) {
-                existingTestResults = existingAction.getResult();
+    /**
+     * Adds the test results to those of earlier publishers of the build, if any. The build is only locked to find or
+     * add its test result action.
+     */
+    private boolean mergeTestResult(TestResult result, Run<?, ?> build, TaskListener listener) {
+        TestResultAction action;
+        synchronized (build) {
+            action = build.getAction(TestResultAction.class);
+            if (action == null) {
+                return recordTestResultAction(build, listener, new TestResultAction(build, result, listener), true);
             }
-            TestResult result = getTestResult(junitFilePattern, build, existingTestResults, buildTime, filePath);
+        }
+        // The junit plugin cannot merge incrementally: mergeResult adds the new suites to the whole test result, then
+        // tallies and saves all of it again, so its cost grows with all the results of the build and not only the new
+        // ones. Its API offers no way to add to the counts or to tally outside of it. It locks the action rather than
+        // the build, so at least the publishers of the build do not also wait on each other for anything else.
+        action.mergeResult(result, listener);
+        return recordTestResultAction(build, listener, action, false);
+    }
 
-            if (existingAction == null) {
-                action = new TestResultAction(build, result, listener);
-            } else {
-                action = existingAction;
-                action.setResult(result, listener);
-            }
+    private boolean recordTestResultAction(
+            Run<?, ?> build, TaskListener listener, TestResultAction action, boolean newAction) {
+        action.setHealthScaleFactor(getHealthScaleFactor());
+
+        TestResult result = action.getResult();
+        if (this.failIfNoResults
+                && result.getPassCount() == 0
+                && result.getFailCount() == 0
+                && result.getSkipCount() == 0) {
+            listener.getLogger().println("None of the test reports contained any result");
+            build.setResult(Result.FAILURE);
+            return true;
+        }
 
-            action.setHealthScaleFactor(getHealthScaleFactor());
+        if (newAction) {
+            build.addAction(action);
+        }
 
-            if (this.failIfNoResults
-                    && result.getPassCount() == 0
-                    && result.getFailCount() == 0
-                    && result.getSkipCount() == 0) {
-                listener.getLogger().println("None of the test reports contained any result");
+        if (result.getFailCount() > 0) {
+            if (failedTestsFailBuild) {
                 build.setResult(Result.FAILURE);
-                return true;
-            }
-
-            if (existingAction == null) {
-                build.addAction(action);
-            }
-
-            if (action.getResult().getFailCount() > 0) {
-                if (failedTestsFailBuild) {
-                    build.setResult(Result.FAILURE);
-                } else {
-                    build.setResult(Result.UNSTABLE);
-                }
+            } else {
+                build.setResult(Result.UNSTABLE);
             }
-
-            return true;
         }
+
+        return true;
     }
 
     /**
      * Collect the test results from the files
-     * @param junitFilePattern JUnit file pattern
-     * @param build The current build
-     * @param existingTestResults existing test results to add results to
-     * @param buildTime
+     * @param junitDirectoryName the directory of the JUnit files, relative to the workspace
+     * @param buildTime the time the build started
+     * @param filePath the workspace
      * @return a test result
      * @throws IOException IOException
      * @throws InterruptedException InterruptedException
      */
-    private TestResult getTestResult(
-            final String junitFilePattern,
-            Run<?, ?> build,
-            final TestResult existingTestResults,
-            final long buildTime,
-            final FilePath filePath)
+    private TestResult getTestResult(final String junitDirectoryName, final long buildTime, final FilePath filePath)
             throws IOException, InterruptedException {
         TestResult result = filePath.act(new MasterToSlaveCallable<TestResult, IOException>() {
             private static final long serialVersionUID = -8917897415838795523L;
 
             public TestResult call() throws IOException {
-                FileSet fs = Util.createFileSet(new File(filePath.getRemote()), junitFilePattern);
-                DirectoryScanner ds = fs.getDirectoryScanner();
-
-                String[] files = ds.getIncludedFiles();
-                if (files.length == 0) {
+                // the directory only holds the files written by the archiver, so it is listed instead of scanned
+                File junitDirectory = new File(filePath.getRemote(), junitDirectoryName);
+                String[] files = junitDirectory.list(
+                        (dir, name) -> name.startsWith(NUnitReportTransformer.JUNIT_FILE_PREFIX)
+                                && name.endsWith(NUnitReportTransformer.JUNIT_FILE_POSTFIX));
+                if (files == null || files.length == 0) {
                     if (failIfNoResults) {
                         // no test result. Most likely a configuration error or fatal problem
                         throw new AbortException(
@@ -258,12 +383,8 @@ public class NUnitPublisher extends Recorder implements Serializable, SimpleBuil
                         return new TestResult();
                     }
                 }
-                if (existingTestResults == null) {
-                    return new TestResult(buildTime, ds, true, false, null, false);
-                } else {
-                    existingTestResults.parse(buildTime, ds, null);
-                    return existingTestResults;
-                }
+                DirectoryScanner ds = NUnitReportScanner.getKnownFilesScanner(junitDirectory, files);
+                return new TestResult(buildTime, ds, true, false, null, false);
             }
         });
         return result;
@@ -282,6 +403,54 @@ public class NUnitPublisher extends Recorder implements Serializable, SimpleBuil
             String resolvedTestResultsPattern = env.expand(testResultsPattern);
 
             listener.getLogger().println("Recording NUnit tests results");
+
+            // only the reports that were not recorded by an earlier NUnit publisher of this run are converted
+            NUnitPublishStatistics statistics = new NUnitPublishStatistics();
+            long start = System.nanoTime();
+            NUnitReportIndex reportIndex = NUnitReportIndex.get(run);
+            String workspaceKey = NUnitReportIndex.getWorkspaceKey(ws);
+            String resolvedTestResultsExcludePattern = Util.fixEmptyAndTrim(env.expand(testResultsExcludePattern));
+            Map<String, String> fingerprints = ws.act(new NUnitReportIndex.Scan(
+                    ws.getRemote(), resolvedTestResultsPattern, resolvedTestResultsExcludePattern, parallelism));
+            statistics.addTimeSince(NUnitPublishStatistics.SCAN, start);
+            String[] modifiedReports = reportIndex.getModifiedReports(workspaceKey, fingerprints);
+            if (modifiedReports.length < fingerprints.size()) {
+                listener.getLogger()
+                        .println("Skipping " + (fingerprints.size() - modifiedReports.length)
+                                + " NUnit reports already recorded in this run");
+                if (modifiedReports.length == 0) {
+                    return;
+                }
+            }
+
+            if (isDirectMode()) {
+                NUnitResultArchiver archiver = new NUnitResultArchiver(
+                        ws.getRemote(),
+                        listener,
+                        resolvedTestResultsPattern,
+                        createStreamingTransformer(),
+                        failIfNoResults,
+                        parallelism);
+                // the workspace was scanned already, even when it holds no reports
+                archiver.setNUnitReports(modifiedReports);
+                CompactTestResult compactResult = convert(ws, archiver, statistics);
+                if (compactResult != null) {
+                    start = System.nanoTime();
+                    TestResult testResult = compactResult.toTestResult();
+                    start = statistics.addTimeSince(NUnitPublishStatistics.PARSE, start);
+                    recordTestResult(testResult, run, listener);
+                    statistics.addTimeSince(NUnitPublishStatistics.RECORD, start);
+                    statistics.addResults(testResult.getSuites().size(), testResult.getTotalCount());
+                    reportIndex.record(workspaceKey, fingerprints, modifiedReports);
+                    markPartialReports(run, listener, statistics);
+                    publishStatistics(run, listener, statistics);
+                } else if (this.getFailIfNoResults()) {
+                    // this should only happen if failIfNoResults is true and there are no result files
+                    run.setResult(Result.FAILURE);
+                }
+                return;
+            }
+
             String junitTempReportsDirectoryName =
                     "tempJunitReports" + UUID.randomUUID().toString();
             NUnitArchiver transformer = new NUnitArchiver(
@@ -289,17 +458,22 @@ public class NUnitPublisher extends Recorder implements Serializable, SimpleBuil
                     junitTempReportsDirectoryName,
                     listener,
                     resolvedTestResultsPattern,
-                    new NUnitReportTransformer(),
-                    failIfNoResults);
-            result = ws.act(transformer);
+                    createTransformer(),
+                    failIfNoResults,
+                    parallelism);
+            transformer.setNUnitReports(modifiedReports);
+            result = convert(ws, transformer, statistics);
 
             if (result) {
                 if (skipJUnitArchiver) {
                     listener.getLogger().println("Skipping feeding JUnit reports to JUnitArchiver");
                 } else {
                     // Run the JUnit test archiver
-                    recordTestResult(junitTempReportsDirectoryName + "/TEST-*.xml", run, listener, ws);
+                    recordTestResult(junitTempReportsDirectoryName, run, listener, ws, statistics);
+                    reportIndex.record(workspaceKey, fingerprints, modifiedReports);
                 }
+                markPartialReports(run, listener, statistics);
+                publishStatistics(run, listener, statistics);
 
                 if (keepJUnitReports) {
                     listener.getLogger().println("Skipping deletion of temporary JUnit reports.");
@@ -323,6 +497,62 @@ public class NUnitPublisher extends Recorder implements Serializable, SimpleBuil
         }
     }
 
+    /**
+     * Runs the archiver on the agent, and adds the statistics it recorded there to the statistics of this publishing.
+     * The remaining time the call took is spent on remoting.
+     */
+    private static <V, A extends MasterToSlaveCallable<V, IOException> & NUnitPublishStatistics.Source> V convert(
+            FilePath ws, A archiver, NUnitPublishStatistics statistics) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        NUnitPublishStatistics.Collected<V> collected = ws.act(new NUnitPublishStatistics.Collect<V, A>(archiver));
+        statistics.add(collected.statistics);
+        statistics.addTime(
+                NUnitPublishStatistics.REMOTING, Math.max(0, System.nanoTime() - start - collected.getAgentNanos()));
+        return collected.result;
+    }
+
+    /**
+     * Marks the run unstable if a NUnit report ends early, as the test run that wrote it did most likely not complete.
+     */
+    private static void markPartialReports(Run<?, ?> run, TaskListener listener, NUnitPublishStatistics statistics) {
+        if (statistics.getPartialFiles() > 0) {
+            listener.getLogger()
+                    .println(statistics.getPartialFiles() + " NUnit reports end early, marking the build as unstable");
+            run.setResult(Result.UNSTABLE);
+        }
+    }
+
+    private static void publishStatistics(Run<?, ?> run, TaskListener listener, NUnitPublishStatistics statistics) {
+        listener.getLogger().println(statistics.getSummary());
+        NUnitPublishAction.get(run).getStatistics().add(statistics);
+    }
+
+    /**
+     * The NUnit reports are read directly into the test results when requested, unless the JUnit report files are
+     * needed for debugging.
+     */
+    private boolean isDirectMode() {
+        return USE_DIRECT_TEST_RESULTS && !USE_XSL_TRANSFORMER && !keepJUnitReports && !skipJUnitArchiver;
+    }
+
+    private TestReportTransformer createTransformer() {
+        if (USE_XSL_TRANSFORMER) {
+            NUnitReportTransformer transformer = new NUnitReportTransformer();
+            transformer.setSingleJUnitFile(USE_SINGLE_JUNIT_REPORT_FILES);
+            return transformer;
+        }
+        NUnitStreamingReportTransformer transformer = createStreamingTransformer();
+        transformer.setSingleJUnitFile(USE_SINGLE_JUNIT_REPORT_FILES);
+        return transformer;
+    }
+
+    private NUnitStreamingReportTransformer createStreamingTransformer() {
+        NUnitStreamingReportTransformer transformer = new NUnitStreamingReportTransformer();
+        transformer.setMaxTestCaseOutputLength(getMaxTestCaseOutputLength());
+        transformer.setMaxTestSuiteOutputLength(getMaxTestSuiteOutputLength());
+        return transformer;
+    }
+
     @Extension
     @Symbol("nunit")
     public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
@@ -0,0 +1,173 @@
+package hudson.plugins.nunit;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a task for every NUnit report file, or every region of a large report, on at most the given number of threads
+ * at the same time, optionally handing the results to a consumer while the later tasks still run.
+ */
+class NUnitReportExecutor {
+
+    interface ReportTask<T> {
+        /**
+         * @param index the index of the NUnit report file
+         * @param nunitFileName the name of the NUnit report file
+         * @return the result for the NUnit report file
+         */
+        T run(int index, String nunitFileName) throws IOException;
+    }
+
+    interface Task<T> {
+        /**
+         * @param index the index of the task
+         * @return the result of the task
+         */
+        T run(int index) throws IOException;
+    }
+
+    interface Consumer<T> {
+        /**
+         * @param index the index of the task
+         * @param result the result of the task
+         */
+        void accept(int index, T result) throws IOException;
+    }
+
+    private NUnitReportExecutor() {}
+
+    /**
+     * Runs the task for every NUnit report file. With a parallelism of one the task is run in the current thread,
+     * one file after the other.
+     *
+     * @param nunitFiles the NUnit report files
+     * @param parallelism the maximum number of files handled at the same time
+     * @param task the task to run for every file
+     * @return the results of the task, in the order of the files no matter in which order they completed
+     * @throws IOException the first exception thrown by the task, once the files already handled are done, the files
+     *     not started yet are skipped
+     */
+    static <T> List<T> run(String[] nunitFiles, int parallelism, ReportTask<T> task) throws IOException {
+        return run(nunitFiles.length, parallelism, index -> task.run(index, nunitFiles[index]));
+    }
+
+    /**
+     * Runs the task for every NUnit report file, and hands the results to the consumer in the order of the files while
+     * the later files are still handled.
+     *
+     * @see #run(int, int, int, Task, Consumer)
+     */
+    static <T> void run(
+            String[] nunitFiles, int parallelism, int maxPending, ReportTask<T> task, Consumer<T> consumer)
+            throws IOException {
+        run(nunitFiles.length, parallelism, maxPending, index -> task.run(index, nunitFiles[index]), consumer);
+    }
+
+    /**
+     * Runs a number of tasks. With a parallelism of one the tasks are run in the current thread, one after the other.
+     *
+     * @param taskCount the number of tasks
+     * @param parallelism the maximum number of tasks run at the same time
+     * @param task the task to run with the index of every task
+     * @return the results of the tasks, in the order of their indexes no matter in which order they completed
+     * @throws IOException the first exception thrown by a task, once the tasks already running have ended, the tasks
+     *     not started yet are skipped
+     */
+    static <T> List<T> run(int taskCount, int parallelism, Task<T> task) throws IOException {
+        List<T> results = new ArrayList<>(taskCount);
+        if (Math.min(parallelism, taskCount) <= 1) {
+            for (int i = 0; i < taskCount; i++) {
+                results.add(task.run(i));
+            }
+            return results;
+        }
+        run(taskCount, parallelism, taskCount, task, (index, result) -> results.add(result));
+        return results;
+    }
+
+    /**
+     * Runs a number of tasks, and hands their results to the consumer in the order of their indexes while the later
+     * tasks still run. The consumer runs in the current thread and the tasks on other threads, so that consuming the
+     * results overlaps with running the tasks even with a parallelism of one. A single task is run in the current
+     * thread, as there is nothing to overlap with.
+     *
+     * @param taskCount the number of tasks
+     * @param parallelism the maximum number of tasks run at the same time
+     * @param maxPending the maximum number of tasks started whose results were not consumed yet, which bounds the
+     *     results held in memory while the consumer falls behind, at least the parallelism
+     * @param task the task to run with the index of every task
+     * @param consumer the consumer of the result of every task
+     * @throws IOException the first exception thrown by a task or the consumer, once the tasks already running have
+     *     ended, the tasks not started yet are skipped
+     */
+    static <T> void run(int taskCount, int parallelism, int maxPending, Task<T> task, Consumer<T> consumer)
+            throws IOException {
+        if (taskCount <= 1) {
+            for (int i = 0; i < taskCount; i++) {
+                consumer.accept(i, task.run(i));
+            }
+            return;
+        }
+
+        int threads = Math.max(1, Math.min(parallelism, taskCount));
+        int window = Math.max(threads, maxPending);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                threads, new NamingThreadFactory(new DaemonThreadFactory(), NUnitReportExecutor.class.getName()));
+        try {
+            Queue<Future<T>> pending = new ArrayDeque<>(window);
+            int submitted = 0;
+            for (int consumed = 0; consumed < taskCount; consumed++) {
+                while (submitted < taskCount && submitted - consumed < window) {
+                    int index = submitted++;
+                    pending.add(executor.submit(() -> task.run(index)));
+                }
+                consumer.accept(consumed, pending.remove().get());
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("Interrupted while reading NUnit reports");
+            interrupted.initCause(e);
+            throw interrupted;
+        } finally {
+            executor.shutdownNow();
+            awaitTermination(executor);
+        }
+    }
+
+    /**
+     * Waits for the tasks already running, so that none of them still writes files once the caller cleans up after a
+     * failed task.
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // a large report takes a while
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
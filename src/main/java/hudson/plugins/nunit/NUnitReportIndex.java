@@ -0,0 +1,121 @@
+package hudson.plugins.nunit;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Remembers the NUnit reports recorded in a run, so that publishing NUnit reports again in the same run only converts
+ * the reports that are new or were modified since they were recorded. A report is identified by the node and the path
+ * of its file, and is considered modified when the last modified time or the size of the file changed.
+ */
+public class NUnitReportIndex extends InvisibleAction {
+
+    /** The fingerprints of the recorded reports, by node and path. */
+    private final Map<String, String> reports = new HashMap<>();
+
+    /**
+     * @return the index of the run, which is added to the run if it has none yet
+     */
+    static NUnitReportIndex get(Run<?, ?> run) {
+        synchronized (run) {
+            NUnitReportIndex index = run.getAction(NUnitReportIndex.class);
+            if (index == null) {
+                index = new NUnitReportIndex();
+                run.addAction(index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * @return the key of the workspace the reports of the index are relative to
+     */
+    static String getWorkspaceKey(FilePath workspace) {
+        Computer computer = workspace.toComputer();
+        return (computer == null ? "" : computer.getName()) + ":" + workspace.getRemote();
+    }
+
+    /**
+     * @param workspaceKey the key of the workspace the reports are in
+     * @param fingerprints the fingerprints of the reports by file name, as returned by {@link Scan}
+     * @return the names of the reports that are new or modified since they were recorded, in the order of the
+     *     fingerprints
+     */
+    synchronized String[] getModifiedReports(String workspaceKey, Map<String, String> fingerprints) {
+        List<String> modified = new ArrayList<>();
+        for (Map.Entry<String, String> report : fingerprints.entrySet()) {
+            if (!report.getValue().equals(reports.get(getKey(workspaceKey, report.getKey())))) {
+                modified.add(report.getKey());
+            }
+        }
+        return modified.toArray(new String[0]);
+    }
+
+    /**
+     * Records that the reports were recorded in the run.
+     *
+     * @param workspaceKey the key of the workspace the reports are in
+     * @param fingerprints the fingerprints of the reports by file name, as returned by {@link Scan}
+     * @param recordedReports the names of the reports recorded
+     */
+    synchronized void record(String workspaceKey, Map<String, String> fingerprints, String[] recordedReports) {
+        for (String report : recordedReports) {
+            String fingerprint = fingerprints.get(report);
+            if (fingerprint != null) {
+                reports.put(getKey(workspaceKey, report), fingerprint);
+            }
+        }
+    }
+
+    private static String getKey(String workspaceKey, String report) {
+        return workspaceKey + "/" + report;
+    }
+
+    /**
+     * Finds the NUnit reports in a workspace and returns their fingerprints by file name, in the order they were
+     * found.
+     */
+    static final class Scan extends MasterToSlaveCallable<LinkedHashMap<String, String>, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String root;
+        private final String testResultsPattern;
+        private final String excludePattern;
+        private final int parallelism;
+
+        /**
+         * @param excludePattern the pattern of the files to leave out, or null
+         * @param parallelism the maximum number of directories scanned at the same time
+         */
+        Scan(String root, String testResultsPattern, String excludePattern, int parallelism) {
+            this.root = root;
+            this.testResultsPattern = testResultsPattern;
+            this.excludePattern = excludePattern;
+            this.parallelism = parallelism;
+        }
+
+        public LinkedHashMap<String, String> call() throws IOException {
+            LinkedHashMap<String, String> fingerprints = new LinkedHashMap<>();
+            // the attributes are read by the scan itself, the files are not looked up again
+            Map<String, BasicFileAttributes> files =
+                    new NUnitReportScanner(testResultsPattern, excludePattern).scan(new File(root), parallelism);
+            for (Map.Entry<String, BasicFileAttributes> file : files.entrySet()) {
+                BasicFileAttributes attributes = file.getValue();
+                fingerprints.put(file.getKey(), attributes.lastModifiedTime().toMillis() + ":" + attributes.size());
+            }
+            return fingerprints;
+        }
+    }
+}
@@ -0,0 +1,557 @@
+package hudson.plugins.nunit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits a large NUnit3 report into regions of test suites that can be read at the same time, on several threads.
+ *
+ * <p>The report is scanned once for its test suites without an XML parser, telling apart only tags, comments, CDATA
+ * sections and processing instructions. A region is a run of sibling test suites with nothing but white space and
+ * comments between them. A test suite larger than a region is split into regions of the test suites inside it, and
+ * its own elements are read with the rest of the report, the skeleton. The skeleton holds a processing instruction in
+ * place of every region, see {@link #PLACEHOLDER_TARGET}, so that the results of the regions can be added in the order
+ * of the report.
+ *
+ * <p>A region is read as a document of its own, made of the start tags of the elements around it, the region itself
+ * and the end tags of those elements, so that its test suites are named the same as in the whole report. Only UTF-8
+ * reports of XML 1.0 are split, see {@link InvalidXmlStreamReader.PrologSniffer}, since their regions decode the same
+ * on their own. A report with a document type declaration, or that is not well formed as far as the scan can tell, is
+ * not split.
+ */
+final class NUnitReportRegions implements Closeable {
+
+    /** The target of the processing instructions taking the place of the regions in the skeleton. */
+    static final String PLACEHOLDER_TARGET = "nunit-region";
+
+    /** The smallest size of a region, in bytes, below which reading it on its own costs more than it saves. */
+    static final long MIN_REGION_SIZE = 1024 * 1024;
+
+    /** The number of regions per thread, so that the threads finish at about the same time. */
+    private static final int REGIONS_PER_THREAD = 4;
+
+    private static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+
+    private static final byte[] TEST_SUITE = "test-suite".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TEST_RESULTS = "test-results".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COMMENT_END = "-->".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CDATA_START = "CDATA[".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CDATA_END = "]]>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PROCESSING_INSTRUCTION_END = "?>".getBytes(StandardCharsets.US_ASCII);
+
+    private static final class Region {
+        final long start;
+        final long end;
+        /** The start and end of the start tags of the elements around the region, the outermost first. */
+        final long[] startTags;
+        final byte[] endTags;
+
+        Region(long start, long end, long[] startTags, byte[] endTags) {
+            this.start = start;
+            this.end = end;
+            this.startTags = startTags;
+            this.endTags = endTags;
+        }
+    }
+
+    /**
+     * The root element or a test suite whose parents are all test suites, as far as the scan needs to know it.
+     */
+    private static final class Node {
+        final Node parent;
+        final long start;
+        final long startTagEnd;
+        long end = -1;
+        /** The test suites directly inside, or null once the node is known to fit in a region. */
+        List<Node> children = new ArrayList<>();
+        /** Whether only white space and comments are between the previous test suite in the parent and this one. */
+        boolean followsSuite;
+        /** Whether the last child element was a test suite, with only white space and comments after it. */
+        boolean afterSuite;
+
+        Node(Node parent, long start, long startTagEnd) {
+            this.parent = parent;
+            this.start = start;
+            this.startTagEnd = startTagEnd;
+        }
+    }
+
+    private final FileChannel channel;
+    private final long size;
+    private final List<Region> regions;
+
+    private NUnitReportRegions(FileChannel channel, long size, List<Region> regions) {
+        this.channel = channel;
+        this.size = size;
+        this.regions = regions;
+    }
+
+    /**
+     * Splits a NUnit report into regions.
+     *
+     * @param report the uncompressed NUnit report file
+     * @param threads the number of threads the regions are read on
+     * @param minRegionSize the smallest size of a region, see {@link #MIN_REGION_SIZE}
+     * @return the regions of the report, or null if the report cannot be split into several regions
+     * @throws IOException if the report could not be read
+     */
+    static NUnitReportRegions find(Path report, int threads, long minRegionSize) throws IOException {
+        FileChannel channel = FileChannel.open(report, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (!isSplittable(channel)) {
+                channel.close();
+                return null;
+            }
+            long regionSize = Math.max(minRegionSize, size / ((long) threads * REGIONS_PER_THREAD));
+            Scanner scanner = new Scanner(channel, regionSize);
+            Node root = scanner.scan();
+            List<Region> regions = new ArrayList<>();
+            if (root != null) {
+                List<Node> parents = new ArrayList<>();
+                parents.add(root);
+                select(root, parents, "</" + scanner.rootName + ">", regionSize, regions);
+            }
+            if (regions.size() < 2) {
+                channel.close();
+                return null;
+            }
+            return new NUnitReportRegions(channel, size, regions);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static boolean isSplittable(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(256);
+        while (head.hasRemaining() && channel.read(head, head.position()) >= 0) {
+            // read until the buffer is full
+        }
+        byte[] bytes = head.array();
+        int length = head.position();
+        int start = length >= 3 && (bytes[0] & 0xFF) == 0xEF && (bytes[1] & 0xFF) == 0xBB && (bytes[2] & 0xFF) == 0xBF
+                ? 3
+                : 0;
+        // reports in other encodings or compressed ones are not sniffed
+        return new InvalidXmlStreamReader.PrologSniffer(bytes, start, length).sniff() != null;
+    }
+
+    /**
+     * Selects the regions among the test suites inside a node, going into the test suites that are too large.
+     *
+     * @param parents the nodes from the root to the node
+     */
+    private static void select(
+            Node node, List<Node> parents, String rootEndTag, long regionSize, List<Region> regions) {
+        long runStart = -1;
+        long runEnd = -1;
+        for (Node child : node.children) {
+            if (child.children != null && !child.children.isEmpty()) {
+                addRegion(runStart, runEnd, parents, rootEndTag, regions);
+                runStart = -1;
+                parents.add(child);
+                select(child, parents, rootEndTag, regionSize, regions);
+                parents.remove(parents.size() - 1);
+            } else if (runStart >= 0 && child.followsSuite && child.end - runStart <= regionSize) {
+                runEnd = child.end;
+            } else {
+                addRegion(runStart, runEnd, parents, rootEndTag, regions);
+                runStart = child.start;
+                runEnd = child.end;
+            }
+        }
+        addRegion(runStart, runEnd, parents, rootEndTag, regions);
+    }
+
+    private static void addRegion(
+            long start, long end, List<Node> parents, String rootEndTag, List<Region> regions) {
+        if (start < 0) {
+            return;
+        }
+        long[] startTags = new long[parents.size() * 2];
+        StringBuilder endTags = new StringBuilder();
+        for (int i = 0; i < parents.size(); i++) {
+            startTags[i * 2] = parents.get(i).start;
+            startTags[i * 2 + 1] = parents.get(i).startTagEnd;
+            if (i > 0) {
+                endTags.append("</test-suite>");
+            }
+        }
+        endTags.append(rootEndTag);
+        regions.add(new Region(start, end, startTags, endTags.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the number of regions, at least two
+     */
+    int size() {
+        return regions.size();
+    }
+
+    /**
+     * @return the report without the regions, with a processing instruction holding the index of every region in its
+     *     place
+     */
+    InputStream openSkeleton() {
+        List<InputStream> parts = new ArrayList<>();
+        long position = 0;
+        for (int i = 0; i < regions.size(); i++) {
+            Region region = regions.get(i);
+            parts.add(new RangeInputStream(position, region.start));
+            parts.add(new ByteArrayInputStream(
+                    ("<?" + PLACEHOLDER_TARGET + " " + i + "?>").getBytes(StandardCharsets.US_ASCII)));
+            position = region.end;
+        }
+        parts.add(new RangeInputStream(position, size));
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    /**
+     * @param index the index of the region
+     * @return the region as a document of its own, inside the elements around it
+     * @throws IOException if the start tags around the region could not be read
+     */
+    InputStream openRegion(int index) throws IOException {
+        Region region = regions.get(index);
+        ByteArrayOutputStream startTags = new ByteArrayOutputStream();
+        for (int i = 0; i < region.startTags.length; i += 2) {
+            try (InputStream tag = new RangeInputStream(region.startTags[i], region.startTags[i + 1])) {
+                tag.transferTo(startTags);
+            }
+        }
+        return new SequenceInputStream(Collections.enumeration(List.of(
+                new ByteArrayInputStream(startTags.toByteArray()),
+                new RangeInputStream(region.start, region.end),
+                new ByteArrayInputStream(region.endTags))));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static boolean isSpace(int b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    /**
+     * Reads a range of the report, with positional reads that do not get in the way of the other threads.
+     */
+    private final class RangeInputStream extends InputStream {
+        private final long end;
+        private long position;
+
+        RangeInputStream(long start, long end) {
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (read < 0) {
+                throw new EOFException("The NUnit report was truncated while it was read");
+            }
+            position += read;
+            return read;
+        }
+    }
+
+    /**
+     * Scans the report for the test suites that could be regions.
+     */
+    private static final class Scanner {
+        private final FileChannel channel;
+        private final long regionSize;
+        private final byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+        /** The position in the report of the start of the buffer. */
+        private long bufferPosition;
+        private int index;
+        private int limit;
+
+        /** The names of the open elements, one after the other. */
+        private byte[] names = new byte[256];
+        private int namesLength;
+        /** For every open element, the start of its name, and its node if it is one. */
+        private int[] nameStarts = new int[64];
+        private Node[] nodes = new Node[64];
+        private int depth;
+        private Node root;
+        private String rootName;
+
+        Scanner(FileChannel channel, long regionSize) {
+            this.channel = channel;
+            this.regionSize = regionSize;
+        }
+
+        /**
+         * @return the root element, or null if the report cannot be split
+         */
+        Node scan() throws IOException {
+            while (skipText()) {
+                long start = position() - 1;
+                int b = read();
+                boolean scanned;
+                if (b == '!') {
+                    b = read();
+                    if (b == '-' && read() == '-') {
+                        scanned = skipPast(COMMENT_END);
+                    } else if (b == '[' && skipLiteral(CDATA_START)) {
+                        addText();
+                        scanned = skipPast(CDATA_END);
+                    } else {
+                        // a document type declaration, which may declare entities
+                        scanned = false;
+                    }
+                } else if (b == '?') {
+                    scanned = skipPast(PROCESSING_INSTRUCTION_END);
+                } else if (b == '/') {
+                    scanned = endTag();
+                } else {
+                    scanned = b >= 0 && startTag(b, start);
+                }
+                if (!scanned) {
+                    return null;
+                }
+            }
+            return depth == 0 && root != null && root.end >= 0 ? root : null;
+        }
+
+        private long position() {
+            return bufferPosition + index;
+        }
+
+        private int read() throws IOException {
+            if (index == limit && !fill()) {
+                return -1;
+            }
+            return buffer[index++] & 0xFF;
+        }
+
+        private boolean fill() throws IOException {
+            bufferPosition += limit;
+            index = 0;
+            limit = 0;
+            int read;
+            do {
+                read = channel.read(ByteBuffer.wrap(buffer), bufferPosition);
+            } while (read == 0);
+            if (read < 0) {
+                return false;
+            }
+            limit = read;
+            return true;
+        }
+
+        /**
+         * Skips the text up to the next tag.
+         *
+         * @return whether a tag follows, whose <code>&lt;</code> is then read
+         */
+        private boolean skipText() throws IOException {
+            // only text directly inside a node matters, and only whether it is white space
+            boolean significant = depth > 0 && nodes[depth - 1] != null;
+            while (true) {
+                for (int i = index; i < limit; i++) {
+                    byte b = buffer[i];
+                    if (b == '<') {
+                        index = i + 1;
+                        return true;
+                    }
+                    if (significant && !isSpace(b)) {
+                        addText();
+                        significant = false;
+                    }
+                }
+                index = limit;
+                if (!fill()) {
+                    return false;
+                }
+            }
+        }
+
+        private void addText() {
+            if (depth > 0 && nodes[depth - 1] != null) {
+                nodes[depth - 1].afterSuite = false;
+            }
+        }
+
+        private boolean skipLiteral(byte[] literal) throws IOException {
+            for (byte b : literal) {
+                if (read() != b) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Skips past the end of a comment, a CDATA section or a processing instruction. The first two characters of
+         * the end are the same if it has three.
+         */
+        private boolean skipPast(byte[] end) throws IOException {
+            int matched = 0;
+            int b;
+            while ((b = read()) >= 0) {
+                if (b == end[matched]) {
+                    if (++matched == end.length) {
+                        return true;
+                    }
+                } else if (b == end[0]) {
+                    matched = matched == 2 ? 2 : 1;
+                } else {
+                    matched = 0;
+                }
+            }
+            return false;
+        }
+
+        private boolean startTag(int first, long start) throws IOException {
+            int nameStart = namesLength;
+            int b = first;
+            do {
+                appendName(b);
+                b = read();
+            } while (b >= 0 && !isSpace(b) && b != '>' && b != '/');
+            int previous = 0;
+            while (b != '>') {
+                if (b < 0) {
+                    return false;
+                }
+                if (b == '"' || b == '\'') {
+                    int quote = b;
+                    do {
+                        b = read();
+                        if (b < 0) {
+                            return false;
+                        }
+                    } while (b != quote);
+                }
+                previous = b;
+                b = read();
+            }
+            boolean empty = previous == '/';
+            long end = position();
+
+            Node node = null;
+            if (depth == 0) {
+                if (root != null || isName(nameStart, TEST_RESULTS)) {
+                    // not well formed, or a NUnit2 report
+                    return false;
+                }
+                node = new Node(null, start, end);
+                root = node;
+                rootName = new String(names, nameStart, namesLength - nameStart, StandardCharsets.UTF_8);
+            } else {
+                Node parent = nodes[depth - 1];
+                if (parent != null) {
+                    if (isName(nameStart, TEST_SUITE)) {
+                        node = new Node(parent, start, end);
+                        node.followsSuite = parent.afterSuite;
+                        parent.children.add(node);
+                    }
+                    parent.afterSuite = false;
+                }
+            }
+            if (empty) {
+                namesLength = nameStart;
+                if (node != null) {
+                    endNode(node, end);
+                }
+            } else {
+                push(nameStart, node);
+            }
+            return true;
+        }
+
+        private boolean endTag() throws IOException {
+            if (depth == 0) {
+                return false;
+            }
+            int nameStart = nameStarts[depth - 1];
+            int i = nameStart;
+            int b;
+            while ((b = read()) >= 0 && !isSpace(b) && b != '>') {
+                if (i == namesLength || names[i++] != (byte) b) {
+                    return false;
+                }
+            }
+            if (i != namesLength) {
+                return false;
+            }
+            while (b != '>') {
+                if (b < 0 || !isSpace(b)) {
+                    return false;
+                }
+                b = read();
+            }
+            depth--;
+            namesLength = nameStart;
+            Node node = nodes[depth];
+            nodes[depth] = null;
+            if (node != null) {
+                endNode(node, position());
+            }
+            return true;
+        }
+
+        private void endNode(Node node, long end) {
+            node.end = end;
+            if (node.parent != null) {
+                node.parent.afterSuite = true;
+                if (end - node.start <= regionSize) {
+                    // a test suite that fits in a region is never split
+                    node.children = null;
+                }
+            }
+        }
+
+        private void appendName(int b) {
+            if (namesLength == names.length) {
+                names = Arrays.copyOf(names, names.length * 2);
+            }
+            names[namesLength++] = (byte) b;
+        }
+
+        private boolean isName(int nameStart, byte[] name) {
+            return Arrays.equals(names, nameStart, namesLength, name, 0, name.length);
+        }
+
+        private void push(int nameStart, Node node) {
+            if (depth == nodes.length) {
+                nameStarts = Arrays.copyOf(nameStarts, depth * 2);
+                nodes = Arrays.copyOf(nodes, depth * 2);
+            }
+            nameStarts[depth] = nameStart;
+            nodes[depth] = node;
+            depth++;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package hudson.plugins.nunit;
+
+import hudson.Util;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import org.apache.tools.ant.DirectoryScanner;
+
+/**
+ * Finds the files below a directory that match Ant fileset patterns, such as the test results pattern.
+ *
+ * <p>The directory tree is walked with {@link Files#walkFileTree}, which reads the attributes of every file together
+ * with its directory entry. A directory is not entered at all when no include pattern can match anything below it,
+ * or when an exclude pattern ending with <code>/**</code> excludes everything below it, so that trees such as
+ * <code>node_modules</code> or <code>obj</code> cost nothing once they are excluded. The entries directly below the
+ * base directory can be walked in parallel.
+ *
+ * <p>The files found are the same as those of {@link Util#createFileSet(File, String, String)}: the patterns are
+ * separated by commas, matched case sensitively, symbolic links are followed and the Ant default excludes apply.
+ * Patterns the walk does not handle, absolute ones and ones containing <code>.</code> or <code>..</code>, are left
+ * to the Ant {@link DirectoryScanner}.
+ */
+final class NUnitReportScanner {
+
+    private static final String DEEP_TREE_MATCH = "**";
+
+    private final String includesPattern;
+    private final String excludesPattern;
+    private final List<String[]> includes = new ArrayList<>();
+    private final List<String[]> excludes = new ArrayList<>();
+    /** The exclude patterns that exclude everything below the directories they match, without their last token. */
+    private final List<String[]> excludedTrees = new ArrayList<>();
+    private boolean walkable = true;
+
+    /**
+     * @param includesPattern the comma separated patterns of the files to find
+     * @param excludesPattern the comma separated patterns of the files to leave out, or null
+     */
+    NUnitReportScanner(String includesPattern, String excludesPattern) {
+        this.includesPattern = includesPattern;
+        this.excludesPattern = excludesPattern;
+        addPatterns(includesPattern, includes);
+        addPatterns(excludesPattern, excludes);
+        for (String defaultExclude : DirectoryScanner.getDefaultExcludes()) {
+            addPattern(defaultExclude, excludes);
+        }
+        for (String[] exclude : excludes) {
+            int last = exclude.length - 1;
+            if (last > 0 && DEEP_TREE_MATCH.equals(exclude[last])) {
+                String[] tree = new String[last];
+                System.arraycopy(exclude, 0, tree, 0, last);
+                excludedTrees.add(tree);
+            }
+        }
+    }
+
+    private void addPatterns(String patterns, List<String[]> tokenizedPatterns) {
+        if (patterns == null) {
+            return;
+        }
+        StringTokenizer tokens = new StringTokenizer(patterns, ",");
+        while (tokens.hasMoreTokens()) {
+            String pattern = tokens.nextToken().trim();
+            if (!pattern.isEmpty()) {
+                addPattern(pattern, tokenizedPatterns);
+            }
+        }
+    }
+
+    private void addPattern(String pattern, List<String[]> tokenizedPatterns) {
+        String normalized = pattern.replace('\\', '/');
+        if (normalized.startsWith("/") || new File(pattern).isAbsolute()) {
+            walkable = false;
+        }
+        if (normalized.endsWith("/")) {
+            normalized += DEEP_TREE_MATCH;
+        }
+        String[] tokens = tokenize(normalized, '/');
+        for (String token : tokens) {
+            if (token.equals(".") || token.equals("..")) {
+                walkable = false;
+            }
+        }
+        tokenizedPatterns.add(tokens);
+    }
+
+    /**
+     * Finds the matching files.
+     *
+     * @param baseDir the directory to look for the files in
+     * @param parallelism the maximum number of entries of the base directory walked at the same time
+     * @return the attributes of the matching files by their path relative to the base directory, in the order they
+     *     were found, which does not depend on the parallelism
+     * @throws IOException if the walk was interrupted
+     */
+    Map<String, BasicFileAttributes> scan(File baseDir, int parallelism) throws IOException {
+        Map<String, BasicFileAttributes> files = new LinkedHashMap<>();
+        if (!walkable) {
+            DirectoryScanner scanner =
+                    Util.createFileSet(baseDir, includesPattern, excludesPattern).getDirectoryScanner();
+            for (String file : scanner.getIncludedFiles()) {
+                files.put(file, Files.readAttributes(new File(baseDir, file).toPath(), BasicFileAttributes.class));
+            }
+            return files;
+        }
+
+        Path base = baseDir.toPath();
+        if (parallelism <= 1 || !Files.isDirectory(base)) {
+            walk(base, base, files);
+            return files;
+        }
+        List<String> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(base)) {
+            for (Path entry : stream) {
+                entries.add(entry.getFileName().toString());
+            }
+        }
+        // every entry is walked as if it were a report file, the results keep the order of the entries
+        List<Map<String, BasicFileAttributes>> entryFiles =
+                NUnitReportExecutor.run(entries.toArray(new String[0]), parallelism, (index, entry) -> {
+                    Map<String, BasicFileAttributes> found = new LinkedHashMap<>();
+                    walk(base, base.resolve(entry), found);
+                    return found;
+                });
+        for (Map<String, BasicFileAttributes> found : entryFiles) {
+            files.putAll(found);
+        }
+        return files;
+    }
+
+    private void walk(Path base, Path start, Map<String, BasicFileAttributes> files) throws IOException {
+        Files.walkFileTree(
+                start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        String[] path = tokenize(base.relativize(dir).toString(), File.separatorChar);
+                        return couldHoldIncluded(path) && !isTreeExcluded(path)
+                                ? FileVisitResult.CONTINUE
+                                : FileVisitResult.SKIP_SUBTREE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isRegularFile()) {
+                            String name = base.relativize(file).toString();
+                            if (isIncluded(tokenize(name, File.separatorChar))) {
+                                files.put(name, attrs);
+                            }
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                        // unreadable directories, broken links and loops of symbolic links hold no reports
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+    }
+
+    private boolean isIncluded(String[] path) {
+        return matchesAny(includes, path) && !matchesAny(excludes, path);
+    }
+
+    private boolean couldHoldIncluded(String[] directory) {
+        for (String[] include : includes) {
+            if (matchStart(include, 0, directory, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isTreeExcluded(String[] directory) {
+        return directory.length > 0 && matchesAny(excludedTrees, directory);
+    }
+
+    private static boolean matchesAny(List<String[]> patterns, String[] path) {
+        for (String[] pattern : patterns) {
+            if (match(pattern, 0, path, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the path from the given token on matches the pattern from the given token on
+     */
+    static boolean match(String[] pattern, int patternIndex, String[] path, int pathIndex) {
+        if (patternIndex == pattern.length) {
+            return pathIndex == path.length;
+        }
+        if (DEEP_TREE_MATCH.equals(pattern[patternIndex])) {
+            return match(pattern, patternIndex + 1, path, pathIndex)
+                    || (pathIndex < path.length && match(pattern, patternIndex, path, pathIndex + 1));
+        }
+        return pathIndex < path.length
+                && matchToken(pattern[patternIndex], path[pathIndex])
+                && match(pattern, patternIndex + 1, path, pathIndex + 1);
+    }
+
+    /**
+     * @return whether the path from the given token on matches the start of the pattern from the given token on, so
+     *     that the directory of the path could hold files matching the pattern
+     */
+    static boolean matchStart(String[] pattern, int patternIndex, String[] path, int pathIndex) {
+        if (pathIndex == path.length) {
+            return true;
+        }
+        if (patternIndex == pattern.length) {
+            return false;
+        }
+        if (DEEP_TREE_MATCH.equals(pattern[patternIndex])) {
+            return true;
+        }
+        return matchToken(pattern[patternIndex], path[pathIndex])
+                && matchStart(pattern, patternIndex + 1, path, pathIndex + 1);
+    }
+
+    /**
+     * @return whether a file or directory name matches a pattern token, in which <code>*</code> matches any number
+     *     of characters and <code>?</code> matches a single character
+     */
+    static boolean matchToken(String pattern, String name) {
+        int p = 0;
+        int n = 0;
+        int star = -1;
+        int starName = 0;
+        while (n < name.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == name.charAt(n))) {
+                p++;
+                n++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                starName = n;
+            } else if (star >= 0) {
+                p = star + 1;
+                n = ++starName;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    private static String[] tokenize(String path, char separator) {
+        List<String> tokens = new ArrayList<>();
+        StringTokenizer tokenizer = new StringTokenizer(path, String.valueOf(separator));
+        while (tokenizer.hasMoreTokens()) {
+            tokens.add(tokenizer.nextToken());
+        }
+        return tokens.toArray(new String[0]);
+    }
+
+    /**
+     * Returns a directory scanner that returns the given files instead of scanning for them, to parse files that are
+     * already known with the JUnit test result parser.
+     *
+     * @param baseDir the directory the files are relative to
+     * @param files the names of the files
+     */
+    static DirectoryScanner getKnownFilesScanner(File baseDir, String[] files) {
+        DirectoryScanner scanner = new DirectoryScanner() {
+            @Override
+            public String[] getIncludedFiles() {
+                return files.clone();
+            }
+
+            @Override
+            public int getIncludedFilesCount() {
+                return files.length;
+            }
+        };
+        scanner.setBasedir(baseDir);
+        return scanner;
+    }
+}
@@ -1,20 +1,26 @@
 package hudson.plugins.nunit;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -35,6 +41,8 @@ import org.xml.sax.SAXParseException;
  * report that is read by Jenkins should only contain one. This class will split up one NUnit report into several JUnit
  * files.
  *
+ * <p>Alternatively all test suites of a NUnit report are kept in a single JUnit file, see
+ * {@link #setSingleJUnitFile(boolean)}.
  */
 public class NUnitReportTransformer implements TestReportTransformer, Serializable {
 
@@ -47,8 +55,8 @@ public class NUnitReportTransformer implements TestReportTransformer, Serializab
     public static final String JUNIT_FILE_POSTFIX = ".xml";
     public static final String JUNIT_FILE_PREFIX = "TEST-";
 
-    private static final int MAX_PATH = 255;
-    private static final String TEMP_JUNIT_FILE_STR = "temp-junit.xml";
+    static final int MAX_PATH = 255;
+    private static final String TEMP_JUNIT_FILE_PREFIX = "temp-junit";
     public static final String NUNIT_TO_JUNIT_XSLFILE_STR = "nunit-to-junit.xsl";
 
     private static final String DISALLOW_DOCTYPE_DECL = "http://apache.org/xml/features/disallow-doctype-decl";
@@ -56,11 +64,24 @@ public class NUnitReportTransformer implements TestReportTransformer, Serializab
     private static final String EXTERNAL_PARAMETER_ENTITIES = "http://xml.org/sax/features/external-parameter-entities";
     private static final String LOAD_EXTERNAL_DTD = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
 
+    /**
+     * The compiled <code>nunit-to-junit.xsl</code>, shared by all transformers in this JVM. {@link Templates} are
+     * thread safe, the {@link Transformer}s created from them are not.
+     */
+    private static Templates nunitTemplates;
+
+    private static final AtomicLong templatesCacheHits = new AtomicLong();
+    private static final AtomicLong templatesCacheMisses = new AtomicLong();
+
+    private boolean singleJUnitFile;
+
     private transient boolean xslIsInitialized;
     private transient Transformer nunitTransformer;
     private transient Transformer writerTransformer;
     private transient DocumentBuilder xmlDocumentBuilder;
     private transient int transformCount;
+    private transient long xslNanos;
+    private transient long splitNanos;
 
     /**
      * Transform the nunit file into several junit files in the output path
@@ -72,22 +93,74 @@ public class NUnitReportTransformer implements TestReportTransformer, Serializab
      * @throws SAXException SAXException
      * @throws ParserConfigurationException ParserConfigurationException
      */
-    @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED_BAD_PRACTICE")
     public void transform(InputStream nunitFileStream, File junitOutputPath)
             throws IOException, TransformerException, SAXException, ParserConfigurationException {
+        transform(nunitFileStream, junitOutputPath, ++transformCount);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED_BAD_PRACTICE")
+    public void transform(InputStream nunitFileStream, File junitOutputPath, int reportNumber)
+            throws IOException, TransformerException, SAXException, ParserConfigurationException {
+
+        File junitTargetFile = new File(junitOutputPath, TEMP_JUNIT_FILE_PREFIX + "_" + reportNumber + ".xml");
+        long start = System.nanoTime();
+        transformToJUnitFile(nunitFileStream, junitTargetFile);
+        long transformed = System.nanoTime();
+        xslNanos += transformed - start;
+        if (singleJUnitFile) {
+            keepJUnitFile(junitTargetFile, getJUnitReportFile(junitOutputPath, reportNumber));
+        } else {
+            splitJUnitFile(junitTargetFile, junitOutputPath, reportNumber);
+        }
+        splitNanos += System.nanoTime() - transformed;
+        junitTargetFile.delete();
+    }
+
+    public boolean isSingleJUnitFile() {
+        return singleJUnitFile;
+    }
+
+    /**
+     * @param singleJUnitFile whether to write all test suites of a NUnit report to a single junit file, see
+     *     {@link #getJUnitReportFile(File, int)}, instead of a junit file per test suite
+     */
+    public void setSingleJUnitFile(boolean singleJUnitFile) {
+        this.singleJUnitFile = singleJUnitFile;
+    }
+
+    /**
+     * @return the nanoseconds this transformer spent transforming NUnit reports with the XSL
+     */
+    long getXslNanos() {
+        return xslNanos;
+    }
+
+    /**
+     * @return the nanoseconds this transformer spent splitting the transformed reports into JUnit files
+     */
+    long getSplitNanos() {
+        return splitNanos;
+    }
 
+    /**
+     * Transforms the nunit file into a single junit file containing all test suites.
+     *
+     * @param nunitFileStream the nunit file stream to transform
+     * @param junitTargetFile the file to write the junit test suites to
+     */
+    void transformToJUnitFile(InputStream nunitFileStream, File junitTargetFile)
+            throws IOException, TransformerException, ParserConfigurationException {
         initialize();
 
-        File junitTargetFile = new File(junitOutputPath, TEMP_JUNIT_FILE_STR);
         FileOutputStream fileOutputStream = new FileOutputStream(junitTargetFile);
         try {
-            Reader reader = new BufferedReader(new InvalidXmlStreamReader(nunitFileStream, '?'));
+            Reader reader = new InvalidXmlStreamReader(nunitFileStream, '?');
             nunitTransformer.transform(new StreamSource(reader), new StreamResult(fileOutputStream));
         } finally {
             fileOutputStream.close();
         }
-        splitJUnitFile(junitTargetFile, junitOutputPath);
-        junitTargetFile.delete();
     }
 
     private void initialize()
@@ -96,8 +169,7 @@ public class NUnitReportTransformer implements TestReportTransformer, Serializab
         if (!xslIsInitialized) {
             TransformerFactory transformerFactory = createTransformer();
 
-            nunitTransformer = transformerFactory.newTransformer(
-                    new StreamSource(this.getClass().getResourceAsStream(NUNIT_TO_JUNIT_XSLFILE_STR)));
+            nunitTransformer = getNUnitTemplates(transformerFactory).newTransformer();
             writerTransformer = transformerFactory.newTransformer();
 
             DocumentBuilderFactory factory = createDocumentBuilderFactory();
@@ -107,6 +179,33 @@ public class NUnitReportTransformer implements TestReportTransformer, Serializab
         }
     }
 
+    private static synchronized Templates getNUnitTemplates(TransformerFactory transformerFactory)
+            throws TransformerConfigurationException {
+        if (nunitTemplates == null) {
+            templatesCacheMisses.incrementAndGet();
+            nunitTemplates = transformerFactory.newTemplates(
+                    new StreamSource(NUnitReportTransformer.class.getResourceAsStream(NUNIT_TO_JUNIT_XSLFILE_STR)));
+            LOGGER.log(Level.FINE, "Compiled " + NUNIT_TO_JUNIT_XSLFILE_STR);
+        } else {
+            templatesCacheHits.incrementAndGet();
+        }
+        return nunitTemplates;
+    }
+
+    /**
+     * @return how often the compiled <code>nunit-to-junit.xsl</code> was reused instead of compiled in this JVM
+     */
+    public static long getTemplatesCacheHits() {
+        return templatesCacheHits.get();
+    }
+
+    /**
+     * @return how often <code>nunit-to-junit.xsl</code> was compiled in this JVM
+     */
+    public static long getTemplatesCacheMisses() {
+        return templatesCacheMisses.get();
+    }
+
     private TransformerFactory createTransformer() throws TransformerConfigurationException {
         // the default class does not support the options needed for secure processing
         TransformerFactory transformerFactory = TransformerFactory.newInstance(
@@ -159,13 +258,14 @@ public class NUnitReportTransformer implements TestReportTransformer, Serializab
      *
      * @param junitFile report containing one or more junit test suite tags
      * @param junitOutputPath the path to put all junit files
+     * @param reportNumber the number of the transformed NUnit report
      * @throws IOException IOException
      * @throws SAXException SAXException
      * @throws TransformerException TransformerException
      */
-    private void splitJUnitFile(File junitFile, File junitOutputPath)
-            throws SAXException, IOException, TransformerException {
-        transformCount++;
+    void splitJUnitFile(File junitFile, File junitOutputPath, int reportNumber)
+            throws SAXException, IOException, TransformerException, ParserConfigurationException {
+        initialize();
         try {
             Document document = xmlDocumentBuilder.parse(junitFile);
 
@@ -174,25 +274,8 @@ public class NUnitReportTransformer implements TestReportTransformer, Serializab
             for (int i = 0; i < elementsByTagName.getLength(); i++) {
                 Element element = (Element) elementsByTagName.item(i);
                 DOMSource source = new DOMSource(element);
-                String fileNamePostfix = "_" + transformCount + "_" + i + JUNIT_FILE_POSTFIX;
-                String filename = JUNIT_FILE_PREFIX
-                        + element.getAttribute("name").replaceAll(ILLEGAL_FILE_CHARS_REGEX, "_")
-                        + fileNamePostfix;
-                File junitOutputFile = new File(junitOutputPath, filename);
-
-                // check for really long file names
-                if (junitOutputFile.toString().length() >= MAX_PATH) {
-                    int maxMiddleLength = MAX_PATH
-                            - JUNIT_FILE_PREFIX.length()
-                            - fileNamePostfix.length()
-                            - junitOutputPath.toString().length();
-                    filename = JUNIT_FILE_PREFIX
-                            + StringUtils.left(
-                                    element.getAttribute("name").replaceAll(ILLEGAL_FILE_CHARS_REGEX, "_"),
-                                    maxMiddleLength)
-                            + fileNamePostfix;
-                    junitOutputFile = new File(junitOutputPath, filename);
-                }
+                File junitOutputFile =
+                        getJUnitOutputFile(junitOutputPath, element.getAttribute("name"), reportNumber, i);
                 FileOutputStream fileOutputStream = new FileOutputStream(junitOutputFile);
                 try {
                     StreamResult result = new StreamResult(fileOutputStream);
@@ -207,4 +290,77 @@ public class NUnitReportTransformer implements TestReportTransformer, Serializab
             }
         }
     }
+
+    /**
+     * Keeps the transformed junit file as the junit file of the NUnit report if it contains any test suite. An empty
+     * report is not kept, just as it is not split into any files.
+     *
+     * @param junitFile report containing zero or more junit test suite tags
+     * @param junitOutputFile the file to keep the report as
+     */
+    private static void keepJUnitFile(File junitFile, File junitOutputFile) throws IOException {
+        if (containsTestSuite(junitFile)) {
+            Files.move(junitFile.toPath(), junitOutputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static boolean containsTestSuite(File junitFile) throws IOException {
+        try (InputStream in = Files.newInputStream(junitFile.toPath())) {
+            XMLStreamReader xmlReader = NUnitStreamingReportTransformer.XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                while (xmlReader.hasNext()) {
+                    if (xmlReader.next() == XMLStreamConstants.START_ELEMENT
+                            && "testsuite".equals(xmlReader.getLocalName())) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                xmlReader.close();
+            }
+        } catch (XMLStreamException e) {
+            // an empty NUnit report is transformed into an empty file
+            return false;
+        }
+    }
+
+    /**
+     * Returns the file all test suites of a NUnit report are written to if they are written to a single file.
+     *
+     * @param junitOutputPath the path to put all junit files
+     * @param reportNumber the number of the transformed NUnit report
+     * @return the file to write the test suites to
+     */
+    static File getJUnitReportFile(File junitOutputPath, int reportNumber) {
+        return new File(junitOutputPath, JUNIT_FILE_PREFIX + "nunit-report_" + reportNumber + JUNIT_FILE_POSTFIX);
+    }
+
+    /**
+     * Returns the file a JUnit test suite is written to.
+     *
+     * @param junitOutputPath the path to put all junit files
+     * @param suiteName the name of the test suite
+     * @param transformCount the number of the transformed NUnit report
+     * @param index the index of the test suite in the transformed NUnit report
+     * @return the file to write the test suite to
+     */
+    static File getJUnitOutputFile(File junitOutputPath, String suiteName, int transformCount, int index) {
+        String fileNamePostfix = "_" + transformCount + "_" + index + JUNIT_FILE_POSTFIX;
+        String filename =
+                JUNIT_FILE_PREFIX + suiteName.replaceAll(ILLEGAL_FILE_CHARS_REGEX, "_") + fileNamePostfix;
+        File junitOutputFile = new File(junitOutputPath, filename);
+
+        // check for really long file names
+        if (junitOutputFile.toString().length() >= MAX_PATH) {
+            int maxMiddleLength = MAX_PATH
+                    - JUNIT_FILE_PREFIX.length()
+                    - fileNamePostfix.length()
+                    - junitOutputPath.toString().length();
+            filename = JUNIT_FILE_PREFIX
+                    + StringUtils.left(suiteName.replaceAll(ILLEGAL_FILE_CHARS_REGEX, "_"), maxMiddleLength)
+                    + fileNamePostfix;
+            junitOutputFile = new File(junitOutputPath, filename);
+        }
+        return junitOutputFile;
+    }
 }
@@ -0,0 +1,213 @@
+package hudson.plugins.nunit;
+
+import hudson.model.TaskListener;
+import hudson.tasks.junit.SuiteResult;
+import hudson.tasks.junit.TestResult;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.transform.TransformerException;
+import jenkins.security.MasterToSlaveCallable;
+import org.apache.tools.ant.DirectoryScanner;
+
+/**
+ * Class responsible for reading NUnit reports directly into JUnit test results, without writing and parsing JUnit
+ * files in between. The test results are returned in their {@link CompactTestResult compact form}. Matched files that
+ * are JUnit reports already are parsed as they are, see {@link TestReportFormat}, and their test suites are returned
+ * without being made compact.
+ */
+public class NUnitResultArchiver extends MasterToSlaveCallable<CompactTestResult, IOException>
+        implements NUnitPublishStatistics.Source {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How many NUnit reports every thread may read ahead of writing the compact test results, so that the threads go
+     * on reading while the suites of an earlier report are written, without holding the suites of all reports.
+     */
+    private static final int PENDING_REPORTS_PER_THREAD = 2;
+
+    private final String root;
+    private final TaskListener listener;
+    private final String testResultsPattern;
+    private final NUnitStreamingReportTransformer unitReportTransformer;
+    private final boolean failIfNoResults;
+    private final int parallelism;
+    private String[] nunitReports;
+
+    private int fileCount;
+    private final NUnitPublishStatistics statistics = new NUnitPublishStatistics();
+    private final AtomicBoolean waitReported = new AtomicBoolean();
+    private final AtomicInteger cacheHits = new AtomicInteger();
+    private final AtomicInteger cacheMisses = new AtomicInteger();
+
+    /**
+     * @param parallelism the maximum number of NUnit reports read, or directories scanned for them, at the same time,
+     *     and of the threads a large report is read on
+     */
+    public NUnitResultArchiver(
+            String root,
+            TaskListener listener,
+            String testResultsPattern,
+            NUnitStreamingReportTransformer unitReportTransformer,
+            boolean failIfNoResults,
+            int parallelism) {
+        this.root = root;
+        this.listener = listener;
+        this.testResultsPattern = testResultsPattern;
+        this.unitReportTransformer = unitReportTransformer;
+        this.failIfNoResults = failIfNoResults;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the test results of all NUnit reports, or null if no NUnit report was found
+     */
+    public CompactTestResult call() throws IOException {
+        String[] nunitFiles = nunitReports;
+        if (nunitFiles == null) {
+            long start = System.nanoTime();
+            nunitFiles = NUnitArchiver.findNUnitReports(new File(root), testResultsPattern, parallelism);
+            statistics.addTimeSince(NUnitPublishStatistics.SCAN, start);
+        }
+        if (nunitFiles.length == 0) {
+            NUnitArchiver.reportNoNUnitReports(listener, failIfNoResults);
+            return null;
+        }
+
+        // reading suite results keeps no state in the transformer, so it can be shared between the threads. The
+        // suites of every report are written while the later reports are still read, in the order of the reports
+        CompactTestResult.Writer writer = new CompactTestResult.Writer();
+        NUnitReportExecutor.run(
+                nunitFiles,
+                parallelism,
+                parallelism * PENDING_REPORTS_PER_THREAD,
+                (index, nunitFileName) -> readSuiteResults(nunitFileName),
+                (index, report) -> {
+                    for (SuiteResult suite : report.suites) {
+                        if (report.junitReport) {
+                            writer.writeAsIs(suite);
+                        } else {
+                            writer.write(suite);
+                        }
+                    }
+                });
+        fileCount += nunitFiles.length;
+        NUnitConversionCache.getAgentCache().report(listener, cacheHits.get(), cacheMisses.get());
+        statistics.addFilesRead(nunitFiles.length, NUnitArchiver.getSize(new File(root), nunitFiles));
+
+        CompactTestResult result = writer.finish();
+        statistics.addBytesWritten(result.getSize());
+        return result;
+    }
+
+    private ReportSuites readSuiteResults(String nunitFileName) throws IOException {
+        File nunitFile = new File(root, nunitFileName);
+        switch (TestReportFormat.of(nunitFile)) {
+            case JUNIT:
+                listener.getLogger().println("Recording " + nunitFileName + " as it is, a JUnit report");
+                return new ReportSuites(readJUnitReport(nunitFile), true);
+            case OTHER:
+                NUnitArchiver.reportSkipped(listener, nunitFileName);
+                return new ReportSuites(Collections.emptyList(), false);
+            default:
+                break;
+        }
+        NUnitConversionCache cache = NUnitConversionCache.getAgentCache();
+        String key = cache.isEnabled()
+                ? NUnitConversionCache.getKey(
+                        nunitFile, NUnitConversionCache.getSuitesConversion(unitReportTransformer))
+                : null;
+        if (key != null) {
+            List<SuiteResult> cached = cache.getSuites(key);
+            if (cached != null) {
+                cacheHits.incrementAndGet();
+                return new ReportSuites(cached, false);
+            }
+        }
+        List<SuiteResult> suites = new ArrayList<>();
+        boolean complete;
+        try (NUnitConversionLimiter.Conversion conversion =
+                NUnitArchiver.startConversion(unitReportTransformer, nunitFile, listener, waitReported, statistics)) {
+            complete = unitReportTransformer.readSuiteResults(nunitFile, suites, parallelism);
+        } catch (TransformerException te) {
+            throw new IOException(
+                    "Could not transform the NUnit report. Please report this issue to the plugin author", te);
+        }
+        if (!complete) {
+            NUnitArchiver.reportCutOff(listener, nunitFileName, statistics);
+        }
+        if (key != null) {
+            cacheMisses.incrementAndGet();
+            // the suites of a report that was cut off are not cached, so that it is reported again
+            if (complete) {
+                cache.putSuites(key, suites);
+            }
+        }
+        return new ReportSuites(suites, false);
+    }
+
+    /**
+     * Parses a JUnit report matched by the test results pattern, as the JUnit result archiver does. A compressed
+     * report is decompressed to a temporary file first.
+     */
+    private static List<SuiteResult> readJUnitReport(File junitReport) throws IOException {
+        if (!NUnitArchiver.isCompressed(junitReport.toPath())) {
+            return parseJUnitReport(junitReport);
+        }
+        File copy = File.createTempFile("junit-report", NUnitReportTransformer.JUNIT_FILE_POSTFIX);
+        try {
+            try (InputStream in = NUnitArchiver.openNUnitReport(junitReport, -1)) {
+                Files.copy(in, copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return parseJUnitReport(copy);
+        } finally {
+            Files.deleteIfExists(copy.toPath());
+        }
+    }
+
+    private static List<SuiteResult> parseJUnitReport(File junitReport) throws IOException {
+        DirectoryScanner ds = NUnitReportScanner.getKnownFilesScanner(
+                junitReport.getParentFile(), new String[] {junitReport.getName()});
+        return new ArrayList<>(new TestResult(0, ds, true, false, null, false).getSuites());
+    }
+
+    /**
+     * Sets the NUnit report files to read, instead of the files matching the test results pattern.
+     *
+     * @param nunitReports the names of the NUnit report files, relative to the root
+     */
+    public void setNUnitReports(String[] nunitReports) {
+        this.nunitReports = nunitReports.clone();
+    }
+
+    int getFileCount() {
+        return fileCount;
+    }
+
+    @Override
+    public NUnitPublishStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * The test suites read from a report.
+     */
+    private static final class ReportSuites {
+        final List<SuiteResult> suites;
+        /** Whether the report is a JUnit report, whose test suites are returned as they are. */
+        final boolean junitReport;
+
+        ReportSuites(List<SuiteResult> suites, boolean junitReport) {
+            this.suites = suites;
+            this.junitReport = junitReport;
+        }
+    }
+}
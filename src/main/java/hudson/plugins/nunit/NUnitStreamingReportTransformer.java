@@ -0,0 +1,1104 @@
+package hudson.plugins.nunit;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.SuiteResult;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.TransformerException;
+import jenkins.util.SystemProperties;
+
+/**
+ * Transforms a NUnit report into separate JUnit reports in a single pass over the report.
+ *
+ * <p>Unlike {@link NUnitReportTransformer} this does not write an intermediate JUnit report that is then parsed into
+ * a DOM and split, but reads the NUnit report as a stream and writes every JUnit test suite as soon as it is complete.
+ * Only the test suite being written is held in memory, and once the test cases of a test suite grow too large they
+ * are moved to a temporary file, see {@link JUnitReportFiles.Buffer}. The JUnit reports are the same as the ones
+ * written by {@link NUnitReportTransformer} from <code>nunit-to-junit.xsl</code>, both in name and content.
+ *
+ * <p>The test suites can also be read directly into {@link SuiteResult}s, in which case no JUnit report is written at
+ * all. The results are the same as the ones the JUnit plugin parses from the JUnit reports.
+ *
+ * <p>The output, messages and stack traces of a test case, and the output of all test cases of a test suite, are
+ * limited to a maximum number of characters while they are read, see {@link OutputLimit}. A single chatty test can
+ * therefore not fill up the memory of the agent. Class and suite names, which repeat for every test case, are shared
+ * within a report, see {@link NamePool}.
+ *
+ * <p>A large NUnit3 report file can be read on several threads, see {@link #MIN_PARALLEL_REPORT_SIZE}. Its test suites
+ * are split into regions that are read at the same time, see {@link NUnitReportRegions}, and the test suites of every
+ * region are added in the order of the report, so that the results are the same as when it is read on one thread.
+ *
+ * <p>A report that was cut off before its end, e.g. by a test run that crashed while it wrote the report, is not
+ * dropped as a whole: the test suites completed before the end are converted, and the ones still open are left out,
+ * see {@link MarkupEndReader}. The conversion of such a report tells that it is partial.
+ */
+public class NUnitStreamingReportTransformer implements TestReportTransformer, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Pattern XPATH_NUMBER = Pattern.compile("-?([0-9]+(\\.[0-9]*)?|\\.[0-9]+)");
+
+    /** The number of characters of a text the XML parser reads at most at once. */
+    private static final int TEXT_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The factory of the readers of all reports, split regions and JUnit files. Looking up and configuring a factory
+     * costs more than reading a small report, and the factory of the JDK creates readers on several threads at once.
+     */
+    static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+
+    /**
+     * The size from which a NUnit report file is read on several threads, if more than one may be used, in bytes. Set
+     * it to <code>-1</code> to always read a report on a single thread.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Modifiable from the script console")
+    public static long MIN_PARALLEL_REPORT_SIZE = SystemProperties.getLong(
+            NUnitStreamingReportTransformer.class.getName() + ".minParallelReportSize", 256L * 1024 * 1024);
+
+    public static final int DEFAULT_MAX_TEST_CASE_OUTPUT_LENGTH = 1_000_000;
+    public static final int DEFAULT_MAX_TEST_SUITE_OUTPUT_LENGTH = 10_000_000;
+
+    private int maxTestCaseOutputLength = DEFAULT_MAX_TEST_CASE_OUTPUT_LENGTH;
+    private int maxTestSuiteOutputLength = DEFAULT_MAX_TEST_SUITE_OUTPUT_LENGTH;
+
+    private boolean singleJUnitFile;
+
+    private transient int transformCount;
+
+    public int getMaxTestCaseOutputLength() {
+        return maxTestCaseOutputLength;
+    }
+
+    /**
+     * @param maxTestCaseOutputLength the maximum number of characters kept of the output of a test case, or 0 to keep
+     *     all of it
+     */
+    public void setMaxTestCaseOutputLength(int maxTestCaseOutputLength) {
+        this.maxTestCaseOutputLength = Math.max(0, maxTestCaseOutputLength);
+    }
+
+    public int getMaxTestSuiteOutputLength() {
+        return maxTestSuiteOutputLength;
+    }
+
+    /**
+     * @param maxTestSuiteOutputLength the maximum number of characters kept of the output of all test cases of a test
+     *     suite together, or 0 to keep all of it
+     */
+    public void setMaxTestSuiteOutputLength(int maxTestSuiteOutputLength) {
+        this.maxTestSuiteOutputLength = Math.max(0, maxTestSuiteOutputLength);
+    }
+
+    public boolean isSingleJUnitFile() {
+        return singleJUnitFile;
+    }
+
+    /**
+     * @param singleJUnitFile whether to write all test suites of a NUnit report to a single junit file, see
+     *     {@link NUnitReportTransformer#getJUnitReportFile(File, int)}, instead of a junit file per test suite
+     */
+    public void setSingleJUnitFile(boolean singleJUnitFile) {
+        this.singleJUnitFile = singleJUnitFile;
+    }
+
+    /**
+     * Transform the nunit file into several junit files in the output path
+     *
+     * @param nunitFileStream the nunit file stream to transform
+     * @param junitOutputPath the output path to put all junit files
+     * @throws IOException thrown if there was any problem with the transform.
+     * @throws TransformerException thrown if the nunit file could not be parsed
+     */
+    public void transform(InputStream nunitFileStream, File junitOutputPath) throws IOException, TransformerException {
+        transform(nunitFileStream, junitOutputPath, ++transformCount);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void transform(InputStream nunitFileStream, File junitOutputPath, int reportNumber)
+            throws IOException, TransformerException {
+        transformReport(nunitFileStream, junitOutputPath, reportNumber);
+    }
+
+    /**
+     * @return whether the whole report was read, see {@link #transform(File, File, int, int)}
+     */
+    private boolean transformReport(InputStream nunitFileStream, File junitOutputPath, int reportNumber)
+            throws IOException, TransformerException {
+        JUnitReportFiles files = new JUnitReportFiles(junitOutputPath, reportNumber, singleJUnitFile);
+        boolean transformed = false;
+        try {
+            boolean complete = read(nunitFileStream, files, null, null).complete;
+            files.finish();
+            transformed = true;
+            return complete;
+        } finally {
+            if (!transformed) {
+                files.deleteAll();
+            }
+        }
+    }
+
+    /**
+     * Transform the nunit file into several junit files in the output path. A large NUnit3 report is read on several
+     * threads, see {@link #MIN_PARALLEL_REPORT_SIZE}.
+     *
+     * @param nunitFile the nunit file to transform, which may be compressed
+     * @param junitOutputPath the output path to put all junit files
+     * @param reportNumber the number of the report, starting at 1
+     * @param parallelism the maximum number of threads the report is read on
+     * @return true if the whole report was read, false if it was cut off before its end, in which case only the test
+     *     suites completed before the end are transformed
+     * @throws IOException thrown if there was any problem with the transform.
+     * @throws TransformerException thrown if the nunit file could not be parsed
+     */
+    public boolean transform(File nunitFile, File junitOutputPath, int reportNumber, int parallelism)
+            throws IOException, TransformerException {
+        return transform(
+                nunitFile,
+                junitOutputPath,
+                reportNumber,
+                parallelism,
+                MIN_PARALLEL_REPORT_SIZE,
+                NUnitReportRegions.MIN_REGION_SIZE);
+    }
+
+    boolean transform(
+            File nunitFile,
+            File junitOutputPath,
+            int reportNumber,
+            int parallelism,
+            long minParallelReportSize,
+            long minRegionSize)
+            throws IOException, TransformerException {
+        try (NUnitReportRegions regions = findRegions(nunitFile, parallelism, minParallelReportSize, minRegionSize)) {
+            if (regions == null) {
+                try (InputStream fileStream = NUnitArchiver.openNUnitReport(nunitFile)) {
+                    return transformReport(fileStream, junitOutputPath, reportNumber);
+                }
+            }
+            JUnitReportFiles files = new JUnitReportFiles(junitOutputPath, reportNumber, singleJUnitFile);
+            boolean transformed = false;
+            try {
+                boolean complete = read(regions, files, null, parallelism);
+                files.finish();
+                transformed = true;
+                return complete;
+            } finally {
+                if (!transformed) {
+                    files.deleteAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the nunit file stream into JUnit test suite results, without writing any junit files.
+     *
+     * @param nunitFileStream the nunit file stream to read
+     * @param suites the collection to add the test suites to
+     * @return true if the whole report was read, false if it was cut off before its end, in which case only the test
+     *     suites completed before the end are added
+     * @throws IOException thrown if the nunit file could not be read
+     * @throws TransformerException thrown if the nunit file could not be parsed
+     */
+    public boolean readSuiteResults(InputStream nunitFileStream, Collection<SuiteResult> suites)
+            throws IOException, TransformerException {
+        // only add the test suites once the report could be read, up to its end if it was cut off, like the junit
+        // files of a failed transform are deleted; the files are only used to keep track of the test suites, nothing
+        // is written
+        List<SuiteResult> read = new ArrayList<>();
+        boolean complete = read(nunitFileStream, new JUnitReportFiles(null, 0), read, null).complete;
+        suites.addAll(read);
+        return complete;
+    }
+
+    /**
+     * Reads the nunit file into JUnit test suite results, without writing any junit files. A large NUnit3 report is
+     * read on several threads, see {@link #MIN_PARALLEL_REPORT_SIZE}.
+     *
+     * @param nunitFile the nunit file to read, which may be compressed
+     * @param suites the collection to add the test suites to
+     * @param parallelism the maximum number of threads the report is read on
+     * @return true if the whole report was read, false if it was cut off before its end, in which case only the test
+     *     suites completed before the end are added
+     * @throws IOException thrown if the nunit file could not be read
+     * @throws TransformerException thrown if the nunit file could not be parsed
+     */
+    public boolean readSuiteResults(File nunitFile, Collection<SuiteResult> suites, int parallelism)
+            throws IOException, TransformerException {
+        return readSuiteResults(
+                nunitFile, suites, parallelism, MIN_PARALLEL_REPORT_SIZE, NUnitReportRegions.MIN_REGION_SIZE);
+    }
+
+    boolean readSuiteResults(
+            File nunitFile,
+            Collection<SuiteResult> suites,
+            int parallelism,
+            long minParallelReportSize,
+            long minRegionSize)
+            throws IOException, TransformerException {
+        try (NUnitReportRegions regions = findRegions(nunitFile, parallelism, minParallelReportSize, minRegionSize)) {
+            if (regions == null) {
+                try (InputStream fileStream = NUnitArchiver.openNUnitReport(nunitFile)) {
+                    return readSuiteResults(fileStream, suites);
+                }
+            }
+            List<SuiteResult> read = new ArrayList<>();
+            boolean complete = read(regions, new JUnitReportFiles(null, 0), read, parallelism);
+            suites.addAll(read);
+            return complete;
+        }
+    }
+
+    private static NUnitReportRegions findRegions(
+            File nunitFile, int parallelism, long minParallelReportSize, long minRegionSize) throws IOException {
+        if (parallelism <= 1
+                || minParallelReportSize < 0
+                || !nunitFile.isFile()
+                || nunitFile.length() < minParallelReportSize) {
+            return null;
+        }
+        return NUnitReportRegions.find(nunitFile.toPath(), parallelism, minRegionSize);
+    }
+
+    /**
+     * Reads the regions of a report on several threads, then the rest of the report, adding the test suites of every
+     * region at its place.
+     *
+     * @return whether the whole report was read
+     */
+    private boolean read(
+            NUnitReportRegions regions, JUnitReportFiles files, Collection<SuiteResult> suites, int parallelism)
+            throws IOException, TransformerException {
+        List<JUnitReportFiles> allRegionFiles = Collections.synchronizedList(new ArrayList<>());
+        boolean completed = false;
+        boolean complete = false;
+        try {
+            List<RegionResult> results = NUnitReportExecutor.run(regions.size(), parallelism, index -> {
+                JUnitReportFiles regionFiles = files.newRegion(index);
+                allRegionFiles.add(regionFiles);
+                List<SuiteResult> regionSuites = suites == null ? null : new ArrayList<>();
+                try (InputStream regionStream = regions.openRegion(index)) {
+                    ReadResult read = read(regionStream, regionFiles, regionSuites, null);
+                    if (!read.complete) {
+                        // a region is a whole test suite, which is malformed if it ends early
+                        throw new TransformerException("Could not parse the NUnit report, a test suite ends early");
+                    }
+                    regionFiles.finish();
+                    return new RegionResult(regionFiles, regionSuites, read.testCaseCount);
+                } catch (TransformerException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            });
+            try (InputStream skeleton = regions.openSkeleton()) {
+                complete = read(skeleton, files, suites, results.iterator()).complete;
+            }
+            completed = true;
+            return complete;
+        } catch (IOException e) {
+            if (e.getCause() instanceof TransformerException) {
+                throw (TransformerException) e.getCause();
+            }
+            throw e;
+        } finally {
+            // the regions after the end of a report that was cut off are not added
+            if (!completed || !complete) {
+                synchronized (allRegionFiles) {
+                    for (JUnitReportFiles regionFiles : allRegionFiles) {
+                        regionFiles.deleteAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param regions the results of the regions of the report, in their order, or null if the report is not split
+     */
+    private ReadResult read(
+            InputStream nunitFileStream,
+            JUnitReportFiles files,
+            Collection<SuiteResult> suites,
+            Iterator<RegionResult> regions)
+            throws IOException, TransformerException {
+        try {
+            MarkupEndReader reader = new MarkupEndReader(new InvalidXmlStreamReader(nunitFileStream, '?'));
+            XMLStreamReader xmlReader = XML_INPUT_FACTORY.createXMLStreamReader(reader);
+            try {
+                if (!nextStartElement(xmlReader)) {
+                    return new ReadResult(0, true);
+                }
+                NamePool names = createNamePool();
+                Handler handler = "test-results".equals(xmlReader.getLocalName())
+                        ? new NUnit2Handler(files, suites, names, maxTestCaseOutputLength, maxTestSuiteOutputLength)
+                        : new NUnit3Handler(
+                                files, suites, regions, names, maxTestCaseOutputLength, maxTestSuiteOutputLength);
+                try {
+                    return new ReadResult(handler.read(xmlReader), true);
+                } catch (XMLStreamException e) {
+                    if (!reader.isCutOffAt(e.getLocation())) {
+                        throw e;
+                    }
+                    // the test suites completed before the end are kept, the ones still open are incomplete
+                    handler.dropOpenSuites();
+                    return new ReadResult(0, false);
+                }
+            } finally {
+                xmlReader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new TransformerException("Could not parse the NUnit report", e);
+        }
+    }
+
+    /**
+     * Creates the pool of the names read from a single NUnit report.
+     */
+    NamePool createNamePool() {
+        return new NamePool();
+    }
+
+    private static XMLInputFactory createXMLInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        // the text of an element is put together while it is read, so that the output of the tests can be truncated
+        // without ever holding all of it
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        try {
+            factory.setProperty("jdk.xml.cdataChunkSize", TEXT_CHUNK_SIZE);
+        } catch (IllegalArgumentException e) {
+            // not the parser of the JDK, which reports a CDATA section as a single event by default
+        }
+        return factory;
+    }
+
+    /**
+     * Reads the test suites of a NUnit report, starting with its root element.
+     */
+    private interface Handler {
+        /**
+         * @return the number of test cases inside the test suites of a NUnit3 report
+         */
+        int read(XMLStreamReader reader) throws XMLStreamException, IOException;
+
+        /**
+         * Leaves out the test suites that are still open at the end of a report that was cut off.
+         */
+        void dropOpenSuites() throws IOException;
+    }
+
+    /**
+     * What was read from a report, or from a region of it.
+     */
+    private static final class ReadResult {
+        /** The number of test cases inside the test suites of a NUnit3 report, if it was read completely. */
+        final int testCaseCount;
+        /** Whether the report was read to its end, instead of being cut off. */
+        final boolean complete;
+
+        ReadResult(int testCaseCount, boolean complete) {
+            this.testCaseCount = testCaseCount;
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * The test suites read from a region of a report, see {@link NUnitReportRegions}.
+     */
+    private static final class RegionResult {
+        final JUnitReportFiles files;
+        /** The test suites read directly, or null if they are written to JUnit reports. */
+        final List<SuiteResult> suites;
+        final int testCaseCount;
+
+        RegionResult(JUnitReportFiles files, List<SuiteResult> suites, int testCaseCount) {
+            this.files = files;
+            this.suites = suites;
+            this.testCaseCount = testCaseCount;
+        }
+    }
+
+    private static boolean nextStartElement(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Converts the NUnit2 <code>test-results</code> format. A JUnit test suite is written for the grand parent of
+     * every first <code>test-case</code> of an element inside <code>test-suite//results</code>, containing all the
+     * test cases of the children of that grand parent.
+     */
+    private static class NUnit2Handler implements Handler {
+
+        private static class Frame {
+            final String name;
+            final Map<String, String> attributes;
+            final boolean inResults;
+            boolean hasTestCase;
+            String firstResultsTestName;
+            List<XmlElement> testCases;
+            List<JUnitReportFiles.Slot> slots;
+            OutputLimit outputLimit;
+
+            Frame(String name, Map<String, String> attributes, boolean inResults) {
+                this.name = name;
+                this.attributes = attributes;
+                this.inResults = inResults;
+            }
+        }
+
+        private final JUnitReportFiles files;
+        /** The test suites read directly, or null if they are written to JUnit reports. */
+        private final Collection<SuiteResult> suites;
+        private final NamePool names;
+
+        private final int maxTestCaseOutputLength;
+        private final int maxTestSuiteOutputLength;
+
+        private final List<Frame> frames = new ArrayList<>();
+
+        NUnit2Handler(
+                JUnitReportFiles files,
+                Collection<SuiteResult> suites,
+                NamePool names,
+                int maxTestCaseOutputLength,
+                int maxTestSuiteOutputLength) {
+            this.files = files;
+            this.suites = suites;
+            this.names = names;
+            this.maxTestCaseOutputLength = maxTestCaseOutputLength;
+            this.maxTestSuiteOutputLength = maxTestSuiteOutputLength;
+        }
+
+        @Override
+        public int read(XMLStreamReader reader) throws XMLStreamException, IOException {
+            frames.add(new Frame(reader.getLocalName(), XmlElement.readAttributes(reader, names), false));
+            while (!frames.isEmpty()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    Frame parent = frames.get(frames.size() - 1);
+                    if ("test-case".equals(name)) {
+                        addTestCase(parent, XmlElement.read(reader, getTestCaseOutputLimit(), names));
+                    } else {
+                        boolean inResults = parent.inResults
+                                || ("results".equals(name) && frames.size() >= 2 && isTopLevelSuite(frames.get(1)));
+                        frames.add(new Frame(name, XmlElement.readAttributes(reader, names), inResults));
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    Frame frame = frames.remove(frames.size() - 1);
+                    if (frame.slots != null) {
+                        writeTestSuite(frame);
+                    }
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * The slots of the open test suites were decided to be written, and are left empty.
+         */
+        @Override
+        public void dropOpenSuites() {
+            frames.clear();
+        }
+
+        /**
+         * The test cases are written to the test suite of their grand parent, which therefore keeps track of the
+         * output of all its test cases.
+         */
+        private OutputLimit getTestCaseOutputLimit() {
+            if (frames.size() < 2) {
+                return new OutputLimit(maxTestCaseOutputLength);
+            }
+            Frame grandParent = frames.get(frames.size() - 2);
+            if (grandParent.outputLimit == null) {
+                grandParent.outputLimit = new OutputLimit(maxTestSuiteOutputLength);
+            }
+            return grandParent.outputLimit.child(maxTestCaseOutputLength);
+        }
+
+        private static boolean isTopLevelSuite(Frame frame) {
+            return "test-suite".equals(frame.name);
+        }
+
+        private void addTestCase(Frame parent, XmlElement testCase) throws IOException {
+            if (frames.size() < 2) {
+                return;
+            }
+            Frame grandParent = frames.get(frames.size() - 2);
+            if (parent.inResults && !parent.hasTestCase) {
+                if (grandParent.slots == null) {
+                    grandParent.slots = new ArrayList<>();
+                }
+                grandParent.slots.add(files.reserveWritten());
+            }
+            parent.hasTestCase = true;
+            if (grandParent.testCases == null) {
+                grandParent.testCases = new ArrayList<>();
+            }
+            grandParent.testCases.add(testCase);
+            if ("results".equals(parent.name)
+                    && grandParent.firstResultsTestName == null
+                    && testCase.hasAttribute("name")) {
+                grandParent.firstResultsTestName = testCase.getAttribute("name");
+            }
+        }
+
+        private void writeTestSuite(Frame suite) throws IOException {
+            String suiteName = nullToEmpty(suite.attributes.get("name"));
+            String fixtureName = names.get(getFixtureName(nullToEmpty(suite.firstResultsTestName), suiteName));
+            if (suites != null) {
+                for (int i = 0; i < suite.slots.size(); i++) {
+                    suites.add(createSuiteResult(suite, fixtureName));
+                }
+                return;
+            }
+
+            int failures = 0;
+            int skipped = 0;
+            StringBuilder content = new StringBuilder();
+            for (XmlElement testCase : suite.testCases) {
+                failures += testCase.getChildElements("failure").size();
+                if (isSkipped(testCase)) {
+                    skipped++;
+                }
+                writeTestCase(content, testCase, fixtureName);
+            }
+
+            Map<String, String> attributes = new LinkedHashMap<>();
+            attributes.put("name", fixtureName);
+            attributes.put("tests", Integer.toString(suite.testCases.size()));
+            attributes.put("time", nullToEmpty(suite.attributes.get("time")));
+            attributes.put("failures", Integer.toString(failures));
+            attributes.put("errors", "0");
+            attributes.put("skipped", Integer.toString(skipped));
+            for (JUnitReportFiles.Slot slot : suite.slots) {
+                files.write(slot, fixtureName, attributes, content);
+            }
+        }
+
+        private static SuiteResult createSuiteResult(Frame suite, String fixtureName) {
+            SuiteResult suiteResult = new SuiteResult(fixtureName, null, null, null);
+            for (XmlElement testCase : suite.testCases) {
+                List<XmlElement> failures = testCase.getChildElements("failure");
+                String errorStackTrace = null;
+                if (!failures.isEmpty()) {
+                    errorStackTrace = "\nMESSAGE:\n" + getFirstChildText(failures, "message")
+                            + "\n+++++++++++++++++++\nSTACK TRACE:\n" + getFirstChildText(failures, "stack-trace");
+                }
+                String skippedMessage = null;
+                if (isSkipped(testCase)) {
+                    skippedMessage = getFirstChildText(testCase.getChildElements("reason"), "message");
+                }
+                suiteResult.addCase(new CaseResult(
+                        suiteResult,
+                        fixtureName,
+                        getTestCaseName(testCase, fixtureName),
+                        null,
+                        skippedMessage,
+                        parseTime(testCase.getAttribute("time")),
+                        null,
+                        null,
+                        errorStackTrace));
+            }
+            suiteResult.setDuration(parseTime(nullToEmpty(suite.attributes.get("time"))));
+            return suiteResult;
+        }
+
+        private static String getFixtureName(String firstTestName, String suiteName) {
+            if (firstTestName.endsWith(")")) {
+                // we have a classic method name
+                return substringBefore(firstTestName, "." + suiteName);
+            }
+            // we have either a custom name, or a test name
+            String testMethodName = firstTestName.substring(firstTestName.lastIndexOf('.') + 1);
+            if (testMethodName.equals(firstTestName)) {
+                return substringBefore(firstTestName, suiteName) + suiteName;
+            }
+            return substringBefore(firstTestName, "." + testMethodName);
+        }
+
+        private static boolean isSkipped(XmlElement testCase) {
+            return "False".equals(testCase.getAttribute("executed"))
+                    || "Inconclusive".equals(testCase.getAttribute("result"));
+        }
+
+        private static void writeTestCase(StringBuilder content, XmlElement testCase, String fixtureName)
+                throws IOException {
+            Map<String, String> attributes = new LinkedHashMap<>();
+            attributes.put("classname", fixtureName);
+            attributes.put("name", getTestCaseName(testCase, fixtureName));
+            if (!testCase.getAttribute("time").isEmpty()) {
+                attributes.put("time", testCase.getAttribute("time"));
+            }
+
+            JUnitXmlWriter writer = new JUnitXmlWriter(content, 2);
+            writer.startElement("testcase", attributes);
+            List<XmlElement> failures = testCase.getChildElements("failure");
+            if (!failures.isEmpty()) {
+                writer.startElement("failure", Map.of());
+                writer.characters("\nMESSAGE:\n" + getFirstChildText(failures, "message")
+                        + "\n+++++++++++++++++++\nSTACK TRACE:\n" + getFirstChildText(failures, "stack-trace"));
+                writer.endElement();
+            }
+            if (isSkipped(testCase)) {
+                String message = getFirstChildText(testCase.getChildElements("reason"), "message");
+                writer.startElement("skipped", Map.of("message", message));
+                writer.endElement();
+            }
+            writer.endElement();
+        }
+
+        private static String getTestCaseName(XmlElement testCase, String fixtureName) {
+            String testCaseName = testCase.getAttribute("name");
+            String fixturePrefix = fixtureName + ".";
+            if (testCaseName.contains(fixturePrefix)) {
+                testCaseName = substringAfter(testCaseName, fixturePrefix);
+            }
+            return testCaseName;
+        }
+    }
+
+    /**
+     * Converts the NUnit3 <code>test-run</code> format. A JUnit test suite is written for every
+     * <code>test-suite</code> that directly contains a <code>test-case</code>.
+     */
+    private static class NUnit3Handler implements Handler {
+
+        private static class Suite {
+            final String name;
+            final Map<String, String> attributes;
+            final JUnitReportFiles.Slot slot;
+            final StringBuilder output = new StringBuilder();
+            final JUnitReportFiles.Buffer testCases;
+            final List<XmlElement> testCaseElements = new ArrayList<>();
+            final OutputLimit outputLimit;
+            String stdout;
+            int testCaseCount;
+
+            Suite(
+                    String name,
+                    Map<String, String> attributes,
+                    JUnitReportFiles.Slot slot,
+                    JUnitReportFiles.Buffer testCases,
+                    OutputLimit outputLimit) {
+                this.name = name;
+                this.attributes = attributes;
+                this.slot = slot;
+                this.testCases = testCases;
+                this.outputLimit = outputLimit;
+            }
+        }
+
+        private final JUnitReportFiles files;
+        /** The test suites read directly, or null if they are written to JUnit reports. */
+        private final Collection<SuiteResult> suiteResults;
+        /** The results of the regions of the report, or null if the report is not split. */
+        private final Iterator<RegionResult> regions;
+        private final NamePool names;
+
+        private final int maxTestCaseOutputLength;
+        private final int maxTestSuiteOutputLength;
+
+        /** The number of test cases read inside test suites, including the ones of the regions. */
+        private int testCaseCount;
+
+        private final Deque<Suite> suites = new ArrayDeque<>();
+        /** For every open element, the suite it is, or null if it is not a suite. */
+        private final Deque<Object> elements = new ArrayDeque<>();
+
+        NUnit3Handler(
+                JUnitReportFiles files,
+                Collection<SuiteResult> suiteResults,
+                Iterator<RegionResult> regions,
+                NamePool names,
+                int maxTestCaseOutputLength,
+                int maxTestSuiteOutputLength) {
+            this.files = files;
+            this.suiteResults = suiteResults;
+            this.regions = regions;
+            this.names = names;
+            this.maxTestCaseOutputLength = maxTestCaseOutputLength;
+            this.maxTestSuiteOutputLength = maxTestSuiteOutputLength;
+        }
+
+        @Override
+        public int read(XMLStreamReader reader) throws XMLStreamException, IOException {
+            startElement(reader, null);
+            while (!elements.isEmpty()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    startElement(reader, elements.peek());
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    Object element = elements.pop();
+                    if (element instanceof Suite) {
+                        endSuite((Suite) element);
+                    }
+                } else if (event == XMLStreamConstants.PROCESSING_INSTRUCTION
+                        && regions != null
+                        && NUnitReportRegions.PLACEHOLDER_TARGET.equals(reader.getPITarget())) {
+                    addRegion(regions.next());
+                }
+            }
+            return testCaseCount;
+        }
+
+        @Override
+        public void dropOpenSuites() throws IOException {
+            for (Suite suite : suites) {
+                if (!files.isDecided(suite.slot)) {
+                    files.decide(suite.slot, false);
+                }
+                suite.testCases.discard();
+            }
+            suites.clear();
+            elements.clear();
+        }
+
+        /**
+         * Adds the test suites of a region, whose test suites are all inside the current suite, if any.
+         */
+        private void addRegion(RegionResult region) throws IOException {
+            files.add(region.files);
+            if (suiteResults != null) {
+                suiteResults.addAll(region.suites);
+            }
+            testCaseCount += region.testCaseCount;
+            if (!suites.isEmpty()) {
+                suites.peek().testCaseCount += region.testCaseCount;
+            }
+        }
+
+        private void startElement(XMLStreamReader reader, Object parent) throws XMLStreamException, IOException {
+            boolean parentIsSuite = parent instanceof Suite;
+            switch (reader.getLocalName()) {
+                case "test-suite":
+                    startSuite(reader);
+                    return;
+                case "test-case":
+                    OutputLimit outputLimit = parentIsSuite
+                            ? ((Suite) parent).outputLimit.child(maxTestCaseOutputLength)
+                            : new OutputLimit(maxTestCaseOutputLength);
+                    XmlElement testCase = XmlElement.read(reader, outputLimit, names);
+                    if (!suites.isEmpty()) {
+                        suites.peek().testCaseCount++;
+                        testCaseCount++;
+                    }
+                    if (parentIsSuite) {
+                        Suite suite = (Suite) parent;
+                        if (!files.isDecided(suite.slot)) {
+                            files.decide(suite.slot, true);
+                        }
+                        if (suiteResults != null) {
+                            suite.testCaseElements.add(testCase);
+                        } else {
+                            writeTestCase(new JUnitXmlWriter(suite.testCases, 2), testCase);
+                        }
+                    }
+                    return;
+                case "output":
+                    if (parentIsSuite) {
+                        Suite suite = (Suite) parent;
+                        XmlElement output = XmlElement.read(reader, suite.outputLimit, names);
+                        if (suiteResults != null) {
+                            if (suite.stdout == null) {
+                                suite.stdout = getOutputText(output);
+                            }
+                        } else {
+                            writeOutput(new JUnitXmlWriter(suite.output, 2), output);
+                        }
+                    } else {
+                        XmlElement.skip(reader);
+                    }
+                    return;
+                case "command-line":
+                case "settings":
+                case "properties":
+                case "stack-trace":
+                    XmlElement.skip(reader);
+                    return;
+                case "failure":
+                case "reason":
+                    if (parentIsSuite) {
+                        XmlElement.skip(reader);
+                        return;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            elements.push(reader.getLocalName());
+        }
+
+        private void startSuite(XMLStreamReader reader) {
+            Map<String, String> attributes = XmlElement.readAttributes(reader, names);
+            String name = suites.isEmpty() ? "" : suites.peek().name;
+            if (attributes.containsKey("name")) {
+                // the names of the nested suites are built from the names of their parents
+                name = names.get(name + attributes.get("name") + ".");
+            }
+            Suite suite = new Suite(
+                    name, attributes, files.reserve(), files.newBuffer(), new OutputLimit(maxTestSuiteOutputLength));
+            suites.push(suite);
+            elements.push(suite);
+        }
+
+        private void endSuite(Suite suite) throws IOException {
+            suites.pop();
+            if (!suites.isEmpty()) {
+                suites.peek().testCaseCount += suite.testCaseCount;
+            }
+            if (!files.isDecided(suite.slot)) {
+                files.decide(suite.slot, false);
+                return;
+            }
+            if (suiteResults != null) {
+                suiteResults.add(createSuiteResult(suite));
+                return;
+            }
+            double tests = suite.testCaseCount;
+            double skipped = number(suite, "skipped");
+            Map<String, String> attributes = new LinkedHashMap<>();
+            attributes.put("tests", Integer.toString(suite.testCaseCount));
+            attributes.put("time", nullToEmpty(suite.attributes.get("duration")));
+            attributes.put(
+                    "errors",
+                    formatNumber(tests - number(suite, "passed") - skipped - number(suite, "failed")
+                            - number(suite, "inconclusive")));
+            attributes.put("failures", nullToEmpty(suite.attributes.get("failed")));
+            attributes.put("skipped", formatNumber(skipped + number(suite, "inconclusive")));
+            attributes.put("timestamp", nullToEmpty(suite.attributes.get("start-time")));
+            attributes.put("name", suite.name);
+
+            files.write(suite.slot, suite.name, attributes, suite.output, suite.testCases);
+        }
+
+        private static SuiteResult createSuiteResult(Suite suite) {
+            SuiteResult suiteResult = new SuiteResult(suite.name, suite.stdout, null, null);
+            for (XmlElement testCase : suite.testCaseElements) {
+                String errorDetails = null;
+                String errorStackTrace = null;
+                List<XmlElement> failures = testCase.getChildElements("failure");
+                if (!failures.isEmpty()) {
+                    errorDetails = failures.get(0).getChildText("message");
+                    errorStackTrace = failures.get(0).getChildText("stack-trace");
+                }
+                List<XmlElement> reasons = testCase.getChildElements("reason");
+                String skippedMessage = null;
+                if (isSkipped(testCase)) {
+                    skippedMessage = getFirstChildText(reasons, "message");
+                } else if (!reasons.isEmpty()) {
+                    skippedMessage = reasons.get(0).getChildText("message");
+                }
+                List<XmlElement> outputs = testCase.getChildElements("output");
+                suiteResult.addCase(new CaseResult(
+                        suiteResult,
+                        testCase.getAttribute("classname"),
+                        testCase.getAttribute("name"),
+                        errorDetails,
+                        skippedMessage,
+                        parseTime(testCase.getAttribute("duration")),
+                        outputs.isEmpty() ? null : getOutputText(outputs.get(0)),
+                        null,
+                        errorStackTrace));
+            }
+            suiteResult.setDuration(parseTime(nullToEmpty(suite.attributes.get("duration"))));
+            suiteResult.setTimestamp(nullToEmpty(suite.attributes.get("start-time")));
+            return suiteResult;
+        }
+
+        private static double number(Suite suite, String attributeName) {
+            return parseNumber(suite.attributes.get(attributeName));
+        }
+
+        private static void writeTestCase(JUnitXmlWriter writer, XmlElement testCase) throws IOException {
+            Map<String, String> attributes = new LinkedHashMap<>();
+            attributes.put("name", testCase.getAttribute("name"));
+            attributes.put("assertions", testCase.getAttribute("asserts"));
+            attributes.put("time", testCase.getAttribute("duration"));
+            attributes.put("status", testCase.getAttribute("result"));
+            attributes.put("classname", testCase.getAttribute("classname"));
+            writer.startElement("testcase", attributes);
+
+            if (isSkipped(testCase)) {
+                String message = getFirstChildText(testCase.getChildElements("reason"), "message");
+                writer.startElement("skipped", Map.of("message", message));
+                writer.endElement();
+            }
+
+            applyTemplates(writer, testCase);
+            writer.endElement();
+        }
+
+        private static boolean isSkipped(XmlElement testCase) {
+            String result = testCase.getAttribute("result");
+            String runState = testCase.getAttribute("runstate");
+            return "Skipped".equals(result)
+                    || "Skipped".equals(runState)
+                    || "Ignored".equals(runState)
+                    || "Inconclusive".equals(runState);
+        }
+
+        /**
+         * Writes the children of an element inside a <code>test-case</code> like the templates of
+         * <code>nunit-to-junit.xsl</code> do.
+         */
+        private static void applyTemplates(JUnitXmlWriter writer, XmlElement parent) throws IOException {
+            for (Object child : parent.getChildren()) {
+                if (child instanceof String) {
+                    writer.characters((String) child);
+                    continue;
+                }
+                XmlElement element = (XmlElement) child;
+                switch (element.getName()) {
+                    case "command-line":
+                    case "settings":
+                    case "properties":
+                    case "stack-trace":
+                        break;
+                    case "output":
+                        writeOutput(writer, element);
+                        break;
+                    case "test-case":
+                        writeTestCase(writer, element);
+                        break;
+                    case "failure":
+                        if ("test-case".equals(parent.getName())) {
+                            writer.startElement("failure", Map.of("message", element.getChildText("message")));
+                            writer.characters(element.getChildText("stack-trace"));
+                            writer.endElement();
+                        } else if (!"test-suite".equals(parent.getName())) {
+                            applyTemplates(writer, element);
+                        }
+                        break;
+                    case "reason":
+                        if ("test-case".equals(parent.getName())) {
+                            writer.startElement("skipped", Map.of("message", element.getChildText("message")));
+                            writer.endElement();
+                        } else if (!"test-suite".equals(parent.getName())) {
+                            applyTemplates(writer, element);
+                        }
+                        break;
+                    default:
+                        applyTemplates(writer, element);
+                        break;
+                }
+            }
+        }
+
+        private static void writeOutput(JUnitXmlWriter writer, XmlElement output) throws IOException {
+            writer.startElement("system-out", Map.of());
+            for (Object child : output.getChildren()) {
+                if (child instanceof String) {
+                    writer.characters((String) child);
+                }
+            }
+            writer.endElement();
+        }
+
+        private static String getOutputText(XmlElement output) {
+            StringBuilder text = new StringBuilder();
+            for (Object child : output.getChildren()) {
+                if (child instanceof String) {
+                    text.append((String) child);
+                }
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * @return the string value of the first child with the given name of any of the elements
+     */
+    private static String getFirstChildText(List<XmlElement> elements, String childName) {
+        for (XmlElement element : elements) {
+            if (!element.getChildElements(childName).isEmpty()) {
+                return element.getChildText(childName);
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Parses a duration like the JUnit plugin parses the <code>time</code> attribute of a test case or suite.
+     */
+    private static float parseTime(String time) {
+        try {
+            return Float.parseFloat(time.replace(",", ""));
+        } catch (NumberFormatException e) {
+            return 0.0f;
+        }
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * Implements the XPath <code>substring-before</code> function.
+     */
+    static String substringBefore(String value, String separator) {
+        int index = value.indexOf(separator);
+        return index < 0 || separator.isEmpty() ? "" : value.substring(0, index);
+    }
+
+    /**
+     * Implements the XPath <code>substring-after</code> function.
+     */
+    static String substringAfter(String value, String separator) {
+        int index = value.indexOf(separator);
+        return index < 0 ? "" : value.substring(index + separator.length());
+    }
+
+    /**
+     * Implements the XPath <code>number</code> function for a string.
+     */
+    static double parseNumber(String value) {
+        if (value == null) {
+            return Double.NaN;
+        }
+        String trimmed = value.strip();
+        return XPATH_NUMBER.matcher(trimmed).matches() ? Double.parseDouble(trimmed) : Double.NaN;
+    }
+
+    /**
+     * Implements the XPath <code>string</code> function for a number.
+     */
+    static String formatNumber(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "Infinity" : "-Infinity";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,48 @@
+package hudson.plugins.nunit;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Deduplicates the names read from a single NUnit report.
+ *
+ * <p>All test cases of a fixture carry the same class name and the same few result attributes, and the name of a
+ * nested test suite is built from the names of its parents. Without pooling, every test case would hold its own copy
+ * of these strings, both while its test suite is read and in the {@link hudson.tasks.junit.CaseResult}s read from it.
+ * Only names are pooled: the values of other attributes, such as ids and times, hardly ever repeat.
+ */
+class NamePool {
+
+    /** The attributes of test suites and test cases whose values repeat. */
+    private static final Set<String> POOLED_ATTRIBUTES =
+            Set.of("classname", "type", "result", "runstate", "label", "site", "executed", "success");
+
+    private final Map<String, String> names = new HashMap<>();
+
+    /**
+     * @param name a name, or null
+     * @return the pooled name equal to the given name, or null if the name is null
+     */
+    String get(String name) {
+        if (name == null) {
+            return null;
+        }
+        String pooled = names.putIfAbsent(name, name);
+        return pooled == null ? name : pooled;
+    }
+
+    /**
+     * @return the pooled value if the attribute is known to repeat, otherwise the value itself
+     */
+    String getAttributeValue(String attributeName, String value) {
+        return POOLED_ATTRIBUTES.contains(attributeName) ? get(value) : value;
+    }
+
+    /**
+     * @return the number of distinct names in the pool
+     */
+    int size() {
+        return names.size();
+    }
+}
@@ -0,0 +1,153 @@
+package hudson.plugins.nunit;
+
+import java.util.Set;
+
+/**
+ * Limits how much of the output of the tests is kept while a NUnit report is read. Text that does not fit keeps its
+ * head and its tail, and the middle is replaced by a note saying how many characters were left out. The text is
+ * truncated while it is read, so the text that is left out is never held in memory.
+ *
+ * <p>A limit can be part of a larger limit, e.g. the limit of a test case of the one of its test suite, in which case
+ * the text kept counts against both.
+ */
+class OutputLimit {
+
+    /** The elements whose text is output of the tests. */
+    private static final Set<String> OUTPUT_ELEMENTS = Set.of("output", "message", "stack-trace");
+
+    /** Keeps all text. As nothing is counted, it can be shared. */
+    static final OutputLimit UNLIMITED = new OutputLimit(0);
+
+    private final OutputLimit parent;
+    private long remaining;
+
+    /**
+     * @param maxLength the maximum number of characters to keep, or 0 or less to keep everything
+     */
+    OutputLimit(long maxLength) {
+        this(null, maxLength);
+    }
+
+    private OutputLimit(OutputLimit parent, long maxLength) {
+        this.parent = parent;
+        this.remaining = maxLength > 0 ? maxLength : Long.MAX_VALUE;
+        if (parent != null) {
+            remaining = Math.min(remaining, parent.remaining);
+        }
+    }
+
+    /**
+     * Creates a limit that is part of this one.
+     *
+     * @param maxLength the maximum number of characters to keep, or 0 or less to keep as much as this limit allows
+     */
+    OutputLimit child(long maxLength) {
+        return new OutputLimit(this, maxLength);
+    }
+
+    /**
+     * @return whether the text of the element with the given name, and the text of all its descendants, is limited
+     */
+    static boolean isOutput(String elementName) {
+        return OUTPUT_ELEMENTS.contains(elementName);
+    }
+
+    /**
+     * Starts a text that is limited to the characters this limit has left.
+     */
+    Text newText() {
+        return new Text(remaining);
+    }
+
+    private void consume(long length) {
+        for (OutputLimit limit = this; limit != null; limit = limit.parent) {
+            if (limit.remaining != Long.MAX_VALUE) {
+                limit.remaining = Math.max(0, limit.remaining - length);
+            }
+        }
+    }
+
+    /**
+     * Accumulates a text, keeping the first half of the allowed characters in {@link #head} and the last ones in the
+     * ring buffer {@link #tail}.
+     */
+    class Text {
+        private final long headLength;
+        private final int tailLength;
+        private final StringBuilder head = new StringBuilder();
+        private char[] tail = new char[0];
+        private int tailStart;
+        private int tailSize;
+        private long length;
+
+        private Text(long maxLength) {
+            headLength = maxLength == Long.MAX_VALUE ? Long.MAX_VALUE : (maxLength + 1) / 2;
+            tailLength = maxLength == Long.MAX_VALUE ? 0 : (int) Math.min(Integer.MAX_VALUE - 8, maxLength / 2);
+        }
+
+        void append(char[] chars, int start, int count) {
+            length += count;
+            int toHead = (int) Math.min(count, headLength - head.length());
+            head.append(chars, start, toHead);
+            appendTail(chars, start + toHead, count - toHead);
+        }
+
+        private void appendTail(char[] chars, int start, int count) {
+            if (count <= 0 || tailLength == 0) {
+                return;
+            }
+            if (count >= tailLength) {
+                // only the end of the chars is kept
+                if (tail.length < tailLength) {
+                    tail = new char[tailLength];
+                }
+                System.arraycopy(chars, start + count - tailLength, tail, 0, tailLength);
+                tailStart = 0;
+                tailSize = tailLength;
+                return;
+            }
+            if (tailSize + count <= tailLength && tailStart == 0) {
+                if (tail.length < tailSize + count) {
+                    char[] grown = new char[(int) Math.min(tailLength, Math.max(tailSize + count, 2L * tail.length))];
+                    System.arraycopy(tail, 0, grown, 0, tailSize);
+                    tail = grown;
+                }
+                System.arraycopy(chars, start, tail, tailSize, count);
+                tailSize += count;
+                return;
+            }
+            if (tail.length < tailLength) {
+                char[] grown = new char[tailLength];
+                System.arraycopy(tail, 0, grown, 0, tailSize);
+                tail = grown;
+            }
+            // fill the ring buffer up, then overwrite its oldest chars
+            int fill = Math.min(tailLength - tailSize, count);
+            System.arraycopy(chars, start, tail, tailSize, fill);
+            tailSize += fill;
+            for (int i = start + fill, end = start + count; i < end; ) {
+                int copied = Math.min(end - i, tailLength - tailStart);
+                System.arraycopy(chars, i, tail, tailStart, copied);
+                tailStart = (tailStart + copied) % tailLength;
+                i += copied;
+            }
+        }
+
+        /**
+         * Ends the text and counts the characters kept against the limit.
+         *
+         * @return the text, with the middle left out if it was too long
+         */
+        String finish() {
+            long kept = head.length() + tailSize;
+            StringBuilder text = new StringBuilder(head);
+            if (length > kept) {
+                text.append("\n...[").append(length - kept).append(" characters truncated]...\n");
+            }
+            text.append(tail, tailStart, tailSize - tailStart);
+            text.append(tail, 0, tailStart);
+            consume(kept);
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package hudson.plugins.nunit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The format of a file matched by the test results pattern, told apart by its root element. Broad patterns match
+ * reports that are JUnit reports already and files that are no test reports at all, which are not converted.
+ */
+enum TestReportFormat {
+    /**
+     * A NUnit 2 <code>test-results</code> or NUnit 3 <code>test-run</code> report. A file whose root element cannot be
+     * read is converted as well, so that the transformer reports what is wrong with it.
+     */
+    NUNIT,
+    /**
+     * A JUnit report with a <code>testsuites</code> or <code>testsuite</code> root element, which is recorded as it is.
+     */
+    JUNIT,
+    /**
+     * Any other XML file, which is skipped.
+     */
+    OTHER;
+
+    /**
+     * Reads the root element of a report, and nothing after it.
+     *
+     * @param report the report, which may be compressed
+     * @return the format of the report
+     */
+    static TestReportFormat of(File report) {
+        // only the start of the report is read, which is not worth mapping the file
+        try (InputStream in = NUnitArchiver.openNUnitReport(report, -1)) {
+            XMLStreamReader reader = NUnitStreamingReportTransformer.XML_INPUT_FACTORY.createXMLStreamReader(
+                    new InvalidXmlStreamReader(in, '?'));
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        return of(reader.getLocalName());
+                    }
+                }
+                return NUNIT;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | XMLStreamException e) {
+            // the transformer fails the same way, and reports it
+            return NUNIT;
+        }
+    }
+
+    static TestReportFormat of(String rootElementName) {
+        switch (rootElementName) {
+            case "test-run":
+            case "test-results":
+                return NUNIT;
+            case "testsuites":
+            case "testsuite":
+                return JUNIT;
+            default:
+                return OTHER;
+        }
+    }
+}
@@ -20,4 +20,19 @@ public interface TestReportTransformer {
      */
     void transform(InputStream nunitFileStream, File junitOutputPath)
             throws IOException, TransformerException, SAXException, ParserConfigurationException;
+
+    /**
+     * Transforms the nunit file stream to junit files in the specified output path, using the given report number in
+     * the junit file names instead of the number of reports transformed so far. Different transformer instances can
+     * write to the same output path at the same time, as long as they use different report numbers.
+     *
+     * @param nunitFileStream nunit report file stream
+     * @param junitOutputPath the output path to store junit reports to
+     * @param reportNumber the number of the report, starting at 1
+     * @throws ParserConfigurationException
+     */
+    default void transform(InputStream nunitFileStream, File junitOutputPath, int reportNumber)
+            throws IOException, TransformerException, SAXException, ParserConfigurationException {
+        transform(nunitFileStream, junitOutputPath);
+    }
 }
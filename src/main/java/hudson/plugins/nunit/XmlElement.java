@@ -0,0 +1,190 @@
+package hudson.plugins.nunit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Minimal in memory representation of a small part of a NUnit report, such as a single <code>test-case</code>.
+ * Children are either {@link XmlElement}s or {@link String}s for text nodes.
+ */
+class XmlElement {
+
+    private final String name;
+    private final Map<String, String> attributes;
+    private final List<Object> children = new ArrayList<>();
+
+    XmlElement(String name, Map<String, String> attributes) {
+        this.name = name;
+        this.attributes = attributes;
+    }
+
+    /**
+     * Reads the element the reader is positioned on, including all of its content. Once done, the reader is
+     * positioned on the matching end element.
+     *
+     * @param reader reader positioned on a start element
+     * @return the element
+     * @throws XMLStreamException if the report could not be parsed
+     */
+    static XmlElement read(XMLStreamReader reader) throws XMLStreamException {
+        return read(reader, null, null, false);
+    }
+
+    /**
+     * Reads the element the reader is positioned on, including all of its content, limiting the text of the output
+     * elements in it. Once done, the reader is positioned on the matching end element.
+     *
+     * @param reader reader positioned on a start element
+     * @param outputLimit the limit of the text of the output elements
+     * @param names the pool of the names read from the report
+     * @return the element
+     * @throws XMLStreamException if the report could not be parsed
+     * @see OutputLimit#isOutput(String)
+     */
+    static XmlElement read(XMLStreamReader reader, OutputLimit outputLimit, NamePool names)
+            throws XMLStreamException {
+        return read(reader, outputLimit, names, false);
+    }
+
+    private static XmlElement read(XMLStreamReader reader, OutputLimit outputLimit, NamePool names, boolean inOutput)
+            throws XMLStreamException {
+        XmlElement element = new XmlElement(reader.getLocalName(), readAttributes(reader, names));
+        boolean limited = outputLimit != null && (inOutput || OutputLimit.isOutput(element.name));
+        OutputLimit.Text text = null;
+        while (true) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    element.addText(text);
+                    text = null;
+                    element.children.add(read(reader, outputLimit, names, limited));
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (text == null) {
+                        text = (limited ? outputLimit : OutputLimit.UNLIMITED).newText();
+                    }
+                    // the text of an element may come in many parts, only the parts that are kept are copied
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    element.addText(text);
+                    return element;
+                default:
+                    // comments and processing instructions separate text nodes
+                    element.addText(text);
+                    text = null;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Skips the element the reader is positioned on, including all of its content.
+     */
+    static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    static Map<String, String> readAttributes(XMLStreamReader reader) {
+        return readAttributes(reader, null);
+    }
+
+    /**
+     * @param names the pool of the names read from the report, or null to not pool the attribute values
+     */
+    static Map<String, String> readAttributes(XMLStreamReader reader, NamePool names) {
+        int count = reader.getAttributeCount();
+        if (count == 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> attributes = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = reader.getAttributeLocalName(i);
+            String value = reader.getAttributeValue(i);
+            attributes.put(name, names == null ? value : names.getAttributeValue(name, value));
+        }
+        return attributes;
+    }
+
+    private void addText(OutputLimit.Text text) {
+        if (text != null) {
+            children.add(text.finish());
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean hasAttribute(String attributeName) {
+        return attributes.containsKey(attributeName);
+    }
+
+    /**
+     * @return the value of the attribute, or an empty string if it is missing
+     */
+    String getAttribute(String attributeName) {
+        String value = attributes.get(attributeName);
+        return value == null ? "" : value;
+    }
+
+    List<Object> getChildren() {
+        return children;
+    }
+
+    List<XmlElement> getChildElements(String childName) {
+        List<XmlElement> elements = new ArrayList<>();
+        for (Object child : children) {
+            if (child instanceof XmlElement && ((XmlElement) child).name.equals(childName)) {
+                elements.add((XmlElement) child);
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * @return the string value of the first child element with the given name, or an empty string
+     */
+    String getChildText(String childName) {
+        for (Object child : children) {
+            if (child instanceof XmlElement && ((XmlElement) child).name.equals(childName)) {
+                return ((XmlElement) child).getText();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * @return the concatenation of all text nodes of this element and its descendants
+     */
+    String getText() {
+        StringBuilder text = new StringBuilder();
+        appendText(text);
+        return text.toString();
+    }
+
+    private void appendText(StringBuilder text) {
+        for (Object child : children) {
+            if (child instanceof String) {
+                text.append((String) child);
+            } else {
+                ((XmlElement) child).appendText(text);
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package hudson.plugins.nunit;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of the plugin. They take several minutes, so they only run when the
+ * <code>benchmark</code> system property is set, e.g. <code>mvn test -Dtest=BenchmarkRunner -Dbenchmark</code>.
+ *
+ * <p>The benchmarks to run can be restricted with a regular expression, e.g.
+ * <code>-Dbenchmark.include=NUnitPipelineBenchmark</code>, and the parameters of the benchmarks overridden with a comma
+ * separated list of values, e.g. <code>-Dbenchmark.param.suites=10,1000</code>. The results are written to
+ * <code>target/jmh-report.json</code>.
+ */
+class BenchmarkRunner {
+
+    private static final String PARAM_PREFIX = "benchmark.param.";
+
+    @Test
+    void runJmhBenchmarks() throws Exception {
+        assumeTrue(System.getProperty("benchmark") != null, "benchmarks only run with -Dbenchmark");
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(getClass().getPackageName() + "\\..*" + System.getProperty("benchmark.include", "Benchmark"))
+                .mode(Mode.AverageTime)
+                .timeUnit(TimeUnit.MILLISECONDS)
+                .warmupIterations(3)
+                .measurementIterations(5)
+                .forks(1)
+                .shouldFailOnError(true)
+                .shouldDoGC(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-report.json");
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PARAM_PREFIX)) {
+                options.param(name.substring(PARAM_PREFIX.length()), System.getProperty(name).split(","));
+            }
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,137 @@
+package hudson.plugins.nunit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.SuiteResult;
+import hudson.tasks.junit.TestResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class CompactTestResultTest {
+
+    @Test
+    void testSameResultsAsRead() throws Exception {
+        for (String report : NUnitStreamingReportTransformerTest.REPORTS) {
+            List<SuiteResult> suites = new ArrayList<>();
+            new NUnitStreamingReportTransformer().readSuiteResults(getClass().getResourceAsStream(report), suites);
+            assertSameSuites(suites, roundTrip(suites).readSuites(), report);
+        }
+    }
+
+    @Test
+    void testNullsAndSpecialValues() throws Exception {
+        SuiteResult suite = new SuiteResult("suite \u00e9", "suite output", null, null);
+        suite.setTimestamp("2024-01-02T03:04:05Z");
+        suite.addCase(new CaseResult(suite, null, "noClass", null, null, 0f, null, null, null));
+        suite.addCase(new CaseResult(suite, "NoPackage", "", "", "", -1.5f, "suite output", "", "trace"));
+        suite.addCase(new CaseResult(
+                suite, "a.b.Fixture", "test(\"\u4e2d\")", "details", null, 123.456789f, "own output", "err", null));
+        suite.addCase(new CaseResult(suite, "a.b.Fixture", "second", null, "skipped", 0.001f, null, null, null));
+        suite.setDuration(130.5f);
+        List<SuiteResult> suites = List.of(suite, new SuiteResult("empty", null, null, null));
+
+        assertSameSuites(suites, roundTrip(suites).readSuites(), "handcrafted suites");
+    }
+
+    @Test
+    void testSmallerThanSerializedSuites() throws Exception {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        new NUnitReportGenerator(true, 20, 50, 5).write(report);
+        List<SuiteResult> suites = new ArrayList<>();
+        new NUnitStreamingReportTransformer().readSuiteResults(new ByteArrayInputStream(report.toByteArray()), suites);
+
+        CompactTestResult compact = roundTrip(suites);
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+            out.writeObject(new ArrayList<>(suites));
+        }
+
+        assertEquals(20, compact.getSuiteCount());
+        assertTrue(
+                compact.getSize() * 4 < serialized.size(),
+                "The compact form takes " + compact.getSize() + " bytes, the serialized suites " + serialized.size());
+        assertSameSuites(suites, compact.readSuites(), "generated report");
+    }
+
+    @Test
+    void testSuitesOfSameNameAreMerged() throws Exception {
+        List<SuiteResult> suites = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            SuiteResult suite = new SuiteResult("Fixture", null, null, null);
+            suite.addCase(new CaseResult(suite, "a.Fixture", "test" + i, null, null, 0.5f, null, null, null));
+            suite.setDuration(1.5f);
+            suites.add(suite);
+        }
+
+        TestResult result = roundTrip(suites).toTestResult();
+        assertEquals(1, result.getSuites().size());
+        assertEquals(2, result.getTotalCount());
+        assertTrue(result.getDuration() > 0, "The duration of the test result should be set");
+    }
+
+    @Test
+    void testSuitesAsIsKeepTheirPlace() throws Exception {
+        List<SuiteResult> suites = new ArrayList<>();
+        for (String name : List.of("first", "junit", "last")) {
+            SuiteResult suite = new SuiteResult(name, null, null, null);
+            suite.addCase(new CaseResult(suite, "a.Fixture", name, null, null, 0.5f, null, null, null));
+            suites.add(suite);
+        }
+        CompactTestResult.Writer writer = new CompactTestResult.Writer();
+        writer.write(suites.get(0));
+        writer.writeAsIs(suites.get(1));
+        writer.write(suites.get(2));
+
+        // the suites sent as they are are serialized along with the compact form, as the callable returns it
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+            out.writeObject(writer.finish());
+        }
+        CompactTestResult sent;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized.toByteArray()))) {
+            sent = (CompactTestResult) in.readObject();
+        }
+
+        assertEquals(3, sent.getSuiteCount());
+        assertSameSuites(suites, sent.readSuites(), "suites sent as they are");
+    }
+
+    private static CompactTestResult roundTrip(Collection<SuiteResult> suites) throws Exception {
+        CompactTestResult.Writer writer = new CompactTestResult.Writer();
+        for (SuiteResult suite : suites) {
+            writer.write(suite);
+        }
+        return writer.finish();
+    }
+
+    private static void assertSameSuites(
+            Collection<SuiteResult> expected, Collection<SuiteResult> actual, String report) {
+        assertEquals(describe(expected), describe(actual), "The test results are not the same for " + report);
+    }
+
+    private static List<String> describe(Collection<SuiteResult> suites) {
+        List<String> description = new ArrayList<>();
+        for (SuiteResult suite : suites) {
+            description.add(
+                    "suite " + suite.getName() + " stdout=" + suite.getStdout() + " stderr=" + suite.getStderr()
+                            + " duration=" + suite.getDuration() + " timestamp=" + suite.getTimestamp());
+            for (CaseResult testCase : suite.getCases()) {
+                description.add(testCase.getClassName() + "#" + testCase.getName()
+                        + " duration=" + testCase.getDuration()
+                        + " errorDetails=" + testCase.getErrorDetails()
+                        + " errorStackTrace=" + testCase.getErrorStackTrace()
+                        + " skippedMessage=" + testCase.getSkippedMessage()
+                        + " stdout=" + testCase.getStdout()
+                        + " stderr=" + testCase.getStderr());
+            }
+        }
+        return description;
+    }
+}
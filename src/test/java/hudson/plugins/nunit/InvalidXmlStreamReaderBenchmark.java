@@ -0,0 +1,93 @@
+package hudson.plugins.nunit;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares {@link InvalidXmlStreamReader} with the way reports used to be read, through an
+ * {@link InputStreamReader} wrapped in a {@link BufferedReader} and checking every character.
+ */
+@State(Scope.Benchmark)
+public class InvalidXmlStreamReaderBenchmark {
+
+    /** Size of the generated report in megabytes. */
+    @Param({"16"})
+    public int size;
+
+    /** Whether the report contains characters that are invalid in xml. */
+    @Param({"false", "true"})
+    public boolean invalidCharacters;
+
+    private byte[] report;
+
+    @Setup
+    public void setUp() {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<test-results>\n");
+        for (int i = 0; xml.length() < size * 1024 * 1024; i++) {
+            xml.append("  <test-case name=\"Namespace.Fixture.Test").append(i).append("\" executed=\"True\">\n");
+            xml.append("    <reason><message><![CDATA[Expected: 42 but was: ").append(i);
+            xml.append(" \u00e9\u00e8 \u65e5\u672c \ud83d\ude00");
+            if (invalidCharacters && i % 100 == 0) {
+                xml.append(" \u0001\u001b\uffff");
+            }
+            xml.append("]]></message></reason>\n  </test-case>\n");
+        }
+        xml.append("</test-results>\n");
+        report = xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long invalidXmlStreamReader() throws IOException {
+        try (Reader reader = new InvalidXmlStreamReader(new ByteArrayInputStream(report), '?')) {
+            return consume(reader);
+        }
+    }
+
+    @Benchmark
+    public long bufferedPerCharacterCheck() throws IOException {
+        try (Reader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(report), StandardCharsets.UTF_8))) {
+            char[] buffer = new char[8192];
+            long sum = 0;
+            int read;
+            while ((read = reader.read(buffer, 0, buffer.length)) >= 0) {
+                for (int i = 0; i < read; i++) {
+                    char c = buffer[i];
+                    if (!isValid(c)) {
+                        buffer[i] = '?';
+                    }
+                    sum += buffer[i];
+                }
+            }
+            return sum;
+        }
+    }
+
+    private static boolean isValid(int input) {
+        if (input < 0x20) {
+            return input == '\t' || input == '\n' || input == '\r';
+        }
+        return input <= 0xD7FF || input >= 0xE000 && input <= 0xFFFD || input >= 0x10000 && input <= 0x10FFFF;
+    }
+
+    private static long consume(Reader reader) throws IOException {
+        char[] buffer = new char[8192];
+        long sum = 0;
+        int read;
+        while ((read = reader.read(buffer, 0, buffer.length)) >= 0) {
+            for (int i = 0; i < read; i++) {
+                sum += buffer[i];
+            }
+        }
+        return sum;
+    }
+}
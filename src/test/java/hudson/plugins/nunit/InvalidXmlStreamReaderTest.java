@@ -0,0 +1,191 @@
+package hudson.plugins.nunit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+class InvalidXmlStreamReaderTest {
+
+    private static final String XML_10 = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+    private static final String XML_11 = "<?xml version=\"1.1\" encoding=\"UTF-8\"?>";
+
+    @Test
+    void testReplacesInvalidCharacters() throws Exception {
+        String xml = XML_10 + "<a>x\u0001y\u001bz\t\n\r\ud7ff\ufffe\ue000</a>";
+        assertEquals(XML_10 + "<a>x?y?z\t\n\r\ud7ff?\ue000</a>", read(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void testKeepsControlCharactersOfXml11() throws Exception {
+        String xml = XML_11 + "<a>\u0000\u0001\u001b</a>";
+        assertEquals(XML_11 + "<a>?\u0001\u001b</a>", read(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void testOtherEncoding() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a>\u00e9\u0002</a>";
+        assertEquals(
+                "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a>\u00e9?</a>",
+                read(xml.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    void testSniffedPrologSameAsParser() throws Exception {
+        String[] sniffed = {
+            XML_10 + "<a/>",
+            "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<a/>",
+            "<?xml\tversion = \"1.0\"\r\n?><a/>",
+            "<test-run id=\"2\"/>",
+            "<!-- comment --><a/>",
+            "<a/>"
+        };
+        String[] parsed = {
+            XML_11 + "<a/>",
+            "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a/>",
+            "<?xml version=\"1.0\" encoding=\"UTF8\"?><a/>",
+            "<?xml version=\"1.0\"encoding=\"UTF-8\"?><a/>",
+            "<?xml version=\"1.0\" standalone=\"yes\" encoding=\"UTF-8\"?><a/>",
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" ?<a/>",
+            "<?xml-stylesheet href=\"nunit.xsl\"?><a/>",
+            "  <?xml version=\"1.0\"?><a/>",
+            "<\u00e9/>",
+            ""
+        };
+        for (String xml : sniffed) {
+            byte[] bytes = xml.getBytes(StandardCharsets.ISO_8859_1);
+            String[] prolog = new InvalidXmlStreamReader.PrologSniffer(bytes, 0, bytes.length).sniff();
+            assertNotNull(prolog, xml);
+            XMLStreamReader parser =
+                    XMLInputFactory.newFactory().createXMLStreamReader(new ByteArrayInputStream(bytes));
+            assertEquals(parser.getCharacterEncodingScheme(), prolog[0], xml);
+            assertEquals(parser.getVersion(), prolog[1], xml);
+        }
+        for (String xml : parsed) {
+            byte[] bytes = xml.getBytes(StandardCharsets.ISO_8859_1);
+            assertNull(new InvalidXmlStreamReader.PrologSniffer(bytes, 0, bytes.length).sniff(), xml);
+        }
+    }
+
+    @Test
+    void testSingleCharactersOfSupplementaryCharacter() throws Exception {
+        byte[] xml = (XML_10 + "<a>\ud83d\ude00</a>").getBytes(StandardCharsets.UTF_8);
+        StringBuilder text = new StringBuilder();
+        try (Reader reader = new InvalidXmlStreamReader(new ByteArrayInputStream(xml), '?')) {
+            char[] buffer = new char[1];
+            int read;
+            while ((read = reader.read(buffer, 0, 1)) >= 0) {
+                assertEquals(1, read);
+                text.append(buffer[0]);
+            }
+        }
+        // surrogates are checked one char at a time, so both halves are replaced
+        assertEquals(XML_10 + "<a>??</a>", text.toString());
+    }
+
+    @Test
+    void testSameAsInputStreamReader() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            byte[] bytes = createReport(random, i % 10 == 0 ? 100_000 : 200);
+            assertEquals(readWithInputStreamReader(bytes), read(bytes), "Different content for report " + i);
+        }
+    }
+
+    @Test
+    @DisabledOnOs(value = OS.WINDOWS, disabledReason = "Mapped files stay locked until garbage collected")
+    void testMappedFileSameAsStream(@TempDir Path directory) throws Exception {
+        Random random = new Random(42);
+        Path file = directory.resolve("report.xml");
+        for (int i = 0; i < 50; i++) {
+            byte[] bytes = createReport(random, i % 10 == 0 ? 100_000 : 200);
+            if (i % 2 == 0) {
+                bytes = concat(new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF}, bytes);
+            }
+            Files.write(file, bytes);
+            // segments end in the middle of characters, and of the xml declaration of small reports
+            for (int segmentSize : new int[] {bytes.length < 1000 ? 5 : 4093, MappedFileInputStream.SEGMENT_SIZE}) {
+                try (Reader reader = new InvalidXmlStreamReader(new MappedFileInputStream(file, segmentSize), '?')) {
+                    assertEquals(
+                            read(bytes),
+                            IOUtils.toString(reader),
+                            "Different content for report " + i + " mapped in segments of " + segmentSize);
+                }
+            }
+        }
+    }
+
+    @Test
+    @DisabledOnOs(value = OS.WINDOWS, disabledReason = "Mapped files stay locked until garbage collected")
+    void testMappedFileOtherEncoding(@TempDir Path directory) throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a>\u00e9\u0002</a>";
+        Path file = directory.resolve("report.xml");
+        Files.write(file, xml.getBytes(StandardCharsets.ISO_8859_1));
+        try (Reader reader = new InvalidXmlStreamReader(new MappedFileInputStream(file, 7), '?')) {
+            assertEquals("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a>\u00e9?</a>", IOUtils.toString(reader));
+        }
+    }
+
+    private static byte[] createReport(Random random, int maxLength) throws IOException {
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        xml.write((XML_10 + "<a>").getBytes(StandardCharsets.UTF_8));
+        int length = random.nextInt(maxLength);
+        for (int j = 0; j < length; j++) {
+            switch (random.nextInt(5)) {
+                case 0:
+                    // malformed or truncated UTF-8 sequences
+                    xml.write(random.nextInt(256));
+                    break;
+                case 1:
+                    xml.write("\u00e9\ud83d\ude00\ufffe".getBytes(StandardCharsets.UTF_8));
+                    break;
+                case 2:
+                    xml.write(random.nextInt(0x20));
+                    break;
+                default:
+                    xml.write('a' + random.nextInt(26));
+            }
+        }
+        return xml.toByteArray();
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    private static String read(byte[] xml) throws IOException {
+        try (Reader reader = new InvalidXmlStreamReader(new ByteArrayInputStream(xml), '?')) {
+            return IOUtils.toString(reader);
+        }
+    }
+
+    private static String readWithInputStreamReader(byte[] xml) throws IOException {
+        StringBuilder text = new StringBuilder();
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(xml), StandardCharsets.UTF_8)) {
+            int c;
+            while ((c = reader.read()) >= 0) {
+                boolean valid =
+                        c < 0x20 ? c == '\t' || c == '\n' || c == '\r' : c <= 0xD7FF || c >= 0xE000 && c <= 0xFFFD;
+                text.append(valid ? (char) c : '?');
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package hudson.plugins.nunit;
+
+import hudson.Util;
+import hudson.tasks.junit.SuiteResult;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.transform.TransformerException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Converts a synthetic NUnit 2 report of 100000 test cases with <code>nunit-to-junit.xsl</code> and with the single
+ * pass {@link NUnitStreamingReportTransformer}. The fixtures can be nested in namespaces and their test cases grouped
+ * into parameterized tests, which are the shapes that make the NUnit 2 part of the XSL look up fixture names and
+ * counts again and again.
+ */
+@State(Scope.Benchmark)
+public class NUnit2ConversionBenchmark {
+
+    @Param({"200"})
+    public int fixtures;
+
+    @Param({"500"})
+    public int casesPerFixture;
+
+    @Param({"1", "20"})
+    public int namespaceDepth;
+
+    /** The number of test cases of every parameterized test, or 0 for test cases directly in the fixtures. */
+    @Param({"0", "10"})
+    public int casesPerParameterizedTest;
+
+    private File root;
+    private File nunitFile;
+
+    @State(Scope.Thread)
+    public static class Output {
+
+        File directory;
+
+        @Setup(Level.Invocation)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("nunit2-benchmark").toFile();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            Util.deleteRecursive(directory);
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("nunit2-benchmark").toFile();
+        nunitFile = new File(root, "nunit2-report.xml");
+        new NUnitReportGenerator(false, fixtures, casesPerFixture, 5)
+                .namespaceDepth(namespaceDepth)
+                .casesPerParameterizedTest(casesPerParameterizedTest)
+                .write(nunitFile.toPath());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Util.deleteRecursive(root);
+    }
+
+    @Benchmark
+    public File xslTransform(Output output) throws Exception {
+        try (InputStream input = Files.newInputStream(nunitFile.toPath())) {
+            new NUnitReportTransformer().transform(input, output.directory, 1);
+        }
+        return output.directory;
+    }
+
+    @Benchmark
+    public File streamingTransform(Output output) throws IOException, TransformerException {
+        try (InputStream input = Files.newInputStream(nunitFile.toPath())) {
+            new NUnitStreamingReportTransformer().transform(input, output.directory, 1);
+        }
+        return output.directory;
+    }
+
+    @Benchmark
+    public List<SuiteResult> streamingReadSuiteResults() throws IOException, TransformerException {
+        List<SuiteResult> suites = new ArrayList<>();
+        try (InputStream input = Files.newInputStream(nunitFile.toPath())) {
+            new NUnitStreamingReportTransformer().readSuiteResults(input, suites);
+        }
+        return suites;
+    }
+}
@@ -1,7 +1,12 @@
 package hudson.plugins.nunit;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
@@ -11,8 +16,17 @@ import hudson.model.FreeStyleProject;
 import hudson.remoting.VirtualChannel;
 import hudson.util.StreamTaskListener;
 import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.TestBuilder;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
@@ -128,6 +142,144 @@ class NUnitArchiverTest {
         context.assertIsSatisfied();
     }*/
 
+    @Test
+    void testParallelTransformWritesSameFiles(@TempDir File workspace) throws Exception {
+        for (String report :
+                Arrays.asList("NUnit.xml", "NUnit-correct.xml", "NUnit-correct2.xml", "NUnit-issue1077.xml")) {
+            try (InputStream input = getClass().getResourceAsStream(report)) {
+                Files.copy(input, new File(workspace, report).toPath());
+            }
+        }
+
+        NUnitArchiver sequential = new NUnitArchiver(
+                workspace.getPath(), "sequential", buildListener, "*.xml", new NUnitReportTransformer(), true, 1);
+        NUnitArchiver parallel = new NUnitArchiver(
+                workspace.getPath(), "parallel", buildListener, "*.xml", new NUnitReportTransformer(), true, 4);
+        assertTrue(sequential.call(), "Error during archiver call");
+        assertTrue(parallel.call(), "Error during archiver call");
+        assertEquals(4, parallel.getFileCount(), "Should have processed four files");
+
+        String[] expected = new File(workspace, "sequential").list();
+        String[] actual = new File(workspace, "parallel").list();
+        Arrays.sort(expected);
+        Arrays.sort(actual);
+        assertArrayEquals(expected, actual, "The junit files should not depend on the parallelism");
+    }
+
+    @Test
+    void testCompressedReports(@TempDir File workspace) throws Exception {
+        byte[] report;
+        try (InputStream input = getClass().getResourceAsStream("NUnit.xml")) {
+            report = input.readAllBytes();
+        }
+        try (OutputStream output = new GZIPOutputStream(new FileOutputStream(new File(workspace, "nunit.xml.gz")))) {
+            output.write(report);
+        }
+        try (ZipOutputStream output = new ZipOutputStream(new FileOutputStream(new File(workspace, "nunit.zip")))) {
+            output.putNextEntry(new ZipEntry("reports/"));
+            output.putNextEntry(new ZipEntry("reports/nunit.xml"));
+            output.write(report);
+        }
+
+        for (String compressed : Arrays.asList("nunit.xml.gz", "nunit.zip")) {
+            try (InputStream input = NUnitArchiver.openNUnitReport(new File(workspace, compressed))) {
+                assertArrayEquals(report, input.readAllBytes(), "The report was not decompressed: " + compressed);
+            }
+        }
+
+        nunitArchiver = new NUnitArchiver(
+                workspace.getPath(), "junit", buildListener, "*.gz,*.zip", new NUnitStreamingReportTransformer(), true);
+        assertTrue(nunitArchiver.call(), "Error during archiver call");
+        assertEquals(4, new File(workspace, "junit").list().length, "Should have converted both reports");
+    }
+
+    @Test
+    @DisabledOnOs(value = OS.WINDOWS, disabledReason = "Mapped files stay locked until garbage collected")
+    void testMappedReports(@TempDir File workspace) throws Exception {
+        File report = new File(workspace, "nunit.xml");
+        try (InputStream input = getClass().getResourceAsStream("NUnit.xml")) {
+            Files.copy(input, report.toPath());
+        }
+        try (OutputStream output = new GZIPOutputStream(new FileOutputStream(new File(workspace, "nunit.xml.gz")))) {
+            Files.copy(report.toPath(), output);
+        }
+
+        try (InputStream mapped = NUnitArchiver.openNUnitReport(report, 0);
+                InputStream compressed = NUnitArchiver.openNUnitReport(new File(workspace, "nunit.xml.gz"), 0)) {
+            assertInstanceOf(MappedFileInputStream.class, mapped);
+            assertInstanceOf(GZIPInputStream.class, compressed, "A compressed report is not mapped");
+            assertArrayEquals(Files.readAllBytes(report.toPath()), mapped.readAllBytes());
+        }
+        try (InputStream small = NUnitArchiver.openNUnitReport(report, report.length() + 1)) {
+            assertFalse(small instanceof MappedFileInputStream, "A small report is not mapped");
+        }
+        try (InputStream input = NUnitArchiver.openNUnitReport(report)) {
+            assertFalse(input instanceof MappedFileInputStream, "Reports are not mapped by default");
+        }
+
+        File streamed = new File(workspace, "streamed");
+        File mapped = new File(workspace, "mapped");
+        assertTrue(streamed.mkdirs() && mapped.mkdirs());
+        try (InputStream input = NUnitArchiver.openNUnitReport(report, -1)) {
+            new NUnitStreamingReportTransformer().transform(input, streamed, 1);
+        }
+        try (InputStream input = NUnitArchiver.openNUnitReport(report, 0)) {
+            new NUnitStreamingReportTransformer().transform(input, mapped, 1);
+        }
+        String[] files = streamed.list();
+        assertTrue(files.length > 0);
+        for (String file : files) {
+            assertArrayEquals(
+                    Files.readAllBytes(new File(streamed, file).toPath()),
+                    Files.readAllBytes(new File(mapped, file).toPath()),
+                    "The content of " + file + " is not the same");
+        }
+    }
+
+    @Test
+    void testJUnitAndOtherReports(@TempDir File workspace) throws Exception {
+        for (String report : Arrays.asList("NUnit.xml", "JUnit-simple.xml")) {
+            try (InputStream input = getClass().getResourceAsStream(report)) {
+                Files.copy(input, new File(workspace, report).toPath());
+            }
+        }
+        File junitReport = new File(workspace, "JUnit-simple.xml");
+        try (OutputStream output = new GZIPOutputStream(new FileOutputStream(new File(workspace, "junit.xml.gz")))) {
+            Files.copy(junitReport.toPath(), output);
+        }
+        Files.write(
+                new File(workspace, "app.config.xml").toPath(),
+                "<?xml version=\"1.0\"?><configuration><appSettings/></configuration>".getBytes(UTF_8));
+
+        assertEquals(TestReportFormat.NUNIT, TestReportFormat.of(new File(workspace, "NUnit.xml")));
+        assertEquals(TestReportFormat.JUNIT, TestReportFormat.of(junitReport));
+        assertEquals(TestReportFormat.JUNIT, TestReportFormat.of(new File(workspace, "junit.xml.gz")));
+        assertEquals(TestReportFormat.OTHER, TestReportFormat.of(new File(workspace, "app.config.xml")));
+
+        nunitArchiver = new NUnitArchiver(
+                workspace.getPath(), "junit", buildListener, "*.xml,*.gz", transformer, true, 2);
+        assertTrue(nunitArchiver.call(), "Error during archiver call");
+        assertEquals(4, nunitArchiver.getFileCount());
+        verify(transformer, times(1)).transform(any(InputStream.class), any(File.class), anyInt());
+
+        // the JUnit reports are copied as they are, the other file is skipped
+        File[] copies = new File(workspace, "junit").listFiles();
+        assertEquals(2, copies.length);
+        for (File copy : copies) {
+            assertTrue(copy.getName().startsWith(NUnitReportTransformer.JUNIT_FILE_PREFIX));
+            assertArrayEquals(Files.readAllBytes(junitReport.toPath()), Files.readAllBytes(copy.toPath()));
+        }
+
+        NUnitResultArchiver resultArchiver = new NUnitResultArchiver(
+                workspace.getPath(),
+                buildListener,
+                "JUnit-simple.xml,*.gz,app.config.xml",
+                new NUnitStreamingReportTransformer(),
+                true,
+                2);
+        assertEquals(2, resultArchiver.call().getSuiteCount(), "Should have read the suite of both JUnit reports");
+    }
+
     @Test
     void testNoNUnitReports() throws Exception {
         FreeStyleProject prj = j.createFreeStyleProject("foo");
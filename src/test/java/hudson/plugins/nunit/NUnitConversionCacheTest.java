@@ -0,0 +1,157 @@
+package hudson.plugins.nunit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import hudson.tasks.junit.SuiteResult;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class NUnitConversionCacheTest {
+
+    @Test
+    void testDisabledByDefault() {
+        assertFalse(new NUnitConversionCache(0).isEnabled());
+        assertTrue(new NUnitConversionCache(1).isEnabled());
+    }
+
+    @Test
+    void testLeastRecentlyUsedDropped() throws Exception {
+        NUnitConversionCache sizing = new NUnitConversionCache(Long.MAX_VALUE);
+        sizing.putSuites("a", Collections.emptyList());
+        long entrySize = sizing.getSize();
+        assertTrue(entrySize > 0);
+
+        NUnitConversionCache cache = new NUnitConversionCache(2 * entrySize);
+        cache.putSuites("a", Collections.emptyList());
+        cache.putSuites("b", Collections.emptyList());
+        assertNotNull(cache.getSuites("a"));
+        cache.putSuites("c", Collections.emptyList());
+
+        assertNull(cache.getSuites("b"), "The least recently used conversion should be dropped");
+        assertNotNull(cache.getSuites("a"));
+        assertNotNull(cache.getSuites("c"));
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(2 * entrySize, cache.getSize());
+
+        // a conversion larger than the whole cache is not kept
+        NUnitConversionCache small = new NUnitConversionCache(entrySize - 1);
+        small.putSuites("a", Collections.emptyList());
+        assertEquals(0, small.getEntryCount());
+    }
+
+    @Test
+    void testMaxSizeChanged() throws Exception {
+        NUnitConversionCache cache = new NUnitConversionCache(0);
+        cache.setMaxSize(Long.MAX_VALUE);
+        assertTrue(cache.isEnabled());
+        cache.putSuites("a", Collections.emptyList());
+        cache.putSuites("b", Collections.emptyList());
+        long entrySize = cache.getSize() / 2;
+
+        cache.setMaxSize(entrySize);
+        assertEquals(1, cache.getEntryCount(), "The conversions that no longer fit should be dropped");
+        assertNull(cache.getSuites("a"));
+        assertNotNull(cache.getSuites("b"));
+
+        cache.setMaxSize(0);
+        assertFalse(cache.isEnabled());
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    void testSuitesRestored(@TempDir File workspace) throws Exception {
+        File report = copyReport(workspace, "NUnit.xml");
+        NUnitStreamingReportTransformer transformer = new NUnitStreamingReportTransformer();
+        List<SuiteResult> suites = new ArrayList<>();
+        transformer.readSuiteResults(report, suites, 1);
+
+        NUnitConversionCache cache = new NUnitConversionCache(Long.MAX_VALUE);
+        String key = NUnitConversionCache.getKey(report, NUnitConversionCache.getSuitesConversion(transformer));
+        assertNull(cache.getSuites(key));
+        cache.putSuites(key, suites);
+
+        List<SuiteResult> cached = cache.getSuites(key);
+        assertEquals(suites.size(), cached.size());
+        for (int i = 0; i < suites.size(); i++) {
+            assertEquals(suites.get(i).getName(), cached.get(i).getName());
+            assertEquals(suites.get(i).getCases().size(), cached.get(i).getCases().size());
+        }
+    }
+
+    @Test
+    void testKey(@TempDir File workspace) throws Exception {
+        File report = copyReport(workspace, "NUnit.xml");
+        File copy = new File(workspace, "copy.xml");
+        Files.copy(report.toPath(), copy.toPath());
+        File other = copyReport(workspace, "NUnit-correct.xml");
+
+        NUnitStreamingReportTransformer transformer = new NUnitStreamingReportTransformer();
+        String conversion = NUnitConversionCache.getFilesConversion(transformer);
+        assertEquals(NUnitConversionCache.getKey(report, conversion), NUnitConversionCache.getKey(copy, conversion));
+        assertNotEquals(
+                NUnitConversionCache.getKey(report, conversion), NUnitConversionCache.getKey(other, conversion));
+
+        transformer.setMaxTestCaseOutputLength(100);
+        assertNotEquals(conversion, NUnitConversionCache.getFilesConversion(transformer));
+        NUnitReportTransformer xslTransformer = new NUnitReportTransformer();
+        assertNotEquals(conversion, NUnitConversionCache.getFilesConversion(xslTransformer));
+        xslTransformer.setSingleJUnitFile(true);
+        assertNotEquals(
+                NUnitConversionCache.getFilesConversion(new NUnitReportTransformer()),
+                NUnitConversionCache.getFilesConversion(xslTransformer));
+    }
+
+    @Test
+    void testJUnitFilesRestoredForOtherReport(@TempDir File workspace) throws Exception {
+        File report = copyReport(workspace, "NUnit.xml");
+        for (boolean singleJUnitFile : new boolean[] {false, true}) {
+            NUnitStreamingReportTransformer transformer = new NUnitStreamingReportTransformer();
+            transformer.setSingleJUnitFile(singleJUnitFile);
+            File stored = newDirectory(workspace, "stored-" + singleJUnitFile);
+            File restored = newDirectory(workspace, "restored-" + singleJUnitFile);
+            File expected = newDirectory(workspace, "expected-" + singleJUnitFile);
+
+            NUnitConversionCache cache = new NUnitConversionCache(Long.MAX_VALUE);
+            String key = NUnitConversionCache.getKey(report, NUnitConversionCache.getFilesConversion(transformer));
+            transformer.transform(report, stored, 1, 1);
+            cache.storeJUnitFiles(key, stored, 1);
+            assertTrue(cache.restoreJUnitFiles(key, restored, 7));
+            transformer.transform(report, expected, 7, 1);
+
+            String[] expectedFiles = expected.list();
+            String[] restoredFiles = restored.list();
+            Arrays.sort(expectedFiles);
+            Arrays.sort(restoredFiles);
+            assertTrue(expectedFiles.length > 0);
+            assertArrayEquals(expectedFiles, restoredFiles);
+            for (String file : expectedFiles) {
+                assertArrayEquals(
+                        Files.readAllBytes(new File(expected, file).toPath()),
+                        Files.readAllBytes(new File(restored, file).toPath()),
+                        "The content of " + file + " is not the same");
+            }
+        }
+    }
+
+    private File copyReport(File workspace, String name) throws Exception {
+        File report = new File(workspace, name);
+        try (InputStream input = getClass().getResourceAsStream(name)) {
+            Files.copy(input, report.toPath());
+        }
+        return report;
+    }
+
+    private static File newDirectory(File parent, String name) {
+        File directory = new File(parent, name);
+        assertTrue(directory.mkdirs());
+        return directory;
+    }
+}
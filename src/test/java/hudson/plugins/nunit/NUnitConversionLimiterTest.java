@@ -0,0 +1,150 @@
+package hudson.plugins.nunit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class NUnitConversionLimiterTest {
+
+    private static final Runnable FAIL_ON_WAIT = () -> fail("The conversion should not wait");
+
+    @Test
+    void testMaxConversions() throws Exception {
+        NUnitConversionLimiter limiter = new NUnitConversionLimiter(2, 1000);
+        NUnitConversionLimiter.Conversion first = limiter.start(10, FAIL_ON_WAIT);
+        NUnitConversionLimiter.Conversion second = limiter.start(10, FAIL_ON_WAIT);
+
+        CountDownLatch waiting = new CountDownLatch(1);
+        Thread third = startConversion(limiter, 10, waiting, new CopyOnWriteArrayList<>(), "third");
+        assertTrue(waiting.await(10, TimeUnit.SECONDS));
+        assertTrue(third.isAlive());
+
+        first.close();
+        third.join(10_000);
+        assertFalse(third.isAlive());
+        second.close();
+    }
+
+    @Test
+    void testMemoryBudget() throws Exception {
+        NUnitConversionLimiter limiter = new NUnitConversionLimiter(10, 100);
+        NUnitConversionLimiter.Conversion first = limiter.start(60, FAIL_ON_WAIT);
+
+        CountDownLatch waiting = new CountDownLatch(1);
+        Thread second = startConversion(limiter, 60, waiting, new CopyOnWriteArrayList<>(), "second");
+        assertTrue(waiting.await(10, TimeUnit.SECONDS));
+
+        first.close();
+        // closing twice does not free the memory of another conversion
+        first.close();
+        second.join(10_000);
+        assertFalse(second.isAlive());
+
+        // more than the whole budget runs on its own
+        limiter.start(1000, FAIL_ON_WAIT).close();
+    }
+
+    @Test
+    void testConversionsStartInOrder() throws Exception {
+        NUnitConversionLimiter limiter = new NUnitConversionLimiter(1, 100);
+        NUnitConversionLimiter.Conversion first = limiter.start(10, FAIL_ON_WAIT);
+
+        List<String> started = new CopyOnWriteArrayList<>();
+        CountDownLatch largeWaiting = new CountDownLatch(1);
+        Thread large = startConversion(limiter, 100, largeWaiting, started, "large");
+        assertTrue(largeWaiting.await(10, TimeUnit.SECONDS));
+        CountDownLatch smallWaiting = new CountDownLatch(1);
+        Thread small = startConversion(limiter, 1, smallWaiting, started, "small");
+        assertTrue(smallWaiting.await(10, TimeUnit.SECONDS));
+
+        first.close();
+        large.join(10_000);
+        small.join(10_000);
+        assertEquals(List.of("large", "small"), started);
+    }
+
+    @Test
+    void testInterruptedWhileWaiting() throws Exception {
+        NUnitConversionLimiter limiter = new NUnitConversionLimiter(1, 100);
+        NUnitConversionLimiter.Conversion first = limiter.start(10, FAIL_ON_WAIT);
+
+        AtomicInteger interrupted = new AtomicInteger();
+        CountDownLatch waiting = new CountDownLatch(1);
+        Thread second = new Thread(() -> {
+            try {
+                limiter.start(10, waiting::countDown).close();
+            } catch (InterruptedIOException e) {
+                interrupted.incrementAndGet();
+            }
+        });
+        second.start();
+        assertTrue(waiting.await(10, TimeUnit.SECONDS));
+        second.interrupt();
+        second.join(10_000);
+        assertEquals(1, interrupted.get());
+
+        // the interrupted conversion no longer holds back the ones after it
+        first.close();
+        limiter.start(10, FAIL_ON_WAIT).close();
+    }
+
+    @Test
+    void testRaisedLimitsStartWaitingConversions() throws Exception {
+        NUnitConversionLimiter limiter = new NUnitConversionLimiter(1, 100);
+        NUnitConversionLimiter.Conversion first = limiter.start(10, FAIL_ON_WAIT);
+
+        CountDownLatch waiting = new CountDownLatch(1);
+        Thread second = startConversion(limiter, 10, waiting, new CopyOnWriteArrayList<>(), "second");
+        assertTrue(waiting.await(10, TimeUnit.SECONDS));
+
+        limiter.setLimits(2, 100);
+        second.join(10_000);
+        assertFalse(second.isAlive());
+        first.close();
+    }
+
+    @Test
+    void testEstimateMemory() {
+        assertEquals(
+                1000L * NUnitConversionLimiter.XSL_MEMORY_PER_REPORT_BYTE,
+                NUnitConversionLimiter.estimateMemory(new NUnitReportTransformer(), 1000));
+
+        NUnitStreamingReportTransformer streaming = new NUnitStreamingReportTransformer();
+        assertEquals(
+                NUnitConversionLimiter.STREAMING_MEMORY + 2 * 1000L,
+                NUnitConversionLimiter.estimateMemory(streaming, 1000));
+        // a large report keeps at most the output the limits allow
+        long outputLimits = NUnitStreamingReportTransformer.DEFAULT_MAX_TEST_CASE_OUTPUT_LENGTH
+                + NUnitStreamingReportTransformer.DEFAULT_MAX_TEST_SUITE_OUTPUT_LENGTH;
+        assertEquals(
+                NUnitConversionLimiter.STREAMING_MEMORY + 2 * outputLimits,
+                NUnitConversionLimiter.estimateMemory(streaming, 10L * 1024 * 1024 * 1024));
+        streaming.setMaxTestSuiteOutputLength(0);
+        assertEquals(
+                NUnitConversionLimiter.STREAMING_MEMORY + 2 * 5000L,
+                NUnitConversionLimiter.estimateMemory(streaming, 5000));
+    }
+
+    /**
+     * Starts a conversion in a new thread, which closes it as soon as it started.
+     */
+    private static Thread startConversion(
+            NUnitConversionLimiter limiter, long memory, CountDownLatch waiting, List<String> started, String name) {
+        Thread thread = new Thread(() -> {
+            try (NUnitConversionLimiter.Conversion conversion = limiter.start(memory, waiting::countDown)) {
+                assertTrue(conversion.getWaitNanos() > 0);
+                started.add(name);
+            } catch (InterruptedIOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,176 @@
+package hudson.plugins.nunit;
+
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.tasks.junit.SuiteResult;
+import hudson.tasks.junit.TestResult;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the steps of publishing a synthetic NUnit report: reading it through {@link InvalidXmlStreamReader},
+ * transforming it with the XSL, splitting the result into JUnit files and the whole {@link NUnitArchiver}. For the
+ * direct mode, sending the test results read from the report to the controller is measured both with Java
+ * serialization and in their {@link CompactTestResult compact form}.
+ *
+ * <p>The size of the report is set with the parameters of {@link Report}, which can be overridden when running the
+ * benchmarks, e.g. <code>-Dbenchmark.param.suites=1000</code>.
+ */
+public class NUnitPipelineBenchmark {
+
+    private static final String REPORT_NAME = "nunit-report.xml";
+
+    @State(Scope.Benchmark)
+    public static class Report {
+
+        @Param({"nunit2", "nunit3"})
+        public String format;
+
+        @Param({"100"})
+        public int suites;
+
+        @Param({"50"})
+        public int casesPerSuite;
+
+        @Param({"20"})
+        public int outputLines;
+
+        File root;
+        File nunitFile;
+        File junitFile;
+        File splitDirectory;
+        NUnitReportTransformer transformer;
+        ArrayList<SuiteResult> suiteResults = new ArrayList<>();
+        CompactTestResult compactResult;
+
+        @Setup
+        public void setUp() throws Exception {
+            root = Files.createTempDirectory("nunit-benchmark").toFile();
+            nunitFile = new File(root, REPORT_NAME);
+            new NUnitReportGenerator("nunit3".equals(format), suites, casesPerSuite, outputLines)
+                    .write(nunitFile.toPath());
+
+            transformer = new NUnitReportTransformer();
+            junitFile = new File(root, "junit-report.xml");
+            try (InputStream input = Files.newInputStream(nunitFile.toPath())) {
+                transformer.transformToJUnitFile(input, junitFile);
+            }
+            try (InputStream input = Files.newInputStream(nunitFile.toPath())) {
+                new NUnitStreamingReportTransformer().readSuiteResults(input, suiteResults);
+            }
+            compactResult = writeCompactResult(suiteResults);
+            splitDirectory = new File(root, "split");
+            if (!splitDirectory.mkdir()) {
+                throw new IOException("Could not create " + splitDirectory);
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            Util.deleteRecursive(root);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Archiver {
+
+        @Param({"xsl", "streaming"})
+        public String transformer;
+
+        private String junitDirectoryName;
+        private int invocation;
+
+        @Setup(Level.Invocation)
+        public void setUp(Report report) throws IOException {
+            if (junitDirectoryName != null) {
+                Util.deleteRecursive(new File(report.root, junitDirectoryName));
+            }
+            junitDirectoryName = "junit-" + Thread.currentThread().getId() + "-" + invocation++;
+        }
+
+        TestReportTransformer createTransformer() {
+            return "xsl".equals(transformer) ? new NUnitReportTransformer() : new NUnitStreamingReportTransformer();
+        }
+    }
+
+    @Benchmark
+    public long readReport(Report report) throws IOException {
+        try (Reader reader = new InvalidXmlStreamReader(Files.newInputStream(report.nunitFile.toPath()), '?')) {
+            char[] buffer = new char[8192];
+            long count = 0;
+            int read;
+            while ((read = reader.read(buffer, 0, buffer.length)) >= 0) {
+                count += read;
+            }
+            return count;
+        }
+    }
+
+    @Benchmark
+    public File xslTransform(Report report) throws Exception {
+        Path junitFile = report.root.toPath().resolve("junit-xsl.xml");
+        try (InputStream input = Files.newInputStream(report.nunitFile.toPath())) {
+            report.transformer.transformToJUnitFile(input, junitFile.toFile());
+        }
+        return junitFile.toFile();
+    }
+
+    @Benchmark
+    public File splitJUnitFile(Report report) throws Exception {
+        report.transformer.splitJUnitFile(report.junitFile, report.splitDirectory, 1);
+        return report.splitDirectory;
+    }
+
+    @Benchmark
+    public Boolean archive(Report report, Archiver archiver) throws IOException {
+        return new NUnitArchiver(
+                        report.root.getAbsolutePath(),
+                        archiver.junitDirectoryName,
+                        TaskListener.NULL,
+                        REPORT_NAME,
+                        archiver.createTransformer(),
+                        true)
+                .call();
+    }
+
+    @Benchmark
+    public int serializeSuiteResults(Report report) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(report.suiteResults);
+        }
+        return bytes.size();
+    }
+
+    @Benchmark
+    public int writeCompactTestResult(Report report) throws IOException {
+        return writeCompactResult(report.suiteResults).getSize();
+    }
+
+    @Benchmark
+    public TestResult readCompactTestResult(Report report) throws IOException {
+        return report.compactResult.toTestResult();
+    }
+
+    private static CompactTestResult writeCompactResult(Iterable<SuiteResult> suites) throws IOException {
+        CompactTestResult.Writer writer = new CompactTestResult.Writer();
+        for (SuiteResult suite : suites) {
+            writer.write(suite);
+        }
+        return writer.finish();
+    }
+}
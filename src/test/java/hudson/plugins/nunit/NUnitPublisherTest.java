@@ -8,10 +8,16 @@ import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.*;
 import hudson.tasks.Publisher;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.SuiteResult;
 import hudson.tasks.junit.TestResultAction;
 import hudson.tasks.test.TestResultProjectAction;
 import hudson.util.DescribableList;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
@@ -277,6 +283,139 @@ class NUnitPublisherTest {
         assertEquals(4, existingAction.getTotalCount());
     }
 
+    @Test
+    void testPublishingAgainOnlyRecordsNewReports(JenkinsRule j) throws Exception {
+        FreeStyleProject freeStyleProject = j.createFreeStyleProject("foo");
+        freeStyleProject.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException, IOException {
+                build.getWorkspace().child("nunit.xml").copyFrom(this.getClass().getResourceAsStream("NUnit.xml"));
+                return true;
+            }
+        });
+        DescribableList<Publisher, Descriptor<Publisher>> publishersList = freeStyleProject.getPublishersList();
+        publishersList.add(new NUnitPublisher("nunit.xml"));
+        publishersList.add(new NUnitPublisher("*.xml"));
+        FreeStyleBuild build = freeStyleProject.scheduleBuild2(0).get();
+        TestResultAction existingAction = build.getAction(TestResultAction.class);
+        assertEquals(4, existingAction.getTotalCount());
+        j.assertLogContains("Skipping 1 NUnit reports already recorded in this run", build);
+    }
+
+    @Test
+    void testJUnitReportsAddedToExistingResults(JenkinsRule j) throws Exception {
+        FreeStyleProject freeStyleProject = j.createFreeStyleProject("foo");
+        freeStyleProject.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException, IOException {
+                build.getWorkspace().child("nunit.xml").copyFrom(this.getClass().getResourceAsStream("NUnit.xml"));
+                build.getWorkspace()
+                        .child("nunit-correct.xml")
+                        .copyFrom(this.getClass().getResourceAsStream("NUnit-correct.xml"));
+                return true;
+            }
+        });
+        for (String pattern : new String[] {"nunit.xml", "nunit-correct.xml"}) {
+            NUnitPublisher publisher = new NUnitPublisher(pattern);
+            publisher.setKeepJUnitReports(true);
+            freeStyleProject.getPublishersList().add(publisher);
+        }
+        FreeStyleBuild build = freeStyleProject.scheduleBuild2(0).get();
+
+        assertEquals(4 + 28, build.getAction(TestResultAction.class).getTotalCount());
+        // every publisher counts only the cases it added
+        assertEquals(4 + 28, build.getAction(NUnitPublishAction.class).getStatistics().getCases());
+    }
+
+    @Test
+    void testJUnitReportSameInDirectMode(JenkinsRule j) throws Exception {
+        FreeStyleProject freeStyleProject = j.createFreeStyleProject("foo");
+        freeStyleProject.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException, IOException {
+                build.getWorkspace()
+                        .child("junit.xml")
+                        .copyFrom(this.getClass().getResourceAsStream("JUnit-properties.xml"));
+                return true;
+            }
+        });
+        freeStyleProject.getPublishersList().add(new NUnitPublisher("junit.xml"));
+        List<String> expected = describeJUnitDetails(freeStyleProject.scheduleBuild2(0).get());
+
+        boolean useDirectTestResults = NUnitPublisher.USE_DIRECT_TEST_RESULTS;
+        NUnitPublisher.USE_DIRECT_TEST_RESULTS = true;
+        List<String> actual;
+        try {
+            FreeStyleBuild build = freeStyleProject.scheduleBuild2(0).get();
+            j.assertLogContains("Recording junit.xml as it is, a JUnit report", build);
+            actual = describeJUnitDetails(build);
+        } finally {
+            NUnitPublisher.USE_DIRECT_TEST_RESULTS = useDirectTestResults;
+        }
+
+        String suite = "suite UnitTests.PropertiesTest id=7 properties={os=linux, runtime=net8.0} file=true";
+        assertTrue(expected.contains(suite), expected.toString());
+        assertTrue(expected.contains("case TestWithProperties properties={owner=core}"), expected.toString());
+        assertEquals(expected, actual, "A JUnit report should be recorded the same in direct mode");
+    }
+
+    @Test
+    void testPublishStatistics(JenkinsRule j) throws Exception {
+        FreeStyleProject freeStyleProject = j.createFreeStyleProject("foo");
+        freeStyleProject.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException, IOException {
+                build.getWorkspace().child("nunit.xml").copyFrom(this.getClass().getResourceAsStream("NUnit.xml"));
+                return true;
+            }
+        });
+        freeStyleProject.getPublishersList().add(new NUnitPublisher("nunit.xml"));
+        FreeStyleBuild build = freeStyleProject.scheduleBuild2(0).get();
+
+        NUnitPublishStatistics statistics = build.getAction(NUnitPublishAction.class).getStatistics();
+        assertEquals(1, statistics.getFiles());
+        assertEquals(build.getWorkspace().child("nunit.xml").length(), statistics.getBytesRead());
+        assertEquals(4, statistics.getCases());
+        assertTrue(statistics.getPhaseMillis().keySet().containsAll(List.of("scan", "convert", "remoting", "record")));
+        j.assertLogContains("NUnit publishing took scan ", build);
+        String json = j.createWebClient()
+                .getJSON(build.getUrl() + "api/json?tree=actions[statistics[files,cases]]")
+                .getJSONObject()
+                .toString();
+        assertTrue(json.contains("\"cases\":4"), json);
+    }
+
+    @Test
+    void testCutOffReport(JenkinsRule j) throws Exception {
+        FreeStyleProject freeStyleProject = j.createFreeStyleProject("foo");
+        freeStyleProject.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException, IOException {
+                String report = new String(
+                        this.getClass().getResourceAsStream("NUnit-correct3.xml").readAllBytes(),
+                        StandardCharsets.UTF_8);
+                // the test run crashed while it wrote the last test case
+                build.getWorkspace()
+                        .child("nunit.xml")
+                        .write(report.substring(0, report.lastIndexOf("<test-case")), "UTF-8");
+                return true;
+            }
+        });
+        freeStyleProject.getPublishersList().add(new NUnitPublisher("nunit.xml"));
+        FreeStyleBuild build = freeStyleProject.scheduleBuild2(0).get();
+
+        j.assertBuildStatus(Result.UNSTABLE, build);
+        j.assertLogContains("NUnit report nunit.xml ends early", build);
+        int totalCount = build.getAction(TestResultAction.class).getTotalCount();
+        assertTrue(totalCount > 0 && totalCount < 22, "Only the completed test suites should be recorded");
+        assertEquals(1, build.getAction(NUnitPublishAction.class).getStatistics().getPartialFiles());
+    }
+
     @Test
     void parallelPublishing(JenkinsRule j) throws Exception {
         WorkflowJob job = j.createProject(WorkflowJob.class, "parallelInStage");
@@ -301,4 +440,17 @@ class NUnitPublisherTest {
         assertNotNull(action);
         assertEquals(28 + 218 + 22, action.getTotalCount());
     }
+
+    private static List<String> describeJUnitDetails(Run<?, ?> build) {
+        List<String> description = new ArrayList<>();
+        for (SuiteResult suite : build.getAction(TestResultAction.class).getResult().getSuites()) {
+            description.add("suite " + suite.getName() + " id=" + suite.getId() + " properties="
+                    + new TreeMap<>(suite.getProperties()) + " file=" + (suite.getFile() != null));
+            for (CaseResult testCase : suite.getCases()) {
+                description.add(
+                        "case " + testCase.getName() + " properties=" + new TreeMap<>(testCase.getProperties()));
+            }
+        }
+        return description;
+    }
 }
@@ -0,0 +1,121 @@
+package hudson.plugins.nunit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class NUnitReportExecutorTest {
+
+    @Test
+    void testResultsConsumedInOrder() throws Exception {
+        List<Integer> consumed = new ArrayList<>();
+        NUnitReportExecutor.run(
+                20,
+                4,
+                8,
+                index -> {
+                    // the later tasks tend to complete first
+                    sleep((20 - index) % 5);
+                    return index;
+                },
+                (index, result) -> {
+                    assertEquals(index, result);
+                    consumed.add(result);
+                });
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, consumed);
+    }
+
+    @Test
+    void testConsumingOverlapsWithTasks() throws Exception {
+        CountDownLatch secondDone = new CountDownLatch(1);
+        List<Integer> consumed = new ArrayList<>();
+        // even a single thread runs the next task while the result of the first one is consumed
+        NUnitReportExecutor.run(
+                3,
+                1,
+                2,
+                index -> {
+                    if (index == 1) {
+                        secondDone.countDown();
+                    }
+                    return index;
+                },
+                (index, result) -> {
+                    if (index == 0) {
+                        assertTrue(await(secondDone));
+                    }
+                    consumed.add(result);
+                });
+        assertEquals(List.of(0, 1, 2), consumed);
+    }
+
+    @Test
+    void testMaxPending() throws Exception {
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger consumed = new AtomicInteger();
+        AtomicInteger maxPending = new AtomicInteger();
+        NUnitReportExecutor.run(
+                30,
+                2,
+                3,
+                index -> {
+                    maxPending.accumulateAndGet(started.incrementAndGet() - consumed.get(), Math::max);
+                    return index;
+                },
+                (index, result) -> {
+                    // the consumer falls behind, which must hold back the tasks
+                    sleep(2);
+                    consumed.incrementAndGet();
+                });
+        assertEquals(30, consumed.get());
+        assertTrue(maxPending.get() <= 3, "At most 3 tasks ahead of the consumer, was " + maxPending.get());
+    }
+
+    @Test
+    void testFailedTask() {
+        List<Integer> consumed = new ArrayList<>();
+        IOException failure = new IOException("task failed");
+        IOException thrown = assertThrows(
+                IOException.class,
+                () -> NUnitReportExecutor.run(
+                        10,
+                        2,
+                        4,
+                        index -> {
+                            if (index == 2) {
+                                throw failure;
+                            }
+                            return index;
+                        },
+                        (index, result) -> consumed.add(result)));
+        assertSame(failure, thrown);
+        assertEquals(List.of(0, 1), consumed);
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static boolean await(CountDownLatch latch) throws IOException {
+        try {
+            return latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package hudson.plugins.nunit;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Generates synthetic NUnit reports of a given size for the benchmarks. Every tenth test case fails and every
+ * twentieth is ignored, the others pass.
+ */
+class NUnitReportGenerator {
+
+    private final boolean nunit3;
+    private final int suites;
+    private final int casesPerSuite;
+    private final int outputLines;
+    private int namespaceDepth;
+    private int casesPerParameterizedTest;
+
+    /**
+     * @param nunit3 whether to generate a NUnit 3 report instead of a NUnit 2 report
+     * @param suites the number of test fixtures
+     * @param casesPerSuite the number of test cases of every fixture
+     * @param outputLines the number of lines of the stack trace of every failed test case, and for NUnit 3 also of the
+     *     output of every test case
+     */
+    NUnitReportGenerator(boolean nunit3, int suites, int casesPerSuite, int outputLines) {
+        this.nunit3 = nunit3;
+        this.suites = suites;
+        this.casesPerSuite = casesPerSuite;
+        this.outputLines = outputLines;
+    }
+
+    /**
+     * Nests the fixtures of a NUnit 2 report in the given number of namespace suites, as NUnit 2 writes a suite for
+     * every part of a namespace.
+     */
+    NUnitReportGenerator namespaceDepth(int namespaceDepth) {
+        this.namespaceDepth = namespaceDepth;
+        return this;
+    }
+
+    /**
+     * Groups the test cases of every fixture of a NUnit 2 report into parameterized tests of the given number of test
+     * cases.
+     */
+    NUnitReportGenerator casesPerParameterizedTest(int casesPerParameterizedTest) {
+        this.casesPerParameterizedTest = casesPerParameterizedTest;
+        return this;
+    }
+
+    void write(Path file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(out);
+        }
+    }
+
+    void write(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.write("<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"no\"?>\n");
+        if (nunit3) {
+            writeNUnit3(writer);
+        } else {
+            writeNUnit2(writer);
+        }
+        writer.flush();
+    }
+
+    private void writeNUnit2(Writer writer) throws IOException {
+        writer.write("<test-results name=\"Benchmark.Tests.dll\" total=\"" + suites * casesPerSuite + "\" failures=\""
+                + suites * count(true) + "\" not-run=\"" + suites * count(false)
+                + "\" date=\"2024-01-01\" time=\"12:00:00\">\n");
+        writer.write("  <test-suite name=\"Benchmark.Tests.dll\" success=\"False\" time=\"1.000\" asserts=\"0\">\n");
+        writer.write("    <results>\n");
+        String namespace = "Benchmark.Tests";
+        for (int depth = 0; depth < namespaceDepth; depth++) {
+            namespace += ".Namespace" + depth;
+            writer.write("<test-suite type=\"Namespace\" name=\"Namespace" + depth
+                    + "\" success=\"False\" time=\"1.000\" asserts=\"0\"><results>\n");
+        }
+        for (int suite = 0; suite < suites; suite++) {
+            String fixture = namespace + ".Fixture" + suite;
+            writer.write(
+                    "      <test-suite name=\"" + fixture + "\" success=\"False\" time=\"0.500\" asserts=\"0\">\n");
+            writer.write("        <results>\n");
+            for (int testCase = 0; testCase < casesPerSuite; testCase++) {
+                String name = fixture + ".Test" + testCase;
+                if (casesPerParameterizedTest > 0) {
+                    int test = testCase / casesPerParameterizedTest;
+                    if (testCase % casesPerParameterizedTest == 0) {
+                        writer.write("<test-suite type=\"ParameterizedTest\" name=\"Test" + test
+                                + "\" success=\"False\" time=\"0.100\" asserts=\"0\"><results>\n");
+                    }
+                    name = fixture + ".Test" + test + "(" + testCase + ",&quot;a.b&quot;)";
+                }
+                if (isIgnored(testCase)) {
+                    writer.write("          <test-case name=\"" + name + "\" executed=\"False\">\n");
+                    writer.write("            <reason><message><![CDATA[Not implemented yet]]></message></reason>\n");
+                    writer.write("          </test-case>\n");
+                } else if (isFailed(testCase)) {
+                    writer.write("          <test-case name=\"" + name
+                            + "\" executed=\"True\" success=\"False\" time=\"0.012\" asserts=\"1\">\n");
+                    writer.write("            <failure>\n");
+                    writeFailure(writer, fixture, testCase);
+                    writer.write("            </failure>\n");
+                    writer.write("          </test-case>\n");
+                } else {
+                    writer.write("          <test-case name=\"" + name
+                            + "\" executed=\"True\" success=\"True\" time=\"0.001\" asserts=\"1\" />\n");
+                }
+                if (casesPerParameterizedTest > 0
+                        && (testCase % casesPerParameterizedTest == casesPerParameterizedTest - 1
+                                || testCase == casesPerSuite - 1)) {
+                    writer.write("</results></test-suite>\n");
+                }
+            }
+            writer.write("        </results>\n");
+            writer.write("      </test-suite>\n");
+        }
+        for (int depth = 0; depth < namespaceDepth; depth++) {
+            writer.write("</results></test-suite>\n");
+        }
+        writer.write("    </results>\n");
+        writer.write("  </test-suite>\n");
+        writer.write("</test-results>\n");
+    }
+
+    private void writeNUnit3(Writer writer) throws IOException {
+        String counts = counts(suites);
+        writer.write("<test-run id=\"2\" testcasecount=\"" + suites * casesPerSuite + "\" result=\"Failed\""
+                + counts + " start-time=\"2024-01-01 12:00:00Z\" duration=\"1.000\">\n");
+        writer.write("  <test-suite type=\"Assembly\" id=\"0-1\" name=\"Benchmark.Tests.dll\""
+                + " fullname=\"Benchmark.Tests.dll\" result=\"Failed\"" + counts + " duration=\"1.000\">\n");
+        int id = 1000;
+        for (int suite = 0; suite < suites; suite++) {
+            String fixture = "Benchmark.Tests.Fixture" + suite;
+            writer.write("    <test-suite type=\"TestFixture\" id=\"0-" + id++ + "\" name=\"Fixture" + suite
+                    + "\" fullname=\"" + fixture + "\" classname=\"" + fixture + "\" result=\"Failed\"" + counts(1)
+                    + " start-time=\"2024-01-01 12:00:00Z\" duration=\"0.500\">\n");
+            for (int testCase = 0; testCase < casesPerSuite; testCase++) {
+                String result = isIgnored(testCase) ? "Skipped" : isFailed(testCase) ? "Failed" : "Passed";
+                writer.write("      <test-case id=\"0-" + id++ + "\" name=\"Test" + testCase + "\" fullname=\""
+                        + fixture + ".Test" + testCase + "\" methodname=\"Test" + testCase + "\" classname=\""
+                        + fixture + "\" result=\"" + result + "\"" + (isIgnored(testCase) ? " label=\"Ignored\"" : "")
+                        + " duration=\"0.001\" asserts=\"1\">\n");
+                if (isIgnored(testCase)) {
+                    writer.write("        <reason><message><![CDATA[Not implemented yet]]></message></reason>\n");
+                } else if (isFailed(testCase)) {
+                    writer.write("        <failure>\n");
+                    writeFailure(writer, fixture, testCase);
+                    writer.write("        </failure>\n");
+                }
+                if (outputLines > 0) {
+                    writer.write("        <output><![CDATA[");
+                    for (int line = 0; line < outputLines; line++) {
+                        writer.write("Test" + testCase + " output line " + line + ": connecting to the database\n");
+                    }
+                    writer.write("]]></output>\n");
+                }
+                writer.write("      </test-case>\n");
+            }
+            writer.write("    </test-suite>\n");
+        }
+        writer.write("  </test-suite>\n");
+        writer.write("</test-run>\n");
+    }
+
+    private void writeFailure(Writer writer, String fixture, int testCase) throws IOException {
+        writer.write("<message><![CDATA[  Expected: " + testCase + "\n  But was:  " + (testCase + 1)
+                + "\n]]></message>\n");
+        writer.write("<stack-trace><![CDATA[");
+        for (int line = 0; line < outputLines; line++) {
+            writer.write("  at " + fixture + ".Test" + testCase + "() in C:\\Sources\\Fixture.cs:line " + line + "\n");
+        }
+        writer.write("]]></stack-trace>\n");
+    }
+
+    /**
+     * @return the NUnit 3 count attributes of a test suite containing the given number of fixtures
+     */
+    private String counts(int fixtures) {
+        int failed = fixtures * count(true);
+        int skipped = fixtures * count(false);
+        return " total=\"" + fixtures * casesPerSuite + "\" passed=\"" + (fixtures * casesPerSuite - failed - skipped)
+                + "\" failed=\"" + failed + "\" inconclusive=\"0\" skipped=\"" + skipped + "\"";
+    }
+
+    /**
+     * @return the number of failed or ignored test cases of a fixture
+     */
+    private int count(boolean failed) {
+        int count = 0;
+        for (int testCase = 0; testCase < casesPerSuite; testCase++) {
+            if (failed ? isFailed(testCase) : isIgnored(testCase)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isFailed(int testCase) {
+        return testCase % 10 == 9;
+    }
+
+    private static boolean isIgnored(int testCase) {
+        return testCase % 20 == 10;
+    }
+}
@@ -0,0 +1,101 @@
+package hudson.plugins.nunit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import hudson.Util;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class NUnitReportScannerTest {
+
+    @TempDir
+    File workspace;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        for (String file : new String[] {
+            "result.xml",
+            "build.log",
+            "tests/unit/TestResult.xml",
+            "tests/unit/TestResult.xml~",
+            "tests/integration/TestResult.xml",
+            "tests/integration/data/input.xml",
+            "node_modules/package/TestResult.xml",
+            "src/obj/Debug/TestResult.xml",
+            ".git/TestResult.xml",
+            "reports.xml/TestResult.xml"
+        }) {
+            Path path = workspace.toPath().resolve(file);
+            Files.createDirectories(path.getParent());
+            Files.writeString(path, "<test-run/>");
+        }
+    }
+
+    @Test
+    void testSameFilesAsFileSet() throws Exception {
+        for (String pattern : new String[] {
+            "*.xml",
+            "**/*.xml",
+            "**/TestResult.xml",
+            "tests/",
+            "tests\\unit\\*.xml",
+            "tests/**/TestResult.xml, result.xml",
+            "tests/*/TestResult.???",
+            "**/obj/**",
+            "*",
+            "missing/*.xml"
+        }) {
+            for (String excludePattern : new String[] {null, "**/node_modules/**,**/obj/**", "tests/integration/**"}) {
+                String[] fileSetFiles = Util.createFileSet(workspace, pattern, excludePattern)
+                        .getDirectoryScanner()
+                        .getIncludedFiles();
+                Set<String> expected = new TreeSet<>(Arrays.asList(fileSetFiles));
+                for (int parallelism : new int[] {1, 4}) {
+                    Set<String> actual = new TreeSet<>(new NUnitReportScanner(pattern, excludePattern)
+                            .scan(workspace, parallelism)
+                            .keySet());
+                    assertEquals(
+                            expected,
+                            actual,
+                            "Different files for " + pattern + " excluding " + excludePattern + " with parallelism "
+                                    + parallelism);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testOrderDoesNotDependOnParallelism() throws Exception {
+        List<String> sequential =
+                new ArrayList<>(new NUnitReportScanner("**/*.xml", null).scan(workspace, 1).keySet());
+        List<String> parallel =
+                new ArrayList<>(new NUnitReportScanner("**/*.xml", null).scan(workspace, 4).keySet());
+
+        assertEquals(sequential, parallel);
+    }
+
+    @Test
+    void testMissingDirectory() throws Exception {
+        File missing = new File(workspace, "missing");
+
+        assertTrue(new NUnitReportScanner("**/*.xml", null).scan(missing, 1).isEmpty());
+        assertTrue(new NUnitReportScanner("**/*.xml", null).scan(missing, 4).isEmpty());
+    }
+
+    @Test
+    void testKnownFilesScanner() {
+        String[] files = {"TEST-a.xml", "TEST-b.xml"};
+
+        assertArrayEquals(files, NUnitReportScanner.getKnownFilesScanner(workspace, files).getIncludedFiles());
+        assertEquals(workspace, NUnitReportScanner.getKnownFilesScanner(workspace, files).getBasedir());
+    }
+}
@@ -52,6 +52,17 @@ class NUnitReportTransformerTest extends AbstractWorkspaceTest implements Filena
         }
     }
 
+    @Test
+    void testCompiledXslIsShared() throws Exception {
+        transformer.transform(this.getClass().getResourceAsStream("NUnit.xml"), tempFilePath);
+        long hits = NUnitReportTransformer.getTemplatesCacheHits();
+        long misses = NUnitReportTransformer.getTemplatesCacheMisses();
+        new NUnitReportTransformer().transform(this.getClass().getResourceAsStream("NUnit.xml"), tempFilePath);
+        assertEquals(hits + 1, NUnitReportTransformer.getTemplatesCacheHits(), "The compiled XSL was not reused");
+        assertEquals(misses, NUnitReportTransformer.getTemplatesCacheMisses(), "The XSL was compiled again");
+        assertJunitFiles(4);
+    }
+
     @Test
     void testTransform() throws Exception {
         transformer.transform(this.getClass().getResourceAsStream("NUnit.xml"), tempFilePath);
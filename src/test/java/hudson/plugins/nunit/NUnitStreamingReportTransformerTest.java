@@ -0,0 +1,489 @@
+package hudson.plugins.nunit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import hudson.Util;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.SuiteResult;
+import hudson.tasks.junit.TestResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import javax.xml.transform.TransformerException;
+import org.apache.commons.io.IOUtils;
+import org.dom4j.Document;
+import org.dom4j.io.SAXReader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.Issue;
+
+class NUnitStreamingReportTransformerTest extends AbstractWorkspaceTest implements FilenameFilter {
+
+    static final String[] REPORTS = {
+        "NUnit.xml",
+        "NUnit-correct.xml",
+        "NUnit-correct2.xml",
+        "NUnit-correct3.xml",
+        "NUnit-failure.xml",
+        "NUnit-healthReport.xml",
+        "NUnit-ignored.xml",
+        "NUnit-issue1077.xml",
+        "NUnit-issue110.xml",
+        "NUnit-issue17521.xml",
+        "NUnit-issue33493.xml",
+        "NUnit-issue34452.xml",
+        "NUnit-issue44315.xml",
+        "NUnit-issue44315-2.xml",
+        "NUnit-issue44315-3.xml",
+        "NUnit-issue44527.xml",
+        "NUnit-issue48478.xml",
+        "NUnit-issue50162.xml",
+        "NUnit-issue5674.xml",
+        "NUnit-issue5674-setname.xml",
+        "NUnit-issue6353.xml",
+        "NUnit-multinamespace.xml",
+        "NUnit-simple.xml",
+        "NUnitUnicode.xml",
+        "issue-5673.xml"
+    };
+
+    private NUnitStreamingReportTransformer transformer;
+    private File tempFilePath;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        super.createWorkspace();
+        transformer = new NUnitStreamingReportTransformer();
+        tempFilePath = parentFile;
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        super.deleteWorkspace();
+    }
+
+    @Test
+    void testSameOutputAsXsl() throws Exception {
+        for (String report : REPORTS) {
+            assertSameOutputAsXsl(report, () -> getClass().getResourceAsStream(report));
+        }
+    }
+
+    @Test
+    void testSameOutputAsXslForGeneratedReports() throws Exception {
+        for (boolean nunit3 : new boolean[] {false, true}) {
+            ByteArrayOutputStream report = new ByteArrayOutputStream();
+            new NUnitReportGenerator(nunit3, 5, 40, 3).write(report);
+            assertSameOutputAsXsl(
+                    nunit3 ? "nunit3.xml" : "nunit2.xml", () -> new ByteArrayInputStream(report.toByteArray()));
+        }
+        ByteArrayOutputStream nested = new ByteArrayOutputStream();
+        new NUnitReportGenerator(false, 4, 30, 2)
+                .namespaceDepth(5)
+                .casesPerParameterizedTest(7)
+                .write(nested);
+        assertSameOutputAsXsl("nunit2-nested.xml", () -> new ByteArrayInputStream(nested.toByteArray()));
+    }
+
+    @Test
+    void testSameOutputAsXslForBufferedTestSuite() throws Exception {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        new NUnitReportGenerator(true, 1, 5000, 2).write(report);
+        assertSameOutputAsXsl("nunit3-large.xml", () -> new ByteArrayInputStream(report.toByteArray()));
+
+        File[] files = new File(tempFilePath, "stm-nunit3-large.xml").listFiles();
+        assertEquals(1, files.length, "Only the junit file should be left");
+        assertTrue(files[0].length() > JUnitReportFiles.BUFFER_SIZE, "The test suite should not fit the buffer");
+    }
+
+    @Test
+    void testSameSuiteResultsAsJUnitFiles() throws Exception {
+        for (String report : REPORTS) {
+            File junitPath = new File(tempFilePath, report);
+            assertTrue(junitPath.mkdirs());
+            new NUnitStreamingReportTransformer().transform(getClass().getResourceAsStream(report), junitPath);
+            TestResult expected = parseJUnitFiles(junitPath);
+
+            List<SuiteResult> actual = new ArrayList<>();
+            new NUnitStreamingReportTransformer().readSuiteResults(getClass().getResourceAsStream(report), actual);
+            TestResult result = merge(actual);
+
+            assertEquals(describe(expected), describe(result), "The test results are not the same for " + report);
+            assertEquals(expected.getSuites().size(), result.getSuites().size(), report);
+            assertEquals(
+                    describeSuites(expected),
+                    describeSuites(result),
+                    "The test suites are not the same for " + report);
+            assertEquals(expected.getDuration(), result.getDuration(), 0.001f, report);
+            assertEquals(expected.getPassCount(), result.getPassCount(), report);
+            assertEquals(expected.getFailCount(), result.getFailCount(), report);
+            assertEquals(expected.getSkipCount(), result.getSkipCount(), report);
+        }
+    }
+
+    @Test
+    void testSingleJUnitFile() throws Exception {
+        for (String report : REPORTS) {
+            File splitPath = new File(tempFilePath, "split-" + report);
+            File streamingPath = new File(tempFilePath, "streaming-" + report);
+            File xslPath = new File(tempFilePath, "xsl-" + report);
+            assertTrue(splitPath.mkdirs() && streamingPath.mkdirs() && xslPath.mkdirs());
+            new NUnitStreamingReportTransformer().transform(getClass().getResourceAsStream(report), splitPath, 1);
+            NUnitStreamingReportTransformer streamingTransformer = new NUnitStreamingReportTransformer();
+            streamingTransformer.setSingleJUnitFile(true);
+            streamingTransformer.transform(getClass().getResourceAsStream(report), streamingPath, 1);
+            NUnitReportTransformer xslTransformer = new NUnitReportTransformer();
+            xslTransformer.setSingleJUnitFile(true);
+            xslTransformer.transform(getClass().getResourceAsStream(report), xslPath, 1);
+
+            // an empty report is not written at all
+            int expectedFiles = splitPath.list().length == 0 ? 0 : 1;
+            for (File path : new File[] {streamingPath, xslPath}) {
+                String[] files = path.list();
+                assertEquals(expectedFiles, files.length, "Unexpected JUnit files " + Arrays.toString(files));
+                if (expectedFiles > 0) {
+                    assertEquals(NUnitReportTransformer.getJUnitReportFile(path, 1).getName(), files[0]);
+                    assertEquals(
+                            describe(parseJUnitFiles(splitPath)),
+                            describe(parseJUnitFiles(path)),
+                            "The test results are not the same for " + path.getName());
+                }
+            }
+        }
+    }
+
+    @Test
+    void testSplitReportSameAsSingleThread() throws Exception {
+        ByteArrayOutputStream generated = new ByteArrayOutputStream();
+        new NUnitReportGenerator(true, 30, 20, 2).write(generated);
+        File generatedFile = new File(tempFilePath, "nunit3.xml");
+        Files.write(generatedFile.toPath(), generated.toByteArray());
+        try (NUnitReportRegions regions = NUnitReportRegions.find(generatedFile.toPath(), 4, 1)) {
+            assertNotNull(regions, "The generated report should be split");
+        }
+
+        List<File> reports = new ArrayList<>();
+        reports.add(generatedFile);
+        for (String report : REPORTS) {
+            File file = new File(tempFilePath, report);
+            try (InputStream input = getClass().getResourceAsStream(report)) {
+                Files.copy(input, file.toPath());
+            }
+            reports.add(file);
+        }
+        for (File report : reports) {
+            for (boolean singleJUnitFile : new boolean[] {false, true}) {
+                File expectedPath = new File(tempFilePath, "threads1-" + singleJUnitFile + "-" + report.getName());
+                File splitPath = new File(tempFilePath, "threads4-" + singleJUnitFile + "-" + report.getName());
+                assertTrue(expectedPath.mkdirs() && splitPath.mkdirs());
+                NUnitStreamingReportTransformer streamingTransformer = new NUnitStreamingReportTransformer();
+                streamingTransformer.setSingleJUnitFile(singleJUnitFile);
+                try (InputStream input = Files.newInputStream(report.toPath())) {
+                    streamingTransformer.transform(input, expectedPath, 1);
+                }
+                // regions of at least one byte, so that even the small reports are split
+                streamingTransformer.transform(report, splitPath, 1, 4, 0, 1);
+
+                String[] expected = expectedPath.list();
+                String[] actual = splitPath.list();
+                Arrays.sort(expected);
+                Arrays.sort(actual);
+                assertArrayEquals(expected, actual, "The junit files are not the same for " + report.getName());
+                for (String name : expected) {
+                    assertArrayEquals(
+                            Files.readAllBytes(new File(expectedPath, name).toPath()),
+                            Files.readAllBytes(new File(splitPath, name).toPath()),
+                            "The content of " + name + " is not the same for " + report.getName());
+                }
+            }
+
+            List<SuiteResult> expected = new ArrayList<>();
+            try (InputStream input = Files.newInputStream(report.toPath())) {
+                transformer.readSuiteResults(input, expected);
+            }
+            List<SuiteResult> actual = new ArrayList<>();
+            transformer.readSuiteResults(report, actual, 4, 0, 1);
+            assertEquals(describe(expected), describe(actual), "The test results are not the same for " + report);
+        }
+    }
+
+    @Test
+    void testFailedSplitReportLeavesNoFiles() throws Exception {
+        ByteArrayOutputStream generated = new ByteArrayOutputStream();
+        new NUnitReportGenerator(true, 30, 20, 2).write(generated);
+        String report = generated.toString(StandardCharsets.UTF_8).replace("Fixture17", "Fixture&undeclared;");
+        File reportFile = new File(tempFilePath, "nunit3.xml");
+        Files.write(reportFile.toPath(), report.getBytes(StandardCharsets.UTF_8));
+        File junitPath = new File(tempFilePath, "junit");
+        assertTrue(junitPath.mkdirs());
+
+        for (boolean singleJUnitFile : new boolean[] {false, true}) {
+            transformer.setSingleJUnitFile(singleJUnitFile);
+            assertThrows(TransformerException.class, () -> transformer.transform(reportFile, junitPath, 1, 4, 0, 1));
+            assertEquals(0, junitPath.list().length, "No files should be left after a failed transform");
+        }
+    }
+
+    @Test
+    void testCutOffReportKeepsCompletedSuites() throws Exception {
+        for (boolean nunit3 : new boolean[] {false, true}) {
+            ByteArrayOutputStream generated = new ByteArrayOutputStream();
+            new NUnitReportGenerator(nunit3, 30, 20, 2).write(generated);
+            String report = generated.toString(StandardCharsets.UTF_8);
+            // the test run crashed while it wrote the 18th fixture
+            String cutOff = report.substring(0, report.indexOf("Fixture17\"") + 500);
+            File reportFile = new File(tempFilePath, "cut-off-" + nunit3 + ".xml");
+            Files.write(reportFile.toPath(), cutOff.getBytes(StandardCharsets.UTF_8));
+
+            List<SuiteResult> suites = new ArrayList<>();
+            assertFalse(transformer.readSuiteResults(reportFile, suites, 1), "The report should be partial");
+            assertEquals(17, suites.size(), "The fixtures completed before the end should be kept");
+            List<SuiteResult> splitSuites = new ArrayList<>();
+            assertFalse(transformer.readSuiteResults(reportFile, splitSuites, 4, 0, 1));
+            assertEquals(describe(suites), describe(splitSuites));
+
+            for (int threads : new int[] {1, 4}) {
+                File junitPath = new File(tempFilePath, "junit-" + nunit3 + "-" + threads);
+                assertTrue(junitPath.mkdirs());
+                assertFalse(transformer.transform(reportFile, junitPath, 1, threads, 0, 1));
+                String[] files = junitPath.list();
+                assertEquals(17, files.length, "Only the junit files of the completed fixtures should be left");
+                assertEquals(17, parseJUnitFiles(junitPath).getSuites().size());
+            }
+
+            List<SuiteResult> completeSuites = new ArrayList<>();
+            assertTrue(transformer.readSuiteResults(new ByteArrayInputStream(generated.toByteArray()), completeSuites));
+            assertEquals(30, completeSuites.size());
+        }
+    }
+
+    @Test
+    void testMalformedEndIsNotCutOff() throws Exception {
+        String report = IOUtils.toString(getClass().getResourceAsStream("NUnit-correct3.xml"), StandardCharsets.UTF_8);
+        // a report that was read to its end, but has a wrong end tag, is malformed rather than cut off
+        String malformed = report.substring(0, report.lastIndexOf("</test-results>")) + "</test-result>\n";
+        assertThrows(
+                TransformerException.class,
+                () -> transformer.readSuiteResults(
+                        new ByteArrayInputStream(malformed.getBytes(StandardCharsets.UTF_8)), new ArrayList<>()));
+    }
+
+    @Test
+    void testNamesAreShared() throws Exception {
+        for (boolean nunit3 : new boolean[] {false, true}) {
+            ByteArrayOutputStream report = new ByteArrayOutputStream();
+            new NUnitReportGenerator(nunit3, 3, 20, 1).write(report);
+            List<SuiteResult> suites = new ArrayList<>();
+            transformer.readSuiteResults(new ByteArrayInputStream(report.toByteArray()), suites);
+
+            assertEquals(3, suites.size());
+            for (SuiteResult suite : suites) {
+                String className = suite.getCases().get(0).getClassName();
+                for (CaseResult testCase : suite.getCases()) {
+                    assertSame(className, testCase.getClassName(), "The class name should be shared");
+                }
+            }
+        }
+    }
+
+    @Test
+    void testOutputIsTruncated() throws Exception {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        new NUnitReportGenerator(true, 1, 3, 10_000).write(report);
+        transformer.setMaxTestCaseOutputLength(200);
+        transformer.setMaxTestSuiteOutputLength(400);
+        transformer.transform(new ByteArrayInputStream(report.toByteArray()), tempFilePath);
+
+        File[] files = tempFilePath.listFiles(this);
+        assertEquals(1, files.length);
+        String junit = Files.readString(files[0].toPath());
+        assertTrue(junit.length() < 2000, "The output should be truncated");
+        assertTrue(junit.contains("<![CDATA[Test0 output line 0:"), "The head of the output should be kept");
+        assertTrue(
+                junit.contains("Test0 output line 9999: connecting to the database" + System.lineSeparator() + "]]>"),
+                "The tail of the output should be kept");
+        assertTrue(junit.contains("characters truncated]..."), "The truncation should be noted");
+        assertTrue(
+                junit.contains("<![CDATA[" + System.lineSeparator() + "...["),
+                "The output of the last test case should be left out");
+        assertNotNull(new SAXReader().read(files[0]), "The XML should be valid");
+    }
+
+    @Test
+    void testTransform() throws Exception {
+        transformer.transform(this.getClass().getResourceAsStream("NUnit.xml"), tempFilePath);
+        assertJunitFiles(2);
+    }
+
+    @Test
+    void testTransformTwice() throws Exception {
+        transformer.transform(this.getClass().getResourceAsStream("NUnit.xml"), tempFilePath);
+        transformer.transform(this.getClass().getResourceAsStream("NUnit.xml"), tempFilePath);
+        assertJunitFiles(4);
+    }
+
+    @Issue("JENKINS-44315")
+    @Test
+    void testIssue44315() throws Exception {
+        transformer.transform(getClass().getResourceAsStream("NUnit-issue44315.xml"), tempFilePath);
+        assertJunitFiles(195);
+    }
+
+    @Issue("JENKINS-44527")
+    @Test
+    void testIssue44527() throws Exception {
+        transformer.transform(getClass().getResourceAsStream("NUnit-issue44527.xml"), tempFilePath);
+        assertJunitFiles(144);
+    }
+
+    @Test
+    void testNoPendingFilesLeft() throws Exception {
+        transformer.transform(getClass().getResourceAsStream("NUnit-correct2.xml"), tempFilePath);
+        assertEquals(102, tempFilePath.list().length, "Only the junit files should be left");
+    }
+
+    @Issue("SEC-1752")
+    @Test
+    void testPreventXXEWithHttps() throws Exception {
+        assertThrows(
+                TransformerException.class,
+                () -> transformer.transform(getClass().getResourceAsStream("NUnit-sec1752-https.xml"), tempFilePath));
+        assertJunitFiles(0);
+    }
+
+    @Issue("SEC-1752")
+    @Test
+    void testPreventXXEWithFile() throws Exception {
+        File tempFile = new File(tempFilePath, "dummy.txt");
+        try (FileWriter output = new FileWriter(tempFile)) {
+            output.write("You should never see this");
+        }
+        InputStream input = getClass().getResourceAsStream("NUnit-sec1752-file.xml");
+        String content =
+                IOUtils.toString(input, StandardCharsets.UTF_8).replace("__FILEPATH__", tempFile.getAbsolutePath());
+        try (InputStream transformStream = IOUtils.toInputStream(content, StandardCharsets.UTF_8)) {
+            assertThrows(TransformerException.class, () -> transformer.transform(transformStream, tempFilePath));
+        }
+        assertJunitFiles(0);
+    }
+
+    @Test
+    void testInvalidReport() throws Exception {
+        assertThrows(
+                TransformerException.class,
+                () -> transformer.transform(getClass().getResourceAsStream("NUnit-issue47367.xml"), tempFilePath));
+        assertEquals(0, tempFilePath.list().length, "No files should be left after a failed transform");
+    }
+
+    private void assertSameOutputAsXsl(String report, Supplier<InputStream> input) throws Exception {
+        // both directories need the same path length as long file names are truncated
+        File xslPath = new File(tempFilePath, "xsl-" + report);
+        File streamingPath = new File(tempFilePath, "stm-" + report);
+        assertTrue(xslPath.mkdirs());
+        assertTrue(streamingPath.mkdirs());
+
+        new NUnitReportTransformer().transform(input.get(), xslPath);
+        new NUnitStreamingReportTransformer().transform(input.get(), streamingPath);
+
+        String[] expected = xslPath.list(this);
+        String[] actual = streamingPath.list(this);
+        Arrays.sort(expected);
+        Arrays.sort(actual);
+        assertArrayEquals(expected, actual, "The junit files are not the same for " + report);
+        for (String name : expected) {
+            assertArrayEquals(
+                    Files.readAllBytes(new File(xslPath, name).toPath()),
+                    Files.readAllBytes(new File(streamingPath, name).toPath()),
+                    "The content of " + name + " is not the same for " + report);
+        }
+    }
+
+    /**
+     * Adds the test suites to a test result like the JUnit plugin adds the parsed ones, merging the test suites of the
+     * same name.
+     */
+    private static TestResult merge(List<SuiteResult> suites) {
+        TestResult read = new TestResult();
+        read.getSuites().addAll(suites);
+        TestResult result = new TestResult();
+        result.merge(read);
+        return result;
+    }
+
+    private static List<String> describe(List<SuiteResult> suites) {
+        List<String> description = new ArrayList<>();
+        for (SuiteResult suite : suites) {
+            description.add(suite.getName() + " " + suite.getStdout());
+            for (CaseResult testCase : suite.getCases()) {
+                description.add(testCase.getClassName() + "#" + testCase.getName() + " " + testCase.getErrorDetails()
+                        + " " + testCase.getErrorStackTrace() + " " + testCase.getSkippedMessage() + " "
+                        + testCase.getDuration() + " " + testCase.getStdout());
+            }
+        }
+        return description;
+    }
+
+    private static TestResult parseJUnitFiles(File junitPath) throws IOException {
+        return new TestResult(
+                0,
+                Util.createFileSet(junitPath, NUnitReportTransformer.JUNIT_FILE_PREFIX + "*.xml")
+                        .getDirectoryScanner(),
+                true,
+                false,
+                null,
+                false);
+    }
+
+    private static Map<String, List<String>> describe(TestResult result) {
+        Map<String, List<String>> suites = new TreeMap<>();
+        for (SuiteResult suite : result.getSuites()) {
+            List<String> cases = suites.computeIfAbsent(suite.getName(), name -> new ArrayList<>());
+            for (CaseResult testCase : suite.getCases()) {
+                cases.add(testCase.getClassName() + "#" + testCase.getName() + " passed=" + testCase.isPassed()
+                        + " skipped=" + testCase.isSkipped());
+            }
+        }
+        // the JUnit files are parsed in no particular order
+        suites.values().forEach(Collections::sort);
+        return suites;
+    }
+
+    private static List<String> describeSuites(TestResult result) {
+        List<String> suites = new ArrayList<>();
+        for (SuiteResult suite : result.getSuites()) {
+            suites.add(suite.getName() + " duration=" + String.format(Locale.ROOT, "%.3f", suite.getDuration())
+                    + " timestamp=" + suite.getTimestamp());
+        }
+        Collections.sort(suites);
+        return suites;
+    }
+
+    private void assertJunitFiles(int expectedJunitFilesCount) throws Exception {
+        File[] listFiles = tempFilePath.listFiles(this);
+        assertEquals(expectedJunitFilesCount, listFiles.length, "The number of junit files are incorrect.");
+        for (File file : listFiles) {
+            Document result = new SAXReader().read(file);
+            assertNotNull(result, "The XML wasn't parsed");
+            assertEquals("testsuite", result.getRootElement().getName(), "The name is not correct");
+        }
+    }
+
+    public boolean accept(File dir, String name) {
+        return name.startsWith(NUnitReportTransformer.JUNIT_FILE_PREFIX);
+    }
+}
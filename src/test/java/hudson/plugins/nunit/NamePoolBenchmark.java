@@ -0,0 +1,87 @@
+package hudson.plugins.nunit;
+
+import hudson.tasks.junit.SuiteResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.transform.TransformerException;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares the heap held by the test results read from a synthetic NUnit 3 report with large fixtures, with and
+ * without a {@link NamePool}. The heap held after reading the report is reported as the <code>retainedBytes</code>
+ * secondary result, the time it takes to read the report as the primary result.
+ */
+public class NamePoolBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Report {
+
+        /** Whether the names are pooled. */
+        @Param({"true", "false"})
+        public boolean pooled;
+
+        @Param({"20"})
+        public int suites;
+
+        @Param({"5000"})
+        public int casesPerSuite;
+
+        byte[] report;
+        NUnitStreamingReportTransformer transformer;
+
+        @Setup
+        public void setUp() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new NUnitReportGenerator(true, suites, casesPerSuite, 0).write(out);
+            report = out.toByteArray();
+            transformer = pooled ? new NUnitStreamingReportTransformer() : new UnpooledTransformer();
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Heap {
+
+        /** The heap held by the test results read by the last invocation. */
+        public long retainedBytes;
+    }
+
+    @Benchmark
+    public List<SuiteResult> readSuiteResults(Report report, Heap heap) throws IOException, TransformerException {
+        long before = getUsedHeap();
+        List<SuiteResult> suites = new ArrayList<>();
+        report.transformer.readSuiteResults(new ByteArrayInputStream(report.report), suites);
+        heap.retainedBytes = getUsedHeap() - before;
+        return suites;
+    }
+
+    private static long getUsedHeap() {
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static class UnpooledTransformer extends NUnitStreamingReportTransformer {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        NamePool createNamePool() {
+            return new NamePool() {
+                @Override
+                String get(String name) {
+                    return name;
+                }
+            };
+        }
+    }
+}
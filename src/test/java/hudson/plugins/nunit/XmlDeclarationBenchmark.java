@@ -0,0 +1,98 @@
+package hudson.plugins.nunit;
+
+import hudson.tasks.junit.SuiteResult;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.TransformerException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the cost per report of reading it through {@link InvalidXmlStreamReader}, which finds the encoding in the
+ * xml declaration without a parser, against also reading the declaration the way it used to be, with a parser from a
+ * new {@link XMLInputFactory}. The fixed cost matters for builds with hundreds of small reports.
+ *
+ * <p>The whole path of a report through {@link NUnitStreamingReportTransformer#readSuiteResults}, which parses it with
+ * a shared factory, is also measured against the same path plus looking up and configuring a factory for the report,
+ * like it was done for every report before.
+ */
+@State(Scope.Benchmark)
+public class XmlDeclarationBenchmark {
+
+    /** Size of the generated report in kilobytes. */
+    @Param({"1", "10", "1024"})
+    public int size;
+
+    private byte[] report;
+
+    @Setup
+    public void setUp() {
+        StringBuilder xml =
+                new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"no\"?>\n<test-run>\n"
+                        + "<test-suite type=\"TestFixture\" name=\"Fixture\" fullname=\"Namespace.Fixture\">\n");
+        for (int i = 0; xml.length() < size * 1024 - 40; i++) {
+            xml.append("  <test-case name=\"Test")
+                    .append(i)
+                    .append("\" classname=\"Namespace.Fixture\" result=\"Passed\"/>\n");
+        }
+        xml.append("</test-suite>\n</test-run>\n");
+        report = xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long sniffedDeclaration() throws IOException {
+        return read(new ByteArrayInputStream(report));
+    }
+
+    @Benchmark
+    public long parsedDeclaration() throws IOException, XMLStreamException {
+        InputStream in = new ByteArrayInputStream(report);
+        in.mark(1024);
+        XMLStreamReader xsr = XMLInputFactory.newFactory().createXMLStreamReader(in);
+        String encoding = xsr.getCharacterEncodingScheme();
+        xsr.close();
+        in.reset();
+        return read(in) + encoding.length();
+    }
+
+    @Benchmark
+    public List<SuiteResult> sharedFactory() throws IOException, TransformerException {
+        List<SuiteResult> suites = new ArrayList<>();
+        new NUnitStreamingReportTransformer().readSuiteResults(new ByteArrayInputStream(report), suites);
+        return suites;
+    }
+
+    @Benchmark
+    public List<SuiteResult> factoryPerReport() throws IOException, TransformerException {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        factory.setProperty("jdk.xml.cdataChunkSize", 64 * 1024);
+        List<SuiteResult> suites = sharedFactory();
+        return factory.isPropertySupported(XMLInputFactory.IS_COALESCING) ? suites : null;
+    }
+
+    private static long read(InputStream in) throws IOException {
+        try (Reader reader = new InvalidXmlStreamReader(in, '?')) {
+            char[] buffer = new char[8192];
+            long sum = 0;
+            int read;
+            while ((read = reader.read(buffer, 0, buffer.length)) >= 0) {
+                sum += read;
+            }
+            return sum;
+        }
+    }
+}